@@ -0,0 +1,46 @@
+package pm.google.photos.backup;
+
+import java.time.LocalDate;
+import java.util.HexFormat;
+import java.util.Random;
+
+
+/**
+ * Generates realistic downloaded media items for the benchmarks.
+ */
+class BenchmarkItems {
+
+	private static final LocalDate FIRST_DATE = LocalDate.of(2008, 1, 1);
+	private static final int DAYS = 15 * 365;
+
+	/**
+	 * Returns the id of the i-th item, Google Photos ids are ~100 characters long.
+	 */
+	static String id(int i) {
+		return String.format("AF1QipN%08dx7f3kLq2ZpVb9sTQwYc4mR8uHd1eJ6nK0oGvAyXtWzC5iE2lMjU9rSgPbDqNhFa7TkYwLcOe3VxBz%08d", i, i);
+	}
+
+	static DownloadedMediaItem item(int i) {
+		Random random = new Random(i);
+		LocalDate creationDate = FIRST_DATE.plusDays(random.nextInt(DAYS));
+		byte[] contentHash = new byte[32];
+		random.nextBytes(contentHash);
+
+		DownloadedMediaItem item = new DownloadedMediaItem(id(i));
+		item.setType(random.nextInt(10) == 0 ? MediaItemType.VIDEO : MediaItemType.PHOTO);
+		item.setCreationDate(creationDate);
+		item.setFilePath(String.format("%d/%d/IMG_%s_%06d.jpg", creationDate.getYear(), creationDate.getMonthValue(),
+				creationDate.toString().replace("-", ""), i % 1_000_000));
+		item.setContentHash(HexFormat.of().formatHex(contentHash));
+		item.setFileSize(1_000_000 + random.nextInt(5_000_000));
+		return item;
+	}
+
+	static CompactPhotosIndex index(int size) {
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		for (int i = 0; i < size; i++) {
+			index.addItem(item(i));
+		}
+		return index;
+	}
+}
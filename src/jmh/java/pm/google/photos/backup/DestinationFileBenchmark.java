@@ -0,0 +1,81 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Benchmarks finding a free destination file name with {@link FileNameRegistry} when the file name
+ * is already taken by the specified number of files, e.g. the same camera file name reused every month.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DestinationFileBenchmark {
+
+	private static final String FILENAME = "IMG_0001.jpg";
+
+	@Param({ "1", "10", "100", "1000" })
+	public int collisions;
+
+	private File dir;
+	private FileNameRegistry fileNames;
+
+
+	@Setup
+	public void setup() throws IOException {
+		this.dir = Files.createTempDirectory("destination-benchmark").toFile();
+		new File(this.dir, FILENAME).createNewFile();
+		for (int i = 1; i < this.collisions; i++) {
+			new File(this.dir, FileUtils.getIndexedFilename(FILENAME, i)).createNewFile();
+		}
+	}
+
+
+	/**
+	 * Lists the directory into a fresh registry, outside of the measured time, so each reservation
+	 * tests the colliding names again instead of starting from the index found by the previous one.
+	 */
+	@Setup(Level.Invocation)
+	public void listDirectory() {
+		this.fileNames = new FileNameRegistry();
+		this.fileNames.markTaken(new File(this.dir, FILENAME));
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		org.apache.commons.io.FileUtils.deleteQuietly(this.dir);
+	}
+
+
+	/**
+	 * Reserves the first free name in a directory which has already been listed.
+	 */
+	@Benchmark
+	public File reserve() {
+		return this.fileNames.reserve(this.dir, FILENAME);
+	}
+
+
+	/**
+	 * Reserves the first name in a directory, including the listing of the directory.
+	 */
+	@Benchmark
+	public File reserveFirst() {
+		return new FileNameRegistry().reserve(this.dir, FILENAME);
+	}
+}
@@ -0,0 +1,79 @@
+package pm.google.photos.backup;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Benchmarks the difference of the listed library items and the downloaded items,
+ * as computed by {@link PhotosBackupRunner#run()}: the listed items which are not in the index
+ * are new, the ids of the downloaded and the listed items are sorted and merge-joined to find
+ * the removed items. A small memory budget makes the sorters spill to disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DiffBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int size;
+
+	/**
+	 * The percentage of the items which are new in the library and of the items which are removed.
+	 */
+	@Param({ "1" })
+	public int changedPercent;
+
+	/**
+	 * The memory budget of the sorters in KB.
+	 */
+	@Param({ "65536", "1024" })
+	public int memoryBudget;
+
+	private CompactPhotosIndex downloadedItems;
+	private String[] listedIds;
+
+
+	@Setup
+	public void setup() {
+		this.downloadedItems = BenchmarkItems.index(this.size);
+
+		int changed = this.size * this.changedPercent / 100;
+		this.listedIds = new String[this.size];
+		for (int i = 0; i < this.size; i++) {
+			// the first items are removed from the library and the same number of new items is added
+			this.listedIds[i] = BenchmarkItems.id(i < changed ? this.size + i : i);
+		}
+	}
+
+
+	@Benchmark
+	public int diff() {
+		long budget = this.memoryBudget * 1024L / 2;
+		try (ExternalSorter downloadedIds = new ExternalSorter(budget, null);
+				ExternalSorter listedIds = new ExternalSorter(budget, null)) {
+
+			this.downloadedItems.forEachItem(null, null, null, item -> downloadedIds.add(item.getId()));
+
+			int newItems = 0;
+			for (String id : this.listedIds) {
+				listedIds.add(id);
+				if (this.downloadedItems.indexOf(id) < 0) {
+					newItems++;
+				}
+			}
+
+			int[] removedItems = { 0 };
+			PhotosBackupRunner.forEachMissingId(downloadedIds.sorted(), listedIds.sorted(), id -> removedItems[0]++);
+			return newItems + removedItems[0];
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Benchmarks writing a downloaded response body to a file, without and with the content hashing,
+ * with the network replaced by in-memory response body buffers. Divide the size by the time for the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileTransferBenchmark {
+
+	private static final int BODY_BUFFER_SIZE = 16 * 1024;
+
+	private static final Flow.Subscription NO_BACKPRESSURE = new Flow.Subscription() {
+
+		@Override
+		public void request(long n) {
+		}
+
+		@Override
+		public void cancel() {
+		}
+	};
+
+	@Param({ "1048576", "67108864" })
+	public int size;
+
+	private byte[] content;
+	private File file;
+	private final FileWriteEngine writeEngine = new FileWriteEngine();
+
+
+	@Setup
+	public void setup() throws IOException {
+		this.content = new byte[this.size];
+		new Random(1).nextBytes(this.content);
+		this.file = File.createTempFile("transfer-benchmark", ".part");
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		this.file.delete();
+	}
+
+
+	@Benchmark
+	public long subscriberWrite() throws Exception {
+		return write(null);
+	}
+
+
+	@Benchmark
+	public String subscriberWriteAndHash() throws Exception {
+		MessageDigest digest = FileUtils.newContentDigest();
+		write(digest);
+		return FileUtils.toHex(digest.digest());
+	}
+
+
+	/**
+	 * Writes the content the way a response body is written, in the 16 KB buffers delivered by the HTTP client.
+	 */
+	private long write(MessageDigest digest) throws Exception {
+		FileChannelSubscriber subscriber = new FileChannelSubscriber(this.writeEngine, this.file.toPath(),
+				new OpenOption[] { StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING }, 0, this.size, digest, new AtomicLong());
+		subscriber.onSubscribe(NO_BACKPRESSURE);
+		for (int offset = 0; offset < this.size; offset += BODY_BUFFER_SIZE) {
+			subscriber.onNext(List.of(ByteBuffer.wrap(this.content, offset, Math.min(BODY_BUFFER_SIZE, this.size - offset))));
+		}
+		subscriber.onComplete();
+		return subscriber.getBody().toCompletableFuture().get();
+	}
+}
@@ -0,0 +1,106 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Benchmarks building the index, loading the index log and appending batches to the log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IndexLoadBenchmark {
+
+	/**
+	 * The number of items added to the log in one commit by {@link BatchingPhotosIndex}.
+	 */
+	private static final int BATCH_SIZE = BatchingPhotosIndex.DEFAULT_MAX_BATCH_SIZE;
+
+	@Param({ "10000", "100000", "1000000" })
+	public int size;
+
+	private List<DownloadedMediaItem> items;
+	private File logDir;
+	private File logFile;
+	private File appendLogFile;
+	private DownloadedPhotosLog appendLog;
+
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.items = new ArrayList<>(this.size);
+		for (int i = 0; i < this.size; i++) {
+			this.items.add(BenchmarkItems.item(i));
+		}
+		this.logDir = Files.createTempDirectory("index-benchmark").toFile();
+		this.logFile = new File(this.logDir, "index.log");
+		this.appendLogFile = new File(this.logDir, "append.log");
+		DownloadedPhotosLog log = DownloadedPhotosLog.create(this.logFile, null);
+		log.initialize();
+		log.addItems(this.items);
+		log.close();
+	}
+
+
+	@Setup(Level.Iteration)
+	public void openAppendLog() {
+		this.appendLogFile.delete();
+		this.appendLog = DownloadedPhotosLog.create(this.appendLogFile, null);
+		this.appendLog.initialize();
+	}
+
+
+	@TearDown(Level.Iteration)
+	public void closeAppendLog() {
+		this.appendLog.close();
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		org.apache.commons.io.FileUtils.deleteQuietly(this.logDir);
+	}
+
+
+	@Benchmark
+	public CompactPhotosIndex insertAll() {
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		this.items.forEach(index::addItem);
+		return index;
+	}
+
+
+	@Benchmark
+	public int loadLog() {
+		DownloadedPhotosLog log = DownloadedPhotosLog.create(this.logFile, null);
+		log.initialize();
+		int count = log.findItems(null, null, null).size();
+		log.close();
+		return count;
+	}
+
+
+	/**
+	 * Appends one batch of items and forces it to the storage device.
+	 */
+	@Benchmark
+	public void appendBatch() {
+		this.appendLog.addItems(this.items.subList(0, Math.min(BATCH_SIZE, this.size)));
+	}
+}
@@ -0,0 +1,87 @@
+package pm.google.photos.backup;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Benchmarks the in-memory photos index operations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PhotosIndexBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int size;
+
+	private CompactPhotosIndex index;
+	private DownloadedMediaItem[] items;
+
+
+	@Setup
+	public void setup() {
+		this.index = BenchmarkItems.index(this.size);
+		this.items = new DownloadedMediaItem[1024];
+		for (int i = 0; i < this.items.length; i++) {
+			this.items[i] = BenchmarkItems.item(ThreadLocalRandom.current().nextInt(this.size));
+		}
+	}
+
+
+	@Benchmark
+	public DownloadedMediaItem getItem() {
+		DownloadedMediaItem item = this.items[ThreadLocalRandom.current().nextInt(this.items.length)];
+		return this.index.getItem(item.getId());
+	}
+
+
+	@Benchmark
+	public int indexOf() {
+		DownloadedMediaItem item = this.items[ThreadLocalRandom.current().nextInt(this.items.length)];
+		return this.index.indexOf(item.getId());
+	}
+
+
+	/**
+	 * Replaces an existing item, including the amortized cost of the compaction of the dead rows.
+	 */
+	@Benchmark
+	public void addItem() {
+		this.index.addItem(this.items[ThreadLocalRandom.current().nextInt(this.items.length)]);
+	}
+
+
+	@Benchmark
+	public DownloadedMediaItem findItemByHash() {
+		DownloadedMediaItem item = this.items[ThreadLocalRandom.current().nextInt(this.items.length)];
+		return this.index.findItemByHash(item.getContentHash());
+	}
+
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<DownloadedMediaItem> findItemsOfMonth() {
+		return this.index.findItems(MediaItemType.PHOTO, LocalDate.of(2015, 6, 1), LocalDate.of(2015, 6, 30));
+	}
+
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public int forEachItem() {
+		int[] count = new int[1];
+		this.index.forEachItem(null, null, null, item -> count[0]++);
+		return count[0];
+	}
+}
@@ -0,0 +1,558 @@
+package pm.google.photos.backup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.api.gax.rpc.InternalException;
+import com.google.api.gax.rpc.InvalidArgumentException;
+import com.google.api.gax.rpc.NotFoundException;
+import com.google.api.gax.rpc.ResourceExhaustedException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.photos.library.v1.proto.BatchGetMediaItemsResponse;
+import com.google.photos.library.v1.proto.Filters;
+import com.google.photos.library.v1.proto.MediaItemResult;
+import com.google.photos.library.v1.proto.MediaTypeFilter.MediaType;
+import com.google.photos.library.v1.proto.SearchMediaItemsRequest;
+import com.google.photos.library.v1.proto.SearchMediaItemsResponse;
+import com.google.photos.types.proto.DateRange;
+import com.google.photos.types.proto.MediaItem;
+import com.google.photos.types.proto.MediaMetadata;
+import com.google.photos.types.proto.Photo;
+import com.google.photos.types.proto.Video;
+import com.google.protobuf.Timestamp;
+import com.google.rpc.Status;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * An in-process stand-in for the Photos Library API, backing a {@link GooglePhotosLibrary} with a
+ * synthetic library, and a localhost HTTP server serving the content of its media items.
+ *
+ * <p>
+ * The library has a configurable number of items, created at regular intervals over the last years,
+ * newest first, with file sizes from a log-normal distribution. The sizes and the content are derived
+ * from the seed, so the same configuration always produces the same library. The content of an item
+ * starts with its index, so no two items have the same content. The API calls and the downloads have a fixed
+ * latency and fail at a configurable rate with a retryable error, and are throttled, with
+ * {@code RESOURCE_EXHAUSTED} and HTTP 429, beyond a configurable number of concurrent calls.
+ * The server supports byte ranges and can be limited to a total bandwidth.
+ * </p>
+ */
+public class FakePhotosLibrary implements GooglePhotosLibrary.Backend {
+
+	/**
+	 * The number of items of a search result page, the maximum of the API.
+	 */
+	private static final int PAGE_SIZE = 100;
+	private static final String PAGE_TOKEN_PREFIX = "page-";
+
+	private static final int MIN_FILE_SIZE = 1024;
+	private static final int CONTENT_BLOCK_SIZE = 64 * 1024;
+	private static final int CONTENT_HEADER_SIZE = Long.BYTES;
+
+	private static final int GRPC_NOT_FOUND = 5;
+
+	private static final Pattern MEDIA_PATH = Pattern.compile("/media/(\\d+)=dv?");
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+
+	private int itemCount = 10000;
+	private int years = 10;
+	private long medianFileSize = 256 * 1024;
+	private double fileSizeSigma = 1.0;
+	private int videoPercent = 10;
+	private long seed = 1;
+
+	private Duration apiLatency = Duration.ZERO;
+	private Duration downloadLatency = Duration.ZERO;
+	private double errorRate = 0;
+	private int maxConcurrentApiCalls = 0;
+	private int maxConcurrentDownloads = 0;
+	private ByteRateLimiter bandwidth = null;
+
+	/**
+	 * The creation times of the items in epoch seconds, in descending order, and their file sizes.
+	 */
+	private long[] creationTimes;
+	private long[] fileSizes;
+	private byte[] contentBlock;
+
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private String baseUrl;
+
+	private final AtomicInteger concurrentApiCalls = new AtomicInteger();
+	private final AtomicInteger concurrentDownloads = new AtomicInteger();
+
+	private final AtomicLong apiCalls = new AtomicLong();
+	private final AtomicLong downloads = new AtomicLong();
+	private final AtomicLong servedBytes = new AtomicLong();
+	private final AtomicLong throttledCalls = new AtomicLong();
+	private final AtomicLong failedCalls = new AtomicLong();
+
+
+	public void setItemCount(int itemCount) {
+		this.itemCount = itemCount;
+	}
+
+
+	public int getItemCount() {
+		return this.itemCount;
+	}
+
+
+	/**
+	 * Sets the number of years before now over which the creation times of the items are spread.
+	 * @param years
+	 */
+	public void setYears(int years) {
+		this.years = years;
+	}
+
+
+	/**
+	 * Sets the log-normal distribution of the file sizes.
+	 * @param medianFileSize the median file size in bytes
+	 * @param fileSizeSigma the standard deviation of the logarithm of the file size, 0 for equal sizes
+	 */
+	public void setFileSizes(long medianFileSize, double fileSizeSigma) {
+		this.medianFileSize = medianFileSize;
+		this.fileSizeSigma = fileSizeSigma;
+	}
+
+
+	public void setVideoPercent(int videoPercent) {
+		this.videoPercent = videoPercent;
+	}
+
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+
+	/**
+	 * Sets the latency of each API call, e.g. of each search result page, and the time to the
+	 * first byte of each download.
+	 * @param apiLatency
+	 * @param downloadLatency
+	 */
+	public void setLatency(Duration apiLatency, Duration downloadLatency) {
+		this.apiLatency = apiLatency;
+		this.downloadLatency = downloadLatency;
+	}
+
+
+	/**
+	 * Sets the fraction of the API calls and the downloads which fail with a retryable error,
+	 * {@code INTERNAL} and HTTP 500.
+	 * @param errorRate
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+
+	/**
+	 * Sets the number of concurrent API calls and downloads beyond which the calls are throttled,
+	 * 0 for no limit.
+	 * @param maxConcurrentApiCalls
+	 * @param maxConcurrentDownloads
+	 */
+	public void setThrottling(int maxConcurrentApiCalls, int maxConcurrentDownloads) {
+		this.maxConcurrentApiCalls = maxConcurrentApiCalls;
+		this.maxConcurrentDownloads = maxConcurrentDownloads;
+	}
+
+
+	/**
+	 * Limits the total rate at which the content is served.
+	 * @param bytesPerSecond the maximum number of bytes per second or 0 for no limit
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond > 0 ? new ByteRateLimiter(bytesPerSecond) : null;
+	}
+
+
+	/**
+	 * Generates the library and starts the content server on a free localhost port.
+	 */
+	public void start() {
+		Random random = new Random(this.seed);
+		long now = Instant.now().getEpochSecond();
+		long interval = Math.max(1, TimeUnit.DAYS.toSeconds(365L * this.years) / Math.max(1, this.itemCount));
+
+		this.creationTimes = new long[this.itemCount];
+		this.fileSizes = new long[this.itemCount];
+		for (int i = 0; i < this.itemCount; i++) {
+			this.creationTimes[i] = now - i * interval;
+			this.fileSizes[i] = Math.max(MIN_FILE_SIZE,
+					(long)(this.medianFileSize * Math.exp(this.fileSizeSigma * random.nextGaussian())));
+		}
+		this.contentBlock = new byte[CONTENT_BLOCK_SIZE];
+		random.nextBytes(this.contentBlock);
+
+		try {
+			this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to start fake photos library server", ex);
+		}
+		this.serverExecutor = Executors.newVirtualThreadPerTaskExecutor();
+		this.server.setExecutor(this.serverExecutor);
+		this.server.createContext("/media/", this::serveContent);
+		this.server.start();
+		this.baseUrl = "http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort() + "/media/";
+	}
+
+
+	/**
+	 * Returns the total size of the items in bytes.
+	 */
+	public long getTotalSize() {
+		long totalSize = 0;
+		for (long fileSize : this.fileSizes) {
+			totalSize += fileSize;
+		}
+		return totalSize;
+	}
+
+
+	public long getApiCalls() {
+		return this.apiCalls.get();
+	}
+
+
+	public long getDownloads() {
+		return this.downloads.get();
+	}
+
+
+	public long getServedBytes() {
+		return this.servedBytes.get();
+	}
+
+
+	/**
+	 * Returns the number of API calls and downloads which were throttled.
+	 */
+	public long getThrottledCalls() {
+		return this.throttledCalls.get();
+	}
+
+
+	/**
+	 * Returns the number of API calls and downloads which failed with an injected error.
+	 */
+	public long getFailedCalls() {
+		return this.failedCalls.get();
+	}
+
+
+	@Override
+	public SearchMediaItemsResponse searchMediaItems(SearchMediaItemsRequest request) {
+		simulateApiCall();
+
+		Filters filters = request.getFilters();
+		ZoneId zone = ZoneId.systemDefault();
+		DateRange dateRange = filters.getDateFilter().getRangesList().get(0);
+		LocalDate startDate = toLocalDate(dateRange.getStartDate());
+		LocalDate endDate = toLocalDate(dateRange.getEndDate());
+		int first = indexOfCreatedBefore(endDate.plusDays(1).atStartOfDay(zone).toEpochSecond());
+		int last = indexOfCreatedBefore(startDate.atStartOfDay(zone).toEpochSecond());
+
+		List<MediaType> mediaTypes = filters.getMediaTypeFilter().getMediaTypesList();
+		boolean photos = mediaTypes.isEmpty() || mediaTypes.contains(MediaType.ALL_MEDIA) || mediaTypes.contains(MediaType.PHOTO);
+		boolean videos = mediaTypes.isEmpty() || mediaTypes.contains(MediaType.ALL_MEDIA) || mediaTypes.contains(MediaType.VIDEO);
+
+		// the page token is the index of the first item of the page, like the service a page
+		// covers a fixed number of items and returns those matching the media type
+		int pageStart = first;
+		if (!request.getPageToken().isEmpty()) {
+			pageStart = parsePageToken(request.getPageToken());
+			if (pageStart < first || pageStart >= last) {
+				throw new InvalidArgumentException("Invalid page token", null, statusCode(StatusCode.Code.INVALID_ARGUMENT), false);
+			}
+		}
+		int pageSize = request.getPageSize() > 0 ? Math.min(request.getPageSize(), PAGE_SIZE) : PAGE_SIZE;
+		int pageEnd = Math.min(pageStart + pageSize, last);
+
+		List<MediaItem> items = new ArrayList<>(pageEnd - pageStart);
+		for (int index = pageStart; index < pageEnd; index++) {
+			if (isVideo(index) ? videos : photos) {
+				items.add(getItem(index));
+			}
+		}
+		return SearchMediaItemsResponse.newBuilder()
+				.addAllMediaItems(items)
+				.setNextPageToken(pageEnd < last ? PAGE_TOKEN_PREFIX + pageEnd : "")
+				.build();
+	}
+
+
+	private static int parsePageToken(String pageToken) {
+		try {
+			return pageToken.startsWith(PAGE_TOKEN_PREFIX) ? Integer.parseInt(pageToken.substring(PAGE_TOKEN_PREFIX.length())) : -1;
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+
+	@Override
+	public MediaItem getMediaItem(String mediaItemId) {
+		simulateApiCall();
+		int index = indexOf(mediaItemId);
+		if (index < 0) {
+			throw new NotFoundException("Media item not found: " + mediaItemId, null, statusCode(StatusCode.Code.NOT_FOUND), false);
+		}
+		return getItem(index);
+	}
+
+
+	@Override
+	public BatchGetMediaItemsResponse batchGetMediaItems(List<String> mediaItemIds) {
+		simulateApiCall();
+		List<MediaItemResult> results = new ArrayList<>(mediaItemIds.size());
+		for (String mediaItemId : mediaItemIds) {
+			int index = indexOf(mediaItemId);
+			results.add(index >= 0 ?
+					MediaItemResult.newBuilder().setMediaItem(getItem(index)).build() :
+					MediaItemResult.newBuilder().setStatus(Status.newBuilder()
+							.setCode(GRPC_NOT_FOUND).setMessage("Media item not found: " + mediaItemId)).build());
+		}
+		return BatchGetMediaItemsResponse.newBuilder().addAllMediaItemResults(results).build();
+	}
+
+
+	/**
+	 * Stops the content server.
+	 */
+	@Override
+	public void close() {
+		if (this.server != null) {
+			this.server.stop(0);
+			this.serverExecutor.close();
+			this.server = null;
+		}
+	}
+
+
+	private MediaItem getItem(int index) {
+		boolean video = isVideo(index);
+		MediaMetadata.Builder metadata = MediaMetadata.newBuilder()
+				.setCreationTime(Timestamp.newBuilder().setSeconds(this.creationTimes[index]).build());
+		if (video) {
+			metadata.setVideo(Video.getDefaultInstance());
+		} else {
+			metadata.setPhoto(Photo.getDefaultInstance());
+		}
+		// the file names repeat like the names of a camera, so the name collisions are resolved too
+		return MediaItem.newBuilder()
+				.setId(toId(index))
+				.setBaseUrl(this.baseUrl + index)
+				.setFilename(String.format(video ? "VID_%04d.mp4" : "IMG_%04d.jpg", index % 10000))
+				.setMimeType(video ? "video/mp4" : "image/jpeg")
+				.setMediaMetadata(metadata.build())
+				.build();
+	}
+
+
+	private boolean isVideo(int index) {
+		return index % 100 < this.videoPercent;
+	}
+
+
+	private static String toId(int index) {
+		return String.format("fake-%08d", index);
+	}
+
+
+	private int indexOf(String mediaItemId) {
+		try {
+			int index = mediaItemId.startsWith("fake-") ? Integer.parseInt(mediaItemId.substring(5)) : -1;
+			return index < this.itemCount ? index : -1;
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+
+	/**
+	 * Returns the index of the first item created before the specified epoch second.
+	 */
+	private int indexOfCreatedBefore(long epochSecond) {
+		int low = 0;
+		int high = this.creationTimes.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.creationTimes[middle] >= epochSecond) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+
+	private static LocalDate toLocalDate(com.google.type.Date date) {
+		return LocalDate.of(date.getYear(), date.getMonth(), date.getDay());
+	}
+
+
+	/**
+	 * Waits for the latency of an API call and fails the call if it is throttled or an error is injected.
+	 */
+	private void simulateApiCall() {
+		this.apiCalls.incrementAndGet();
+		int concurrentCalls = this.concurrentApiCalls.incrementAndGet();
+		try {
+			sleep(this.apiLatency);
+		} finally {
+			this.concurrentApiCalls.decrementAndGet();
+		}
+		if (this.maxConcurrentApiCalls > 0 && concurrentCalls > this.maxConcurrentApiCalls) {
+			this.throttledCalls.incrementAndGet();
+			throw new ResourceExhaustedException("Quota exceeded", null, statusCode(StatusCode.Code.RESOURCE_EXHAUSTED), true);
+		}
+		if (ThreadLocalRandom.current().nextDouble() < this.errorRate) {
+			this.failedCalls.incrementAndGet();
+			throw new InternalException("Injected error", null, statusCode(StatusCode.Code.INTERNAL), true);
+		}
+	}
+
+
+	private static StatusCode statusCode(StatusCode.Code code) {
+		return new StatusCode() {
+			@Override
+			public Code getCode() {
+				return code;
+			}
+
+			@Override
+			public Object getTransportCode() {
+				return code;
+			}
+		};
+	}
+
+
+	/**
+	 * Serves the content of a media item, or the requested byte range of it.
+	 */
+	private void serveContent(HttpExchange exchange) throws IOException {
+		try (InputStream request = exchange.getRequestBody()) {
+			Matcher path = MEDIA_PATH.matcher(exchange.getRequestURI().getPath());
+			int index = path.matches() ? indexOf(toId(Integer.parseInt(path.group(1)))) : -1;
+			if (index < 0) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			this.downloads.incrementAndGet();
+			int concurrent = this.concurrentDownloads.incrementAndGet();
+			try {
+				sleep(this.downloadLatency);
+				if (this.maxConcurrentDownloads > 0 && concurrent > this.maxConcurrentDownloads) {
+					this.throttledCalls.incrementAndGet();
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					exchange.sendResponseHeaders(429, -1);
+					return;
+				}
+				if (ThreadLocalRandom.current().nextDouble() < this.errorRate) {
+					this.failedCalls.incrementAndGet();
+					exchange.sendResponseHeaders(500, -1);
+					return;
+				}
+
+				long fileSize = this.fileSizes[index];
+				long first = 0;
+				long last = fileSize - 1;
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				Matcher rangeMatcher = range != null ? RANGE.matcher(range.trim()) : null;
+				exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+				if (rangeMatcher != null && rangeMatcher.matches()) {
+					first = Long.parseLong(rangeMatcher.group(1));
+					if (!rangeMatcher.group(2).isEmpty()) {
+						last = Math.min(last, Long.parseLong(rangeMatcher.group(2)));
+					}
+					if (first > last) {
+						exchange.getResponseHeaders().set("Content-Range", "bytes */" + fileSize);
+						exchange.sendResponseHeaders(416, -1);
+						return;
+					}
+					exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + fileSize);
+					exchange.sendResponseHeaders(206, last - first + 1);
+				} else {
+					exchange.sendResponseHeaders(200, fileSize);
+				}
+
+				try (OutputStream response = exchange.getResponseBody()) {
+					writeContent(response, index, first, last);
+				}
+			} finally {
+				this.concurrentDownloads.decrementAndGet();
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+
+	/**
+	 * Writes the specified byte range of the content of an item - its index followed by the content block, repeated.
+	 */
+	private void writeContent(OutputStream out, int index, long first, long last) throws IOException {
+		byte[] header = ByteBuffer.allocate(CONTENT_HEADER_SIZE).putLong(index).array();
+		long position = first;
+		while (position <= last) {
+			int length;
+			if (position < CONTENT_HEADER_SIZE) {
+				length = (int)Math.min(CONTENT_HEADER_SIZE - position, last - position + 1);
+				out.write(header, (int)position, length);
+			} else {
+				int offset = (int)(position % CONTENT_BLOCK_SIZE);
+				length = (int)Math.min(CONTENT_BLOCK_SIZE - offset, last - position + 1);
+				out.write(this.contentBlock, offset, length);
+			}
+			if (this.bandwidth != null) {
+				this.bandwidth.acquire(length);
+			}
+			this.servedBytes.addAndGet(length);
+			position += length;
+		}
+	}
+
+
+	private static void sleep(Duration duration) {
+		if (duration.isZero()) {
+			return;
+		}
+		try {
+			Thread.sleep(duration.toMillis());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted", ex);
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+
+/**
+ * Backs up a synthetic library served by a {@link FakePhotosLibrary} and reports the throughput,
+ * so the backup can be measured reproducibly and offline, e.g. with 10k to 1M items.
+ *
+ * The backup is run several times against the same backup directory, the first run downloads the
+ * whole library and the next runs only list it and find nothing to download, like the most runs of
+ * a real backup. Each run loads the index and the journal from the disk, like a new process.
+ */
+public class LoadTest {
+
+	private static final String CMD_OPTION_ITEMS = "items";
+	private static final String CMD_OPTION_FILE_SIZE = "file_size";
+	private static final String CMD_OPTION_FILE_SIZE_SIGMA = "file_size_sigma";
+	private static final String CMD_OPTION_VIDEO_PERCENT = "video_percent";
+	private static final String CMD_OPTION_SEED = "seed";
+	private static final String CMD_OPTION_API_LATENCY = "api_latency";
+	private static final String CMD_OPTION_DOWNLOAD_LATENCY = "download_latency";
+	private static final String CMD_OPTION_ERROR_RATE = "error_rate";
+	private static final String CMD_OPTION_API_LIMIT = "api_limit";
+	private static final String CMD_OPTION_DOWNLOAD_LIMIT = "download_limit";
+	private static final String CMD_OPTION_BANDWIDTH = "bandwidth";
+	private static final String CMD_OPTION_PARALLELISM = "parallelism";
+	private static final String CMD_OPTION_LISTING_PARALLELISM = "listing_parallelism";
+	private static final String CMD_OPTION_RUNS = "runs";
+	private static final String CMD_OPTION_BACKUP_DIR = "backup_dir";
+	private static final String CMD_OPTION_VERBOSE = "verbose";
+	private static final String CMD_OPTION_HELP = "help";
+
+	private static final long MEGABYTE = 1024 * 1024;
+
+
+	public static void main(String[] args) {
+
+		Options options = new Options();
+
+		options.addOption(CMD_OPTION_ITEMS,         true, "the number of items of the library, default is 10000");
+		options.addOption(CMD_OPTION_FILE_SIZE,     true, "the median file size in KB, default is 64");
+		options.addOption(CMD_OPTION_FILE_SIZE_SIGMA, true, "the standard deviation of the logarithm of the file size, default is 1.0");
+		options.addOption(CMD_OPTION_VIDEO_PERCENT, true, "the percentage of videos, default is 10");
+		options.addOption(CMD_OPTION_SEED,          true, "the seed of the synthetic library, default is 1");
+		options.addOption(CMD_OPTION_API_LATENCY,   true, "the latency of an API call in milliseconds, default is 50");
+		options.addOption(CMD_OPTION_DOWNLOAD_LATENCY, true, "the time to the first byte of a download in milliseconds, default is 20");
+		options.addOption(CMD_OPTION_ERROR_RATE,    true, "the percentage of the API calls and downloads which fail with a retryable error, default is 0");
+		options.addOption(CMD_OPTION_API_LIMIT,     true, "the number of concurrent API calls beyond which they are throttled, no limit by default");
+		options.addOption(CMD_OPTION_DOWNLOAD_LIMIT, true, "the number of concurrent downloads beyond which they are throttled, no limit by default");
+		options.addOption(CMD_OPTION_BANDWIDTH,     true, "the total download bandwidth in MB per second, no limit by default");
+		options.addOption(CMD_OPTION_PARALLELISM,   true, "the number of media items to download concurrently, default is 16");
+		options.addOption(CMD_OPTION_LISTING_PARALLELISM, true, "the number of date range partitions listed concurrently, default is " + GooglePhotosLibrary.DEFAULT_LISTING_PARALLELISM);
+		options.addOption(CMD_OPTION_RUNS,          true, "the number of backup runs, default is 2");
+		options.addOption(CMD_OPTION_BACKUP_DIR,    true, "the backup directory, which is kept, a temporary directory by default");
+		options.addOption(CMD_OPTION_VERBOSE,       "print the output of the backup runs");
+		options.addOption(CMD_OPTION_HELP,          "print usage");
+
+		try {
+			CommandLine cmdLine = new DefaultParser().parse(options, args);
+			if (cmdLine.hasOption(CMD_OPTION_HELP)) {
+				new HelpFormatter().printHelp("loadTest", options);
+				return;
+			}
+
+			FakePhotosLibrary library = new FakePhotosLibrary();
+			library.setItemCount(getInt(cmdLine, CMD_OPTION_ITEMS, 10000));
+			library.setFileSizes(getInt(cmdLine, CMD_OPTION_FILE_SIZE, 64) * 1024L, getDouble(cmdLine, CMD_OPTION_FILE_SIZE_SIGMA, 1.0));
+			library.setVideoPercent(getInt(cmdLine, CMD_OPTION_VIDEO_PERCENT, 10));
+			library.setSeed(getInt(cmdLine, CMD_OPTION_SEED, 1));
+			library.setLatency(Duration.ofMillis(getInt(cmdLine, CMD_OPTION_API_LATENCY, 50)),
+					Duration.ofMillis(getInt(cmdLine, CMD_OPTION_DOWNLOAD_LATENCY, 20)));
+			library.setErrorRate(getDouble(cmdLine, CMD_OPTION_ERROR_RATE, 0) / 100);
+			library.setThrottling(getInt(cmdLine, CMD_OPTION_API_LIMIT, 0), getInt(cmdLine, CMD_OPTION_DOWNLOAD_LIMIT, 0));
+			library.setBandwidth(getInt(cmdLine, CMD_OPTION_BANDWIDTH, 0) * MEGABYTE);
+
+			File backupDir = cmdLine.hasOption(CMD_OPTION_BACKUP_DIR) ?
+					new File(cmdLine.getOptionValue(CMD_OPTION_BACKUP_DIR)) : null;
+
+			runLoadTest(library, backupDir,
+					getInt(cmdLine, CMD_OPTION_PARALLELISM, 16),
+					getInt(cmdLine, CMD_OPTION_LISTING_PARALLELISM, GooglePhotosLibrary.DEFAULT_LISTING_PARALLELISM),
+					getInt(cmdLine, CMD_OPTION_RUNS, 2),
+					cmdLine.hasOption(CMD_OPTION_VERBOSE));
+			System.exit(0);
+		}
+		catch (ParseException ex) {
+			System.out.println(ex.getMessage());
+			new HelpFormatter().printHelp("loadTest", options);
+			System.exit(1);
+		}
+		catch (Exception ex) {
+			ex.printStackTrace();
+			System.out.println("Load test failed: " + ex.getMessage());
+			System.exit(2);
+		}
+	}
+
+
+	/**
+	 * Runs the backups of the specified library into the specified backup directory.
+	 * @param backupDir the backup directory or null for a temporary directory, deleted at the end
+	 */
+	public static void runLoadTest(FakePhotosLibrary library, File backupDir, int parallelism, int listingParallelism,
+			int runs, boolean verbose) throws IOException {
+
+		library.start();
+		boolean temporaryDir = backupDir == null;
+		if (temporaryDir) {
+			backupDir = Files.createTempDirectory("photos-backup-loadtest").toFile();
+		}
+		System.out.printf(Locale.ROOT, "Library of %d items, %d MB, backed up to %s\n",
+				library.getItemCount(), library.getTotalSize() / MEGABYTE, backupDir.getAbsolutePath());
+
+		File dataStoreDir = new File(backupDir, ".data_store");
+		File photosBackupDir = new File(backupDir, "photos");
+		FileDownloader fileDownloader = new FileDownloader();
+
+		PrintStream out = System.out;
+		try {
+			for (int run = 1; run <= runs; run++) {
+				BackupMetrics metrics = new BackupMetrics();
+				long servedBytes = library.getServedBytes();
+				long throttledCalls = library.getThrottledCalls();
+				long failedCalls = library.getFailedCalls();
+
+				if (!verbose) {
+					System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+				}
+				long startTime = System.nanoTime();
+				long indexLoadTime;
+				DownloadedPhotosIndex photosIndex = null;
+				DownloadJournal journal = null;
+				ListingCheckpoint listingCheckpoint = new ListingCheckpoint(new File(dataStoreDir, "listing.checkpoint"));
+				try {
+					DownloadedPhotosLog photosIndexStorage = DownloadedPhotosLog.create(
+							new File(dataStoreDir, "index.log"), new File(dataStoreDir, "index"));
+					photosIndexStorage.initialize();
+					BatchingPhotosIndex batchingIndex = new BatchingPhotosIndex(photosIndexStorage);
+					batchingIndex.setBeforeCommit(fileDownloader.getWriteEngine()::syncBeforeCommit);
+					photosIndex = batchingIndex;
+					journal = new DownloadJournal(new File(dataStoreDir, "journal.log"), photosBackupDir);
+					journal.setSync(fileDownloader.getWriteEngine().getDurability() != FileWriteEngine.Durability.NONE);
+					indexLoadTime = System.nanoTime() - startTime;
+
+					// the library is not closed, it would close the fake library which serves the next runs
+					GooglePhotosLibrary photosLibrary = new GooglePhotosLibrary(library);
+					photosLibrary.setListingParallelism(listingParallelism);
+					photosLibrary.setMetrics(metrics);
+
+					PhotosBackupRunner backup = new PhotosBackupRunner(photosLibrary, photosIndex, photosBackupDir);
+					backup.setParallelism(parallelism);
+					backup.setFileDownloader(fileDownloader);
+					backup.setMetrics(metrics);
+					backup.setJournal(journal);
+					backup.setListingCheckpoint(listingCheckpoint);
+					backup.setDiffMemoryBudget(ExternalSorter.DEFAULT_MEMORY_BUDGET, dataStoreDir);
+					backup.run();
+
+				} finally {
+					if (photosIndex != null)
+						photosIndex.close();
+					if (journal != null)
+						journal.close();
+					listingCheckpoint.close();
+					System.setOut(out);
+				}
+				double seconds = (System.nanoTime() - startTime) / 1e9;
+
+				long listed = metrics.getCount(BackupMetrics.ITEMS_LISTED);
+				long downloaded = metrics.getCount(BackupMetrics.ITEMS_DOWNLOADED);
+				long downloadedBytes = library.getServedBytes() - servedBytes;
+				System.out.printf(Locale.ROOT, "Run %d: %.1f s, index loaded in %.2f s, listed %d items (%.0f items/s),"
+						+ " downloaded %d items (%.0f items/s), %d MB (%.1f MB/s), %d failed, %d throttled, %d injected errors\n",
+						run, seconds, indexLoadTime / 1e9, listed, listed / seconds,
+						downloaded, downloaded / seconds, downloadedBytes / MEGABYTE, downloadedBytes / MEGABYTE / seconds,
+						metrics.getCount(BackupMetrics.ITEMS_FAILED),
+						library.getThrottledCalls() - throttledCalls, library.getFailedCalls() - failedCalls);
+			}
+		} finally {
+			library.close();
+			if (temporaryDir) {
+				deleteRecursively(backupDir.toPath());
+			}
+		}
+	}
+
+
+	private static void deleteRecursively(Path dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			for (Path path : (Iterable<Path>)paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+
+
+	private static int getInt(CommandLine cmdLine, String option, int defaultValue) {
+		String value = cmdLine.getOptionValue(option);
+		try {
+			int number = value != null ? Integer.parseInt(value) : defaultValue;
+			if (number < 0) throw new NumberFormatException();
+			return number;
+		} catch (NumberFormatException ex) {
+			throw new RuntimeException("Invalid -" + option + ": " + value);
+		}
+	}
+
+
+	private static double getDouble(CommandLine cmdLine, String option, double defaultValue) {
+		String value = cmdLine.getOptionValue(option);
+		try {
+			double number = value != null ? Double.parseDouble(value) : defaultValue;
+			if (number < 0) throw new NumberFormatException();
+			return number;
+		} catch (NumberFormatException ex) {
+			throw new RuntimeException("Invalid -" + option + ": " + value);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package pm.google.photos.backup;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.FileSystemException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.gax.rpc.ApiException;
+
+
+/**
+ * Limits the number of concurrent calls to a remote service and retries the failed calls.
+ *
+ * <p>
+ * The concurrency limit is adjusted in AIMD fashion: every successful call increases it
+ * by {@code 1 / limit}, i.e. by one per round of calls, up to the maximum, and a throttled
+ * call halves it, down to one. Only the first of the throttled calls which were started
+ * before the previous decrease halves the limit, so a burst of throttling errors from
+ * concurrent calls is counted once.
+ * </p>
+ *
+ * <p>
+ * Throttling errors ({@code RESOURCE_EXHAUSTED}, {@code UNAVAILABLE}, HTTP 429 and 503) and
+ * transient errors (other server errors, I/O errors) are retried after a jittered exponential
+ * backoff, all other errors are rethrown immediately.
+ * </p>
+ */
+public class AdaptiveThrottle {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 6;
+	public static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofSeconds(1);
+	public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(64);
+
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+
+	/**
+	 * A call to the remote service.
+	 */
+	public interface Call<T, E extends Exception> {
+		T call() throws E;
+	}
+
+	private enum Outcome { SUCCESS, THROTTLED, FAILED, RETRYABLE }
+
+
+	private final String name;
+	private final int maxLimit;
+
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long initialBackoffNanos = DEFAULT_INITIAL_BACKOFF.toNanos();
+	private long maxBackoffNanos = DEFAULT_MAX_BACKOFF.toNanos();
+
+	// guarded by this
+	private double limit;
+	private int inFlight = 0;
+	private long epoch = 0;
+
+
+	/**
+	 * @param name the name of the remote service, used in the log messages
+	 * @param maxLimit the maximum number of concurrent calls
+	 */
+	public AdaptiveThrottle(String name, int maxLimit) {
+		if (maxLimit < 1) {
+			throw new IllegalArgumentException("maxLimit must be positive: " + maxLimit);
+		}
+		this.name = name;
+		this.maxLimit = maxLimit;
+		this.limit = maxLimit;
+	}
+
+
+	/**
+	 * Sets the maximum number of attempts of each call, including the first one.
+	 * @param maxAttempts
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+
+	/**
+	 * Sets the initial and the maximum delay before a failed call is retried.
+	 * @param initialBackoff
+	 * @param maxBackoff
+	 */
+	public void setBackoff(Duration initialBackoff, Duration maxBackoff) {
+		this.initialBackoffNanos = initialBackoff.toNanos();
+		this.maxBackoffNanos = maxBackoff.toNanos();
+	}
+
+
+	/**
+	 * Returns the current concurrency limit.
+	 */
+	public synchronized int getLimit() {
+		return (int)this.limit;
+	}
+
+
+	/**
+	 * Performs the specified call, blocking while the concurrency limit is reached, and
+	 * retries it if it fails with a throttling or a transient error.
+	 * @return the result of the call
+	 * @throws E the error of the last attempt
+	 */
+	public <T, E extends Exception> T call(Call<T, E> call) throws E {
+		for (int attempt = 1; ; attempt++) {
+			long callEpoch = acquire();
+			Outcome outcome = Outcome.FAILED;
+			long backoffNanos;
+			try {
+				T result = call.call();
+				outcome = Outcome.SUCCESS;
+				return result;
+
+			} catch (Exception ex) {
+				outcome = classify(ex);
+				if (outcome == Outcome.FAILED || attempt == this.maxAttempts) {
+					throw ex;
+				}
+				System.out.printf("%s call failed (attempt %d of %d), retrying: %s\n",
+						this.name, attempt, this.maxAttempts, ex.getMessage());
+				backoffNanos = getBackoffNanos(attempt, ex);
+
+			} finally {
+				release(outcome, callEpoch);
+			}
+
+			sleep(backoffNanos);
+		}
+	}
+
+
+	private synchronized long acquire() {
+		boolean interrupted = false;
+		while (this.inFlight >= (int)this.limit) {
+			try {
+				wait();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		this.inFlight++;
+		return this.epoch;
+	}
+
+
+	private synchronized void release(Outcome outcome, long callEpoch) {
+		this.inFlight--;
+		if (outcome == Outcome.SUCCESS) {
+			this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+		} else if (outcome == Outcome.THROTTLED && callEpoch == this.epoch) {
+			int previousLimit = (int)this.limit;
+			this.limit = Math.max(1, this.limit / 2);
+			this.epoch++;
+			if ((int)this.limit < previousLimit) {
+				System.out.printf("%s is throttled, reducing the concurrency to %d\n", this.name, (int)this.limit);
+			}
+		}
+		notifyAll();
+	}
+
+
+	/**
+	 * Returns a random delay between zero and the exponentially growing backoff ("full jitter"),
+	 * but not shorter than the delay requested by the server.
+	 */
+	private long getBackoffNanos(int attempt, Exception ex) {
+		long backoff = Math.min(this.maxBackoffNanos, this.initialBackoffNanos << Math.min(attempt - 1, 30));
+		long jitteredBackoff = ThreadLocalRandom.current().nextLong(backoff + 1);
+		if (ex instanceof HttpStatusException && ((HttpStatusException)ex).getRetryAfter() != null) {
+			return Math.max(jitteredBackoff, ((HttpStatusException)ex).getRetryAfter().toNanos());
+		}
+		return jitteredBackoff;
+	}
+
+
+	private static Outcome classify(Exception ex) {
+		if (ex instanceof ApiException) {
+			switch (((ApiException)ex).getStatusCode().getCode()) {
+			case RESOURCE_EXHAUSTED:
+			case UNAVAILABLE:
+				return Outcome.THROTTLED;
+			case DEADLINE_EXCEEDED:
+			case ABORTED:
+			case INTERNAL:
+				return Outcome.RETRYABLE;
+			default:
+				return Outcome.FAILED;
+			}
+		}
+		if (ex instanceof HttpStatusException) {
+			int statusCode = ((HttpStatusException)ex).getStatusCode();
+			if (statusCode == HTTP_TOO_MANY_REQUESTS || statusCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+				return Outcome.THROTTLED;
+			}
+			return statusCode >= 500 ? Outcome.RETRYABLE : Outcome.FAILED;
+		}
+		if (ex instanceof FileSystemException) {
+			return Outcome.FAILED; // a local file error, e.g. the destination file already exists
+		}
+		return ex instanceof IOException ? Outcome.RETRYABLE : Outcome.FAILED;
+	}
+
+
+	private static void sleep(long nanos) {
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting to retry", ex);
+		}
+	}
+}
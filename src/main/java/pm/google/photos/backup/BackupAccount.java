@@ -0,0 +1,152 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+
+/**
+ * An account backed up by a multi-account backup, as configured in the accounts file.
+ *
+ * <p>
+ * The accounts file is a properties file which lists the names of the accounts and the
+ * properties of each account, prefixed with its name:
+ * <pre>
+ * accounts = alice, bob
+ *
+ * alice.client_secret = /etc/photos-backup/client_secret.json
+ * alice.backup_dir = /backup/alice
+ *
+ * bob.client_secret = /etc/photos-backup/client_secret.json
+ * bob.backup_dir = /backup/bob
+ * bob.parallelism = 2
+ * bob.metrics_file = /var/lib/node_exporter/photos_backup_bob.prom
+ * </pre>
+ * The parallelism and the metrics file are optional.
+ * </p>
+ */
+public class BackupAccount {
+
+	private static final String PROPERTY_ACCOUNTS = "accounts";
+	private static final String PROPERTY_CLIENT_SECRET = "client_secret";
+	private static final String PROPERTY_BACKUP_DIR = "backup_dir";
+	private static final String PROPERTY_PARALLELISM = "parallelism";
+	private static final String PROPERTY_METRICS_FILE = "metrics_file";
+
+
+	private final String name;
+	private final File clientSecretFile;
+	private final File backupDir;
+
+	private int parallelism = 0;
+	private File metricsFile = null;
+
+
+	public BackupAccount(String name, File clientSecretFile, File backupDir) {
+		this.name = name;
+		this.clientSecretFile = clientSecretFile;
+		this.backupDir = backupDir;
+	}
+
+
+	public String getName() {
+		return this.name;
+	}
+
+
+	public File getClientSecretFile() {
+		return this.clientSecretFile;
+	}
+
+
+	public File getBackupDir() {
+		return this.backupDir;
+	}
+
+
+	/**
+	 * Returns the maximum number of concurrent downloads of the account or 0 if not limited.
+	 */
+	public int getParallelism() {
+		return this.parallelism;
+	}
+
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+
+	public File getMetricsFile() {
+		return this.metricsFile;
+	}
+
+
+	public void setMetricsFile(File metricsFile) {
+		this.metricsFile = metricsFile;
+	}
+
+
+	/**
+	 * Reads the accounts from the specified accounts file.
+	 * @param accountsFile
+	 */
+	public static List<BackupAccount> load(File accountsFile) {
+		Properties properties = new Properties();
+		try (Reader reader = new FileReader(accountsFile)) {
+			properties.load(reader);
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to read accounts file " + accountsFile.getAbsolutePath(), ex);
+		}
+
+		List<BackupAccount> accounts = new ArrayList<>();
+		for (String name : properties.getProperty(PROPERTY_ACCOUNTS, "").split(",")) {
+			name = name.trim();
+			if (name.isEmpty()) {
+				continue;
+			}
+			BackupAccount account = new BackupAccount(name,
+					new File(getRequiredProperty(properties, name, PROPERTY_CLIENT_SECRET, accountsFile)),
+					new File(getRequiredProperty(properties, name, PROPERTY_BACKUP_DIR, accountsFile)));
+
+			String parallelism = properties.getProperty(name + "." + PROPERTY_PARALLELISM);
+			if (parallelism != null) {
+				account.setParallelism(parsePositiveInt(parallelism, name + "." + PROPERTY_PARALLELISM, accountsFile));
+			}
+			String metricsFile = properties.getProperty(name + "." + PROPERTY_METRICS_FILE);
+			if (metricsFile != null) {
+				account.setMetricsFile(new File(metricsFile.trim()));
+			}
+			accounts.add(account);
+		}
+
+		if (accounts.isEmpty()) {
+			throw new RuntimeException("No accounts in accounts file " + accountsFile.getAbsolutePath());
+		}
+		return accounts;
+	}
+
+
+	private static int parsePositiveInt(String value, String property, File accountsFile) {
+		try {
+			int number = Integer.parseInt(value.trim());
+			if (number < 1) throw new NumberFormatException();
+			return number;
+		} catch (NumberFormatException ex) {
+			throw new RuntimeException("Invalid " + property + " in accounts file " + accountsFile.getAbsolutePath() + ": " + value);
+		}
+	}
+
+
+	private static String getRequiredProperty(Properties properties, String account, String property, File accountsFile) {
+		String value = properties.getProperty(account + "." + property);
+		if (value == null || value.isBlank()) {
+			throw new RuntimeException("Missing " + account + "." + property + " in accounts file " + accountsFile.getAbsolutePath());
+		}
+		return value.trim();
+	}
+}
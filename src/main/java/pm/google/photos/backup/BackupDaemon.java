@@ -0,0 +1,171 @@
+package pm.google.photos.backup;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+
+
+/**
+ * Runs the backup repeatedly in a long-running process, so the credentials, the library client
+ * and the index are loaded once instead of by every run.
+ *
+ * <p>
+ * Every sync interval an incremental sync backs up the items created in the last few days,
+ * which is where the new items of the library appear, so they are backed up within minutes
+ * at the cost of listing a few days. Every reconcile interval, starting with the first sync,
+ * a full sync backs up the whole date range of the backup, which also picks up the older items
+ * added to the library and the items removed from it. A failed sync is reported and the daemon
+ * goes on, a failed full sync is repeated by the next sync.
+ * </p>
+ *
+ * <p>
+ * Only the full syncs use the listing checkpoint of the backup. An incremental sync lists a few
+ * days, which is cheap to list again, and resuming its listing would hide the new items.
+ * </p>
+ */
+public class BackupDaemon {
+
+	public static final Duration DEFAULT_SYNC_INTERVAL = Duration.ofMinutes(15);
+	public static final int DEFAULT_SYNC_DAYS = 7;
+	public static final Duration DEFAULT_RECONCILE_INTERVAL = Duration.ofHours(24);
+
+
+	private final Clock clock;
+
+	private Duration syncInterval = DEFAULT_SYNC_INTERVAL;
+	private int syncDays = DEFAULT_SYNC_DAYS;
+	private Duration reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+
+	private Runnable afterSync = null;
+
+
+	public BackupDaemon() {
+		this(Clock.systemDefaultZone());
+	}
+
+	BackupDaemon(Clock clock) {
+		this.clock = clock;
+	}
+
+
+	/**
+	 * Sets the time from the start of a sync to the start of the next sync.
+	 * @param syncInterval
+	 */
+	public void setSyncInterval(Duration syncInterval) {
+		if (syncInterval.isNegative() || syncInterval.isZero()) {
+			throw new IllegalArgumentException("sync interval must be positive: " + syncInterval);
+		}
+		this.syncInterval = syncInterval;
+	}
+
+
+	/**
+	 * Sets the number of days before today whose items are backed up by an incremental sync.
+	 * @param syncDays
+	 */
+	public void setSyncDays(int syncDays) {
+		if (syncDays < 1) {
+			throw new IllegalArgumentException("sync days must be positive: " + syncDays);
+		}
+		this.syncDays = syncDays;
+	}
+
+
+	/**
+	 * Sets the time from the start of a full sync to the start of the next full sync.
+	 * @param reconcileInterval
+	 */
+	public void setReconcileInterval(Duration reconcileInterval) {
+		if (reconcileInterval.isNegative() || reconcileInterval.isZero()) {
+			throw new IllegalArgumentException("reconcile interval must be positive: " + reconcileInterval);
+		}
+		this.reconcileInterval = reconcileInterval;
+	}
+
+
+	/**
+	 * Sets an action which is run after each sync, also a failed one, e.g. to commit the index and write the metrics.
+	 * @param afterSync
+	 */
+	public void setAfterSync(Runnable afterSync) {
+		this.afterSync = afterSync;
+	}
+
+
+	/**
+	 * Runs the syncs with the specified backup until the thread is interrupted. The date range
+	 * of the backup is the range of the full syncs, the incremental syncs narrow it.
+	 * @param backup
+	 */
+	public void run(PhotosBackupRunner backup) {
+
+		LocalDate startDate = backup.getStartDate();
+		LocalDate endDate = backup.getEndDate();
+		ListingCheckpoint listingCheckpoint = backup.getListingCheckpoint();
+
+		Instant nextReconcile = Instant.MIN;
+		Instant nextSync = this.clock.instant();
+
+		while (sleepUntil(nextSync)) {
+
+			Instant syncStart = this.clock.instant();
+			boolean reconcile = !syncStart.isBefore(nextReconcile);
+
+			LocalDate syncStartDate = startDate;
+			if (!reconcile) {
+				LocalDate windowStart = LocalDate.now(this.clock).minusDays(this.syncDays);
+				if (startDate == null || startDate.isBefore(windowStart)) {
+					syncStartDate = windowStart;
+				}
+			}
+			backup.setStartDate(syncStartDate);
+			backup.setEndDate(endDate);
+			backup.setListingCheckpoint(reconcile ? listingCheckpoint : null);
+
+			System.out.println(reconcile ? "Starting full sync..." :
+					"Starting incremental sync of the items created since " + syncStartDate + "...");
+			try {
+				try {
+					backup.run();
+					if (reconcile) {
+						nextReconcile = syncStart.plus(this.reconcileInterval);
+					}
+				} finally {
+					if (this.afterSync != null) {
+						this.afterSync.run();
+					}
+				}
+			} catch (RuntimeException ex) {
+				ex.printStackTrace();
+				System.out.println("Sync failed: " + ex.getMessage());
+			}
+
+			// a sync which took longer than the interval is followed by the next sync immediately
+			nextSync = syncStart.plus(this.syncInterval);
+		}
+
+		backup.setStartDate(startDate);
+		backup.setEndDate(endDate);
+		backup.setListingCheckpoint(listingCheckpoint);
+	}
+
+
+	/**
+	 * Sleeps until the specified time.
+	 * @return false if the thread was interrupted
+	 */
+	private boolean sleepUntil(Instant time) {
+		long millis = Duration.between(this.clock.instant(), time).toMillis();
+		try {
+			if (millis > 0) {
+				Thread.sleep(millis);
+			}
+			return !Thread.currentThread().isInterrupted();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
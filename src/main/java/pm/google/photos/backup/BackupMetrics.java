@@ -0,0 +1,355 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * Metrics of a backup run - phase timers, API call latencies, download throughput and item counters.
+ *
+ * <p>
+ * The timed phases and API calls and the downloads are also emitted as custom JFR events, so they
+ * can be correlated with the JVM events in a flight recording. The events cost nothing while
+ * no recording is running.
+ * </p>
+ *
+ * <p>
+ * At the end of a run the metrics are written in the Prometheus text format, to a file which can be
+ * picked up by the node exporter textfile collector. The durations are histograms with fixed buckets.
+ * </p>
+ *
+ * <p>
+ * A long-running process starts the metrics of each run with {@link #startRun()}, the durations,
+ * the download throughput and the counts are then of the current run. Only the {@code _total}
+ * counters of the Prometheus file are cumulative over the runs of the process.
+ * </p>
+ */
+public class BackupMetrics {
+
+	public static final String PHASE_INDEX_SCAN = "index_scan";
+	public static final String PHASE_LISTING = "listing";
+	public static final String PHASE_DIFF = "diff";
+	public static final String PHASE_URL_REFRESH = "url_refresh";
+	public static final String PHASE_DOWNLOAD = "download";
+	public static final String PHASE_REMOVAL = "removal";
+	public static final String PHASE_INDEX_WRITE = "index_write";
+
+	public static final String ITEMS_LISTED = "items_listed";
+	public static final String ITEMS_NEW = "items_new";
+	public static final String ITEMS_DOWNLOADED = "items_downloaded";
+	public static final String ITEMS_FAILED = "items_failed";
+	public static final String ITEMS_REMOVED = "items_removed";
+	public static final String ITEMS_LINKED = "items_linked";
+
+	private static final String METRIC_PREFIX = "google_photos_backup_";
+
+	/**
+	 * The upper bounds of the API call duration histogram buckets in seconds.
+	 */
+	private static final double[] API_CALL_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300 };
+
+	/**
+	 * The upper bounds of the phase duration histogram buckets in seconds. A phase may be timed
+	 * per item, e.g. a download, or per run, e.g. the listing of a large library, which takes hours.
+	 */
+	private static final double[] PHASE_BUCKETS = { 0.01, 0.1, 0.5, 1, 5, 10, 30, 60, 300, 900, 1800, 3600, 7200, 14400, 28800, 86400 };
+
+
+	private volatile long startTime = System.nanoTime();
+
+	private final ConcurrentMap<String, Histogram> phaseDurations = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Histogram> apiCallDurations = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+	private final LongAdder downloadedBytes = new LongAdder();
+	private final AtomicLong firstDownloadStart = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong lastDownloadEnd = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * The counters and the downloaded bytes of all runs, for the Prometheus counters.
+	 */
+	private final ConcurrentMap<String, LongAdder> totalCounters = new ConcurrentHashMap<>();
+	private final LongAdder totalDownloadedBytes = new LongAdder();
+
+
+	/**
+	 * Starts the metrics of a new run, e.g. the next sync of a daemon. Must not be called while
+	 * the previous run is recording metrics.
+	 */
+	public void startRun() {
+		this.startTime = System.nanoTime();
+		this.phaseDurations.clear();
+		this.apiCallDurations.clear();
+		this.counters.clear();
+		this.downloadedBytes.reset();
+		this.firstDownloadStart.set(Long.MAX_VALUE);
+		this.lastDownloadEnd.set(Long.MIN_VALUE);
+	}
+
+
+	/**
+	 * Starts timing the specified phase, the returned timer must be closed at the end of the phase.
+	 * @param phase
+	 */
+	public Timer startPhase(String phase) {
+		PhaseEvent event = new PhaseEvent();
+		event.phase = phase;
+		return new Timer(this.phaseDurations.computeIfAbsent(phase, name -> new Histogram(PHASE_BUCKETS)), event);
+	}
+
+
+	/**
+	 * Starts timing a call of the specified API method, the returned timer must be closed when the call returns.
+	 * @param method
+	 */
+	public Timer startApiCall(String method) {
+		ApiCallEvent event = new ApiCallEvent();
+		event.method = method;
+		return new Timer(this.apiCallDurations.computeIfAbsent(method, name -> new Histogram(API_CALL_BUCKETS)), event);
+	}
+
+
+	/**
+	 * Records a completed download, started at the specified {@link System#nanoTime()}.
+	 * @param itemId
+	 * @param bytes
+	 * @param startNanos
+	 */
+	public void recordDownload(String itemId, long bytes, long startNanos) {
+		long endNanos = System.nanoTime();
+		this.downloadedBytes.add(bytes);
+		this.totalDownloadedBytes.add(bytes);
+		this.firstDownloadStart.accumulateAndGet(startNanos, Math::min);
+		this.lastDownloadEnd.accumulateAndGet(endNanos, Math::max);
+
+		DownloadEvent event = new DownloadEvent();
+		if (event.shouldCommit()) {
+			event.itemId = itemId;
+			event.bytes = bytes;
+			event.commit();
+		}
+	}
+
+
+	public void increment(String counter) {
+		this.counters.computeIfAbsent(counter, name -> new LongAdder()).increment();
+		this.totalCounters.computeIfAbsent(counter, name -> new LongAdder()).increment();
+	}
+
+
+	/**
+	 * Returns the count of the specified counter in the current run.
+	 * @param counter
+	 */
+	public long getCount(String counter) {
+		LongAdder adder = this.counters.get(counter);
+		return adder != null ? adder.sum() : 0;
+	}
+
+
+	/**
+	 * Returns the download throughput in bytes per second, over the time from the start of
+	 * the first download until the end of the last one.
+	 */
+	public long getDownloadThroughput() {
+		long elapsedNanos = this.lastDownloadEnd.get() - this.firstDownloadStart.get();
+		return elapsedNanos > 0 ? (long)(this.downloadedBytes.sum() * 1e9 / elapsedNanos) : 0;
+	}
+
+
+	/**
+	 * Prints the phase durations and the download throughput.
+	 */
+	public void printSummary() {
+		if (this.phaseDurations.isEmpty()) {
+			return;
+		}
+		StringBuilder summary = new StringBuilder("Phase durations:");
+		new TreeMap<>(this.phaseDurations).forEach((phase, histogram) ->
+				summary.append(String.format(Locale.ROOT, " %s %.1f s (%d),", phase, histogram.sumNanos.sum() / 1e9, histogram.count.sum())));
+		summary.setLength(summary.length() - 1);
+		System.out.println(summary);
+		System.out.printf("Downloaded %d MB at %.1f MB/s.\n",
+				this.downloadedBytes.sum() / (1024 * 1024), getDownloadThroughput() / (1024.0 * 1024));
+	}
+
+
+	/**
+	 * Writes the metrics in the Prometheus text format. The file is written to a temporary file
+	 * which is renamed to the specified file, so the collector never reads a partial file.
+	 * @param file
+	 */
+	public void writePrometheusFile(File file) {
+		StringWriter text = new StringWriter();
+		PrintWriter out = new PrintWriter(text);
+
+		writeHistograms(out, "phase_duration_seconds", "Duration of the backup phases of the run", "phase", this.phaseDurations);
+		writeHistograms(out, "api_call_duration_seconds", "Duration of the Photos Library API calls of the run", "method", this.apiCallDurations);
+
+		for (Map.Entry<String, LongAdder> counter : new TreeMap<>(this.totalCounters).entrySet()) {
+			writeMetric(out, counter.getKey() + "_total", "counter", "Number of " + counter.getKey().replace('_', ' '), counter.getValue().sum());
+		}
+		writeMetric(out, "downloaded_bytes_total", "counter", "Number of downloaded bytes", this.totalDownloadedBytes.sum());
+		writeMetric(out, "download_throughput_bytes_per_second", "gauge", "Download throughput of the run", getDownloadThroughput());
+		writeMetric(out, "run_duration_seconds", "gauge", "Duration of the run",
+				(System.nanoTime() - this.startTime) / 1e9);
+		writeMetric(out, "last_run_timestamp_seconds", "gauge", "End time of the run",
+				System.currentTimeMillis() / 1000);
+		out.flush();
+
+		try {
+			FileUtils.createParentDirectories(file);
+			File tempFile = new File(file.getPath() + ".tmp");
+			Files.write(tempFile.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to write metrics file " + file, ex);
+		}
+	}
+
+
+	/**
+	 * Formats the specified duration for the run reports, e.g. "59.3 seconds" or "1 h 2 min 5 s".
+	 * @param nanos
+	 */
+	public static String formatDuration(long nanos) {
+		long seconds = TimeUnit.NANOSECONDS.toSeconds(nanos);
+		if (seconds < 60) {
+			return String.format(Locale.ROOT, "%.1f seconds", nanos / 1e9);
+		}
+		if (seconds < 3600) {
+			return String.format("%d min %d s", seconds / 60, seconds % 60);
+		}
+		return String.format("%d h %d min %d s", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+
+
+	private static void writeHistograms(PrintWriter out, String name, String help, String label, Map<String, Histogram> histograms) {
+		if (histograms.isEmpty()) {
+			return;
+		}
+		out.printf("# HELP %s%s %s\n", METRIC_PREFIX, name, help);
+		out.printf("# TYPE %s%s histogram\n", METRIC_PREFIX, name);
+		for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+			Histogram histogram = entry.getValue();
+			long cumulativeCount = 0;
+			for (int i = 0; i < histogram.bounds.length; i++) {
+				cumulativeCount += histogram.buckets.get(i);
+				out.printf(Locale.ROOT, "%s%s_bucket{%s=\"%s\",le=\"%s\"} %d\n", METRIC_PREFIX, name, label, entry.getKey(), histogram.bounds[i], cumulativeCount);
+			}
+			out.printf("%s%s_bucket{%s=\"%s\",le=\"+Inf\"} %d\n", METRIC_PREFIX, name, label, entry.getKey(), histogram.count.sum());
+			out.printf(Locale.ROOT, "%s%s_sum{%s=\"%s\"} %.6f\n", METRIC_PREFIX, name, label, entry.getKey(), histogram.sumNanos.sum() / 1e9);
+			out.printf("%s%s_count{%s=\"%s\"} %d\n", METRIC_PREFIX, name, label, entry.getKey(), histogram.count.sum());
+		}
+	}
+
+
+	private static void writeMetric(PrintWriter out, String name, String type, String help, Number value) {
+		out.printf("# HELP %s%s %s\n", METRIC_PREFIX, name, help);
+		out.printf("# TYPE %s%s %s\n", METRIC_PREFIX, name, type);
+		out.printf(Locale.ROOT, "%s%s %s\n", METRIC_PREFIX, name, value);
+	}
+
+
+	/**
+	 * Times a phase or an API call, closing the timer records the duration and commits the JFR event.
+	 */
+	public static class Timer implements AutoCloseable {
+
+		private final Histogram histogram;
+		private final Event event;
+		private final long startNanos = System.nanoTime();
+
+		private Timer(Histogram histogram, Event event) {
+			this.histogram = histogram;
+			this.event = event;
+			this.event.begin();
+		}
+
+		@Override
+		public void close() {
+			this.histogram.record(System.nanoTime() - this.startNanos);
+			this.event.commit();
+		}
+	}
+
+
+	private static class Histogram {
+
+		private final double[] bounds;
+		private final AtomicLongArray buckets;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sumNanos = new LongAdder();
+
+		Histogram(double[] bounds) {
+			this.bounds = bounds;
+			this.buckets = new AtomicLongArray(bounds.length);
+		}
+
+		void record(long nanos) {
+			double seconds = nanos / 1e9;
+			for (int i = 0; i < this.bounds.length; i++) {
+				if (seconds <= this.bounds[i]) {
+					this.buckets.incrementAndGet(i);
+					break;
+				}
+			}
+			this.count.increment();
+			this.sumNanos.add(nanos);
+		}
+	}
+
+
+	@Name("pm.google.photos.backup.Phase")
+	@Label("Backup Phase")
+	@Category("Google Photos Backup")
+	static class PhaseEvent extends Event {
+
+		@Label("Phase")
+		String phase;
+	}
+
+
+	@Name("pm.google.photos.backup.ApiCall")
+	@Label("Photos Library API Call")
+	@Category("Google Photos Backup")
+	static class ApiCallEvent extends Event {
+
+		@Label("Method")
+		String method;
+	}
+
+
+	@Name("pm.google.photos.backup.Download")
+	@Label("Media Item Download")
+	@Category("Google Photos Backup")
+	static class DownloadEvent extends Event {
+
+		@Label("Media Item Id")
+		String itemId;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+	}
+}
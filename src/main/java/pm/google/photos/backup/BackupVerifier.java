@@ -0,0 +1,245 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+
+/**
+ * Verifies the integrity of the backup tree against the downloaded photos index.
+ *
+ * Each indexed file is checked to exist and, if the index has its content hash, to have the
+ * recorded size and content hash. The files are verified concurrently, reading them
+ * sequentially in large blocks, and the photos directory is walked at the same time to find
+ * the files which are not in the index. The bad items can be removed from the index together
+ * with their files, so they are downloaded again by the next backup.
+ */
+public class BackupVerifier {
+
+	/**
+	 * The maximum number of indexed items waiting for a free verification worker.
+	 */
+	private static final int MAX_QUEUED_ITEMS = 1000;
+
+	private final DownloadedPhotosIndex photosIndex;
+	private final File backupDir;
+
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private ByteRateLimiter rateLimiter = null;
+	private boolean repair = false;
+
+	private final AtomicInteger verifiedCount = new AtomicInteger();
+	private final AtomicInteger uncheckedCount = new AtomicInteger();
+	private final AtomicInteger unreadableCount = new AtomicInteger();
+	private final AtomicLong verifiedBytes = new AtomicLong();
+	private final List<DownloadedMediaItem> badItems = Collections.synchronizedList(new ArrayList<>());
+
+
+	public BackupVerifier(DownloadedPhotosIndex photosIndex, File backupDir) {
+		this.photosIndex = photosIndex;
+		this.backupDir = backupDir;
+	}
+
+
+	/**
+	 * Sets the maximum number of files which are verified concurrently.
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+
+	/**
+	 * Sets the maximum number of bytes per second read from the backup directory.
+	 * @param bytesPerSecond the rate limit or 0 for no limit
+	 */
+	public void setRateLimit(long bytesPerSecond) {
+		this.rateLimiter = bytesPerSecond > 0 ? new ByteRateLimiter(bytesPerSecond) : null;
+	}
+
+
+	/**
+	 * Sets whether the bad items are removed from the index and their files deleted,
+	 * so they are downloaded again by the next backup.
+	 * @param repair
+	 */
+	public void setRepair(boolean repair) {
+		this.repair = repair;
+	}
+
+
+	/**
+	 * Verifies the backup tree and prints a report. Files which could not be read, e.g. because of
+	 * a transient I/O error, are reported but are not bad items and are not repaired.
+	 * @return true if all files could be read and no bad items were found, or they were all repaired
+	 */
+	public boolean run() {
+
+		System.out.println("Verifying " + this.backupDir + "...");
+		long startTime = System.nanoTime();
+
+		List<DownloadedMediaItem> items = this.photosIndex.findItems(null, null, null);
+		Set<String> indexedFiles = new HashSet<>();
+		for (DownloadedMediaItem item : items) {
+			if (item.getFilePath() != null) {
+				indexedFiles.add(Paths.get(item.getFilePath()).toString());
+			}
+		}
+
+		// the backup directory is walked while the indexed files are verified
+		CompletableFuture<List<String>> untrackedFilesResult = CompletableFuture.supplyAsync(
+				() -> findUntrackedFiles(indexedFiles), runnable -> new Thread(runnable, "verify-tree").start());
+
+		DownloadWorkers workers = new DownloadWorkers(this.parallelism, MAX_QUEUED_ITEMS);
+		try (workers) {
+			for (DownloadedMediaItem item : items) {
+				if (!workers.submit(() -> verifyItem(item))) {
+					break;
+				}
+			}
+		}
+		workers.throwIfFailed();
+		List<String> untrackedFiles = getUntrackedFiles(untrackedFilesResult);
+
+		for (String untrackedFile : untrackedFiles) {
+			System.out.println("Not in the index: " + untrackedFile);
+		}
+
+		long elapsedSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime));
+		System.out.printf("%d items verified, %d items without a content hash checked for existence only, "
+				+ "%d bad items, %d items could not be read, %d files not in the index.\n",
+				this.verifiedCount.get(), this.uncheckedCount.get(), this.badItems.size(), this.unreadableCount.get(),
+				untrackedFiles.size());
+		System.out.printf("Verification finished in %d seconds, %d MB read.\n",
+				elapsedSeconds, this.verifiedBytes.get() / (1024 * 1024));
+
+		boolean repaired = this.repair && !this.badItems.isEmpty() && repairBadItems();
+		return (this.badItems.isEmpty() || repaired) && this.unreadableCount.get() == 0;
+	}
+
+
+	/**
+	 * Deletes the files of the bad items and removes the items whose files are gone from the index.
+	 * @return true if all bad items were removed
+	 */
+	private boolean repairBadItems() {
+		List<Path> filePaths = new ArrayList<>();
+		for (DownloadedMediaItem item : this.badItems) {
+			if (item.getFilePath() != null) {
+				filePaths.add(Paths.get(item.getFilePath()));
+			}
+		}
+		BatchFileRemover fileRemover = new BatchFileRemover(this.backupDir);
+		fileRemover.setParallelism(this.parallelism);
+		fileRemover.deleteFiles(filePaths);
+
+		// an item whose file is left stays in the index, so the file is not replaced by another copy
+		List<DownloadedMediaItem> removedItems = new ArrayList<>();
+		for (DownloadedMediaItem item : this.badItems) {
+			if (item.getFilePath() == null || !new File(this.backupDir, item.getFilePath()).exists()) {
+				removedItems.add(item);
+			} else {
+				System.out.println("Failed to delete: " + item.getFilePath());
+			}
+		}
+		this.photosIndex.removeItems(removedItems);
+		System.out.printf("%d bad items removed from the index, they will be downloaded by the next backup.\n", removedItems.size());
+		return removedItems.size() == this.badItems.size();
+	}
+
+
+	private void verifyItem(DownloadedMediaItem item) {
+		if (item.getFilePath() == null) {
+			reportBadItem(item, "No file path");
+			return;
+		}
+
+		File file = new File(this.backupDir, item.getFilePath());
+		if (!file.isFile()) {
+			reportBadItem(item, "Missing");
+			return;
+		}
+
+		if (item.getContentHash() == null) {
+			this.uncheckedCount.incrementAndGet();
+			return;
+		}
+
+		long fileSize = file.length();
+		if (fileSize != item.getFileSize()) {
+			reportBadItem(item, String.format("Size mismatch, expected %d bytes but found %d", item.getFileSize(), fileSize));
+			return;
+		}
+
+		try {
+			MessageDigest digest = FileUtils.newContentDigest();
+			FileUtils.digest(file, fileSize, digest, this.rateLimiter);
+			this.verifiedBytes.addAndGet(fileSize);
+			if (!item.getContentHash().equals(FileUtils.toHex(digest.digest()))) {
+				reportBadItem(item, "Content hash mismatch");
+				return;
+			}
+		} catch (IOException ex) {
+			// not a bad item, the file may be intact
+			this.unreadableCount.incrementAndGet();
+			System.out.println("Read failed: " + item.getFilePath() + ": " + ex.getMessage());
+			return;
+		}
+		this.verifiedCount.incrementAndGet();
+	}
+
+
+	private void reportBadItem(DownloadedMediaItem item, String problem) {
+		System.out.println(problem + ": " + (item.getFilePath() != null ? item.getFilePath() : item.getId()));
+		this.badItems.add(item);
+	}
+
+
+	/**
+	 * Returns the relative paths of the regular files in the backup directory which are not in the index.
+	 */
+	private List<String> findUntrackedFiles(Set<String> indexedFiles) {
+		if (!this.backupDir.isDirectory()) {
+			return Collections.emptyList();
+		}
+		Path backupPath = this.backupDir.toPath();
+		try (Stream<Path> files = Files.walk(backupPath)) {
+			return files
+					.filter(Files::isRegularFile)
+					.map(file -> backupPath.relativize(file).toString())
+					.filter(file -> !indexedFiles.contains(file))
+					.sorted()
+					.toList();
+		} catch (IOException | UncheckedIOException ex) {
+			throw new RuntimeException("Failed to walk the backup directory " + this.backupDir, ex);
+		}
+	}
+
+
+	private static List<String> getUntrackedFiles(CompletableFuture<List<String>> result) {
+		try {
+			return result.join();
+		} catch (CompletionException ex) {
+			throw ex.getCause() instanceof RuntimeException ? (RuntimeException)ex.getCause() : ex;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Deletes a batch of files from a root directory together with the directories left empty.
+ *
+ * The files are grouped by their parent directory and the groups are deleted concurrently,
+ * in chunks so that a directory with many deleted files is also spread over the workers.
+ * Each affected directory is checked for emptiness once, after all files have been deleted,
+ * starting with the deepest directories so that a parent emptied by the deletion of its
+ * subdirectories is deleted as well.
+ */
+public class BatchFileRemover {
+
+	/**
+	 * The maximum number of files of the same directory deleted by one task.
+	 */
+	private static final int FILES_PER_TASK = 256;
+
+	/**
+	 * The maximum number of tasks waiting for a free worker.
+	 */
+	private static final int MAX_QUEUED_TASKS = 100;
+
+	private final File rootDir;
+
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+
+	public BatchFileRemover(File rootDir) {
+		if (!rootDir.isDirectory()) {
+			throw new IllegalArgumentException("rootDir is not a directory:" + rootDir);
+		}
+		this.rootDir = rootDir;
+	}
+
+
+	/**
+	 * Sets the maximum number of files which are deleted concurrently.
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+
+	/**
+	 * Deletes the files with the specified paths and all parent directories, up to the root
+	 * directory, which are left empty.
+	 * @param pathsToDelete paths relative to the root directory
+	 * @return the number of deleted files, files which do not exist are not counted
+	 */
+	public int deleteFiles(Collection<Path> pathsToDelete) {
+
+		Map<File, List<File>> filesByDir = new LinkedHashMap<>();
+		for (Path pathToDelete : pathsToDelete) {
+			if (pathToDelete.isAbsolute()) {
+				throw new IllegalArgumentException("pathToDelete is not a relative path:" + pathToDelete);
+			}
+			File fileToDelete = this.rootDir.toPath().resolve(pathToDelete).toFile();
+			filesByDir.computeIfAbsent(fileToDelete.getParentFile(), dir -> new ArrayList<>()).add(fileToDelete);
+		}
+
+		AtomicInteger deletedCount = new AtomicInteger();
+		DownloadWorkers workers = new DownloadWorkers(this.parallelism, MAX_QUEUED_TASKS);
+		try (workers) {
+			submit:
+			for (List<File> files : filesByDir.values()) {
+				for (int from = 0; from < files.size(); from += FILES_PER_TASK) {
+					List<File> chunk = files.subList(from, Math.min(files.size(), from + FILES_PER_TASK));
+					if (!workers.submit(() -> deletedCount.addAndGet(delete(chunk)))) {
+						break submit;
+					}
+				}
+			}
+		}
+		workers.throwIfFailed();
+
+		deleteEmptyDirectories(filesByDir.keySet());
+		return deletedCount.get();
+	}
+
+
+	private static int delete(List<File> files) {
+		int deletedCount = 0;
+		for (File file : files) {
+			if (file.delete()) {
+				deletedCount++;
+			}
+		}
+		return deletedCount;
+	}
+
+
+	/**
+	 * Deletes the specified directories and their parents up to the root directory if they are empty,
+	 * the deepest directories first. Each directory is checked at most once.
+	 */
+	private void deleteEmptyDirectories(Collection<File> dirs) {
+		Set<File> candidateDirs = new HashSet<>();
+		for (File dir : dirs) {
+			while (dir != null && !dir.equals(this.rootDir) && candidateDirs.add(dir)) {
+				dir = dir.getParentFile();
+			}
+		}
+
+		// a parent is checked after all of its affected subdirectories have been deleted
+		List<File> sortedDirs = new ArrayList<>(candidateDirs);
+		sortedDirs.sort(Comparator.comparingInt((File dir) -> dir.toPath().getNameCount()).reversed());
+		for (File dir : sortedDirs) {
+			if (isEmptyDirectory(dir)) {
+				dir.delete();
+			}
+		}
+	}
+
+
+	/**
+	 * Checks if the specified directory is empty, without listing all of its entries.
+	 */
+	private static boolean isEmptyDirectory(File dir) {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath())) {
+			return !entries.iterator().hasNext();
+		} catch (IOException ex) {
+			return false; // the directory does not exist or cannot be read
+		}
+	}
+}
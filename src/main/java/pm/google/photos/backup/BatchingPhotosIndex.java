@@ -0,0 +1,270 @@
+package pm.google.photos.backup;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * A downloaded photos index which buffers the added and removed items and commits them to
+ * the underlying index in groups, instead of one transaction per item.
+ *
+ * A group is committed when it reaches the maximum batch size, when its oldest mutation is
+ * older than the maximum batch delay, before any query and when the index is closed. Items are
+ * added to the index only after their files are completely downloaded, so the buffered mutations
+ * never refer to partial files.
+ *
+ * A group is committed without holding the lock of the index, so the lookups and the mutations
+ * of the download workers are not blocked while the files of the group are synced. The mutations
+ * of a group which failed to commit, e.g. because a file could not be synced, stay pending. The
+ * failure of a full group or of a timed commit is reported and the commit is retried by the timer,
+ * an explicit flush - a query, the close or {@link #flush()} - throws it.
+ */
+public class BatchingPhotosIndex implements DownloadedPhotosIndex {
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+	public static final Duration DEFAULT_MAX_BATCH_DELAY = Duration.ofSeconds(5);
+
+
+	private final DownloadedPhotosIndex index;
+	private final int maxBatchSize;
+	private final long maxBatchDelayNanos;
+
+	/**
+	 * The last pending mutation of each item, in the order of the mutations.
+	 * A null value means that the item is removed. Guarded by {@code this}.
+	 */
+	private Map<String, DownloadedMediaItem> pendingItems = new LinkedHashMap<>();
+	private Map<String, DownloadedMediaItem> pendingRemovals = new LinkedHashMap<>();
+	private long firstPendingTime;
+	private boolean closed = false;
+
+	/**
+	 * The mutations of the group which is being committed, looked up like the pending ones
+	 * until the commit finishes. Guarded by {@code this}.
+	 */
+	private Map<String, DownloadedMediaItem> committingItems = Map.of();
+
+	/**
+	 * Serializes the commits of the groups, it is never acquired while holding {@code this}.
+	 */
+	private final Object flushLock = new Object();
+
+	private volatile Runnable beforeCommit = null;
+
+	private final ScheduledExecutorService flushScheduler;
+
+
+	public BatchingPhotosIndex(DownloadedPhotosIndex index) {
+		this(index, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_DELAY);
+	}
+
+	public BatchingPhotosIndex(DownloadedPhotosIndex index, int maxBatchSize, Duration maxBatchDelay) {
+		this.index = index;
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchDelayNanos = maxBatchDelay.toNanos();
+
+		this.flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "index-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1, maxBatchDelay.toMillis() / 2);
+		this.flushScheduler.scheduleWithFixedDelay(this::flushIfDue, period, period, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Sets an action which is run before each group of mutations is committed, e.g. to sync the
+	 * downloaded files of the added items, so the index never refers to files which are not durable.
+	 * @param beforeCommit
+	 */
+	public void setBeforeCommit(Runnable beforeCommit) {
+		this.beforeCommit = beforeCommit;
+	}
+
+
+	@Override
+	public synchronized DownloadedMediaItem getItem(String itemId) {
+		if (this.pendingItems.containsKey(itemId)) {
+			return this.pendingItems.get(itemId);
+		}
+		if (this.committingItems.containsKey(itemId)) {
+			return this.committingItems.get(itemId);
+		}
+		return this.index.getItem(itemId);
+	}
+
+
+	@Override
+	public void addItem(DownloadedMediaItem item) {
+		boolean full;
+		synchronized (this) {
+			this.pendingRemovals.remove(item.getId());
+			this.pendingItems.put(item.getId(), item);
+			full = onMutation();
+		}
+		if (full) tryFlush();
+	}
+
+
+	@Override
+	public void removeItem(DownloadedMediaItem item) {
+		boolean full;
+		synchronized (this) {
+			this.pendingRemovals.put(item.getId(), item);
+			this.pendingItems.put(item.getId(), null);
+			full = onMutation();
+		}
+		if (full) tryFlush();
+	}
+
+
+	/**
+	 * Looks up the pending items first, without committing them. An item of the underlying
+	 * index which has a pending mutation is not returned.
+	 */
+	@Override
+	public synchronized DownloadedMediaItem findItemByHash(String contentHash) {
+		for (Map<String, DownloadedMediaItem> items : List.of(this.pendingItems, this.committingItems)) {
+			for (DownloadedMediaItem item : items.values()) {
+				if (item != null && contentHash.equals(item.getContentHash())) {
+					return item;
+				}
+			}
+		}
+		DownloadedMediaItem item = this.index.findItemByHash(contentHash);
+		return item != null && !this.pendingItems.containsKey(item.getId())
+				&& !this.committingItems.containsKey(item.getId()) ? item : null;
+	}
+
+
+	@Override
+	public List<DownloadedMediaItem> findItems(MediaItemType type, LocalDate startDate, LocalDate endDate) {
+		flush();
+		return this.index.findItems(type, startDate, endDate);
+	}
+
+
+	@Override
+	public void forEachItem(MediaItemType type, LocalDate startDate, LocalDate endDate, Consumer<DownloadedMediaItem> action) {
+		flush();
+		this.index.forEachItem(type, startDate, endDate, action);
+	}
+
+
+	/**
+	 * Commits all pending mutations to the underlying index. If the commit fails, the mutations
+	 * stay pending and are committed by the next flush.
+	 */
+	public void flush() {
+		synchronized (this.flushLock) {
+			Map<String, DownloadedMediaItem> items;
+			Map<String, DownloadedMediaItem> removals;
+			synchronized (this) {
+				if (this.pendingItems.isEmpty()) {
+					return;
+				}
+				items = this.pendingItems;
+				removals = this.pendingRemovals;
+				this.committingItems = items;
+				this.pendingItems = new LinkedHashMap<>();
+				this.pendingRemovals = new LinkedHashMap<>();
+			}
+
+			boolean committed = false;
+			try {
+				List<DownloadedMediaItem> addedItems = new ArrayList<>(items.size());
+				for (DownloadedMediaItem item : items.values()) {
+					if (item != null) addedItems.add(item);
+				}
+				List<DownloadedMediaItem> removedItems = new ArrayList<>(removals.values());
+
+				Runnable beforeCommit = this.beforeCommit;
+				if (beforeCommit != null && !addedItems.isEmpty()) beforeCommit.run();
+
+				if (!removedItems.isEmpty()) this.index.removeItems(removedItems);
+				if (!addedItems.isEmpty()) this.index.addItems(addedItems);
+				committed = true;
+
+			} finally {
+				synchronized (this) {
+					this.committingItems = Map.of();
+					if (!committed) {
+						// the mutations made during the commit are newer than the failed group
+						items.putAll(this.pendingItems);
+						removals.putAll(this.pendingRemovals);
+						this.pendingItems = items;
+						this.pendingRemovals = removals;
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Commits the pending mutations and closes the underlying index.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+		}
+		this.flushScheduler.shutdownNow();
+		try {
+			flush();
+		} finally {
+			this.index.close();
+		}
+	}
+
+
+	/**
+	 * Returns true if the pending mutations have just reached the maximum batch size. The group of a
+	 * failed commit stays over the maximum size, its commit is retried by the timer, not by every mutation.
+	 */
+	private boolean onMutation() {
+		if (this.closed) {
+			throw new IllegalStateException("The index is closed");
+		}
+		if (this.pendingItems.size() == 1) {
+			this.firstPendingTime = System.nanoTime();
+		}
+		return this.pendingItems.size() == this.maxBatchSize;
+	}
+
+
+	private void flushIfDue() {
+		synchronized (this) {
+			if (this.closed || this.pendingItems.isEmpty()
+					|| System.nanoTime() - this.firstPendingTime < this.maxBatchDelayNanos) {
+				return;
+			}
+		}
+		tryFlush();
+	}
+
+
+	/**
+	 * Commits the pending mutations and reports a failure, the mutations then stay pending and a
+	 * persistent failure is thrown by the next explicit flush.
+	 */
+	private void tryFlush() {
+		try {
+			flush();
+		} catch (RuntimeException ex) {
+			System.out.println("Failed to commit the index, retrying with the next batch: " + ex.getMessage());
+		}
+	}
+}
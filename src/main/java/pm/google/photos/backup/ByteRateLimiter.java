@@ -0,0 +1,55 @@
+package pm.google.photos.backup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limits the rate at which bytes are read or written, shared by all threads doing the I/O.
+ *
+ * Each call to {@link #acquire(long)} reserves the time needed to transfer the bytes at the
+ * configured rate and sleeps until the previous reservations have passed. Unused time is not
+ * accumulated, so an idle period is not followed by a burst.
+ */
+public class ByteRateLimiter {
+
+	private final double nanosPerByte;
+
+	/**
+	 * The time when the next transfer is allowed to start. Guarded by {@code this}.
+	 */
+	private long nextFreeTime = System.nanoTime();
+
+
+	/**
+	 * @param bytesPerSecond the maximum number of bytes per second
+	 */
+	public ByteRateLimiter(long bytesPerSecond) {
+		if (bytesPerSecond < 1) {
+			throw new IllegalArgumentException("bytesPerSecond must be positive: " + bytesPerSecond);
+		}
+		this.nanosPerByte = (double)TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+	}
+
+
+	/**
+	 * Blocks until the specified number of bytes may be transferred.
+	 * @param bytes
+	 */
+	public void acquire(long bytes) {
+		long waitTime;
+		synchronized (this) {
+			long now = System.nanoTime();
+			long startTime = Math.max(now, this.nextFreeTime);
+			this.nextFreeTime = startTime + (long)(bytes * this.nanosPerByte);
+			waitTime = startTime - now;
+		}
+		if (waitTime > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitTime);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for the I/O rate limit", ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,477 @@
+package pm.google.photos.backup;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+
+/**
+ * Memory-compact in-memory downloaded photos index.
+ *
+ * <p>
+ * The items are stored column-wise, one row per item: the ids and the file paths as UTF-8
+ * bytes in packed byte arenas, the creation dates as {@code int} epoch days and the types as
+ * bytes, the file sizes as {@code long} and the content hashes as 32 raw bytes. The ids and the
+ * content hashes are looked up with open-addressing hash tables of row numbers. An item
+ * costs ~80 bytes plus the length of its id and path, instead of several object headers,
+ * strings and a hash map entry, and {@link DownloadedMediaItem} objects are created only
+ * when an item is requested.
+ * </p>
+ *
+ * <p>
+ * The rows are also kept in buckets by creation date, so a query for a date range,
+ * e.g. the last days of an incremental sync, reads only the rows in the range instead of
+ * scanning all rows, at the cost of a few more bytes per item.
+ * </p>
+ *
+ * <p>
+ * Removed rows are marked as dead and the columns are compacted when most of the rows are dead,
+ * so the row numbers are stable only until the next removal.
+ * </p>
+ */
+public class CompactPhotosIndex implements DownloadedPhotosIndex {
+
+	private static final int NO_DATE = Integer.MIN_VALUE;
+	private static final int NO_PATH = -1;
+
+	private static final byte NO_TYPE = 0;
+	private static final byte DEAD_ROW = -1;
+
+	private static final int EMPTY_SLOT = 0;
+	private static final int DELETED_SLOT = -1;
+
+	private static final int HASH_SIZE = 32;
+
+	private static final int MIN_COMPACTION_ROWS = 1024;
+
+
+	private int rowCount = 0;
+	private int liveCount = 0;
+
+	private int[] idOffsets = new int[16];
+	private int[] pathOffsets = new int[16];
+	private int[] epochDays = new int[16];
+	private byte[] types = new byte[16];
+	private long[] fileSizes = new long[16];
+	private byte[] contentHashes = new byte[16 * HASH_SIZE];
+
+	private final Arena idArena = new Arena();
+	private final Arena pathArena = new Arena();
+
+	/**
+	 * Open-addressing hash table with linear probing. A slot holds a row number + 1,
+	 * {@value #EMPTY_SLOT} for an empty slot or {@value #DELETED_SLOT} for a deleted one.
+	 */
+	private int[] slots = new int[32];
+	private int usedSlots = 0;
+
+	/**
+	 * Open-addressing multimap from the content hashes to the rows, a slot holds a row number + 1
+	 * or {@value #EMPTY_SLOT}. The slots of dead rows are skipped and dropped when the table is rebuilt.
+	 */
+	private int[] hashSlots = new int[32];
+	private int usedHashSlots = 0;
+
+	/**
+	 * The rows by creation date epoch day, {@value #NO_DATE} for none. The rows of removed items stay
+	 * in their buckets until the columns are compacted, they are skipped by the queries.
+	 */
+	private TreeMap<Integer, RowList> dayBuckets = new TreeMap<>();
+
+
+	public synchronized int size() {
+		return this.liveCount;
+	}
+
+
+	/**
+	 * Returns the number of rows, including the dead rows of removed items.
+	 */
+	public synchronized int rowCount() {
+		return this.rowCount;
+	}
+
+
+	/**
+	 * Returns the row of the item with the specified id or -1 if there is no such item.
+	 * @param itemId
+	 */
+	public synchronized int indexOf(String itemId) {
+		byte[] id = itemId.getBytes(StandardCharsets.UTF_8);
+		int slot = findSlot(id, hash(id));
+		return slot >= 0 ? this.slots[slot] - 1 : -1;
+	}
+
+
+	/**
+	 * Returns the item in the specified row or null if the row is dead.
+	 * @param row
+	 */
+	public synchronized DownloadedMediaItem getItem(int row) {
+		return this.types[row] != DEAD_ROW ? materialize(row) : null;
+	}
+
+
+	@Override
+	public synchronized DownloadedMediaItem getItem(String itemId) {
+		int row = indexOf(itemId);
+		return row >= 0 ? materialize(row) : null;
+	}
+
+
+	@Override
+	public synchronized void addItem(DownloadedMediaItem item) {
+		byte[] id = item.getId().getBytes(StandardCharsets.UTF_8);
+		byte[] contentHash = item.getContentHash() != null ? parseContentHash(item.getContentHash()) : null;
+		int hash = hash(id);
+		int slot = findSlot(id, hash);
+		if (slot >= 0) {
+			killRow(this.slots[slot] - 1);
+			this.slots[slot] = appendRow(id, contentHash, item) + 1;
+			compactIfNeeded();
+			return;
+		}
+
+		if ((this.usedSlots + 1) * 4L >= this.slots.length * 3L) {
+			rehash(this.slots.length * 2);
+		}
+		slot = findFreeSlot(hash);
+		if (this.slots[slot] == EMPTY_SLOT) {
+			this.usedSlots++;
+		}
+		this.slots[slot] = appendRow(id, contentHash, item) + 1;
+		this.liveCount++;
+	}
+
+
+	@Override
+	public synchronized void removeItem(DownloadedMediaItem item) {
+		byte[] id = item.getId().getBytes(StandardCharsets.UTF_8);
+		int slot = findSlot(id, hash(id));
+		if (slot < 0) {
+			return;
+		}
+		killRow(this.slots[slot] - 1);
+		this.slots[slot] = DELETED_SLOT;
+		this.liveCount--;
+		compactIfNeeded();
+	}
+
+
+	@Override
+	public synchronized DownloadedMediaItem findItemByHash(String contentHash) {
+		byte[] hash = parseContentHash(contentHash);
+		int mask = this.hashSlots.length - 1;
+		for (int slot = hashOf(hash, 0) & mask; this.hashSlots[slot] != EMPTY_SLOT; slot = (slot + 1) & mask) {
+			int row = this.hashSlots[slot] - 1;
+			if (this.types[row] != DEAD_ROW && hasContentHash(row)
+					&& Arrays.equals(this.contentHashes, row * HASH_SIZE, (row + 1) * HASH_SIZE, hash, 0, HASH_SIZE)) {
+				return materialize(row);
+			}
+		}
+		return null;
+	}
+
+
+	@Override
+	public synchronized List<DownloadedMediaItem> findItems(MediaItemType type, LocalDate startDate, LocalDate endDate) {
+		List<DownloadedMediaItem> items = new ArrayList<>();
+		forEachItem(type, startDate, endDate, items::add);
+		return items;
+	}
+
+
+	@Override
+	public synchronized void forEachItem(MediaItemType type, LocalDate startDate, LocalDate endDate, Consumer<DownloadedMediaItem> action) {
+		byte typeCode = type != null ? toTypeCode(type) : DEAD_ROW;
+		if (startDate == null && endDate == null) {
+			// scan the type column, only the matching rows are materialized
+			for (int row = 0; row < this.rowCount; row++) {
+				byte rowType = this.types[row];
+				if (rowType != DEAD_ROW && (type == null || rowType == typeCode)) {
+					action.accept(materialize(row));
+				}
+			}
+			return;
+		}
+
+		// the items without a creation date are before all dates, they match only without a start date
+		int startDay = startDate != null ? (int)Math.max(startDate.toEpochDay(), NO_DATE + 1L) : NO_DATE;
+		int endDay = endDate != null ? (int)Math.min(Math.max(endDate.toEpochDay(), NO_DATE), Integer.MAX_VALUE) : Integer.MAX_VALUE;
+		if (startDay > endDay) {
+			return;
+		}
+		for (RowList rows : this.dayBuckets.subMap(startDay, true, endDay, true).values()) {
+			for (int i = 0; i < rows.size; i++) {
+				int row = rows.rows[i];
+				byte rowType = this.types[row];
+				if (rowType != DEAD_ROW && (type == null || rowType == typeCode)) {
+					action.accept(materialize(row));
+				}
+			}
+		}
+	}
+
+
+	@Override
+	public void close() {
+	}
+
+
+	private DownloadedMediaItem materialize(int row) {
+		DownloadedMediaItem item = new DownloadedMediaItem(this.idArena.getString(this.idOffsets[row]));
+		byte type = this.types[row];
+		item.setType(type != NO_TYPE ? MediaItemType.values()[type - 1] : null);
+		int epochDay = this.epochDays[row];
+		item.setCreationDate(epochDay != NO_DATE ? LocalDate.ofEpochDay(epochDay) : null);
+		int pathOffset = this.pathOffsets[row];
+		item.setFilePath(pathOffset != NO_PATH ? this.pathArena.getString(pathOffset) : null);
+		if (hasContentHash(row)) {
+			item.setContentHash(HexFormat.of().formatHex(this.contentHashes, row * HASH_SIZE, (row + 1) * HASH_SIZE));
+		}
+		item.setFileSize(this.fileSizes[row]);
+		return item;
+	}
+
+
+	private int appendRow(byte[] id, byte[] contentHash, DownloadedMediaItem item) {
+		if (this.rowCount == this.types.length) {
+			int capacity = this.rowCount * 2;
+			this.idOffsets = Arrays.copyOf(this.idOffsets, capacity);
+			this.pathOffsets = Arrays.copyOf(this.pathOffsets, capacity);
+			this.epochDays = Arrays.copyOf(this.epochDays, capacity);
+			this.types = Arrays.copyOf(this.types, capacity);
+			this.fileSizes = Arrays.copyOf(this.fileSizes, capacity);
+			this.contentHashes = Arrays.copyOf(this.contentHashes, capacity * HASH_SIZE);
+		}
+
+		int row = this.rowCount++;
+		this.idOffsets[row] = this.idArena.add(id);
+		this.pathOffsets[row] = item.getFilePath() != null ?
+				this.pathArena.add(item.getFilePath().getBytes(StandardCharsets.UTF_8)) : NO_PATH;
+		this.epochDays[row] = item.getCreationDate() != null ?
+				Math.toIntExact(item.getCreationDate().toEpochDay()) : NO_DATE;
+		this.types[row] = item.getType() != null ? toTypeCode(item.getType()) : NO_TYPE;
+		this.fileSizes[row] = item.getFileSize();
+		this.dayBuckets.computeIfAbsent(this.epochDays[row], day -> new RowList()).add(row);
+		if (contentHash != null) {
+			System.arraycopy(contentHash, 0, this.contentHashes, row * HASH_SIZE, HASH_SIZE);
+			addContentHash(row);
+		}
+		return row;
+	}
+
+
+	private static byte[] parseContentHash(String contentHash) {
+		byte[] bytes = HexFormat.of().parseHex(contentHash);
+		if (bytes.length != HASH_SIZE) {
+			throw new IllegalArgumentException("Invalid content hash: " + contentHash);
+		}
+		return bytes;
+	}
+
+
+	private void killRow(int row) {
+		this.types[row] = DEAD_ROW;
+	}
+
+
+	/**
+	 * Rebuilds the columns with the live rows only, if most of the rows are dead.
+	 */
+	private void compactIfNeeded() {
+		if (this.rowCount < MIN_COMPACTION_ROWS || this.rowCount <= 2 * this.liveCount) {
+			return;
+		}
+
+		CompactPhotosIndex compacted = new CompactPhotosIndex();
+		for (int row = 0; row < this.rowCount; row++) {
+			if (this.types[row] != DEAD_ROW) {
+				compacted.addItem(materialize(row));
+			}
+		}
+
+		this.rowCount = compacted.rowCount;
+		this.liveCount = compacted.liveCount;
+		this.idOffsets = compacted.idOffsets;
+		this.pathOffsets = compacted.pathOffsets;
+		this.epochDays = compacted.epochDays;
+		this.types = compacted.types;
+		this.fileSizes = compacted.fileSizes;
+		this.contentHashes = compacted.contentHashes;
+		this.idArena.replace(compacted.idArena);
+		this.pathArena.replace(compacted.pathArena);
+		this.slots = compacted.slots;
+		this.usedSlots = compacted.usedSlots;
+		this.hashSlots = compacted.hashSlots;
+		this.usedHashSlots = compacted.usedHashSlots;
+		this.dayBuckets = compacted.dayBuckets;
+	}
+
+
+	private boolean hasContentHash(int row) {
+		for (int i = row * HASH_SIZE; i < (row + 1) * HASH_SIZE; i++) {
+			if (this.contentHashes[i] != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	private void addContentHash(int row) {
+		if ((this.usedHashSlots + 1) * 4L >= this.hashSlots.length * 3L) {
+			rehashContentHashes(this.hashSlots.length * 2);
+		}
+		insertContentHash(row);
+	}
+
+
+	private void rehashContentHashes(int capacity) {
+		this.hashSlots = new int[capacity];
+		this.usedHashSlots = 0;
+		for (int row = 0; row < this.rowCount; row++) {
+			if (this.types[row] != DEAD_ROW && hasContentHash(row)) {
+				insertContentHash(row);
+			}
+		}
+	}
+
+
+	private void insertContentHash(int row) {
+		int mask = this.hashSlots.length - 1;
+		int slot = hashOf(this.contentHashes, row * HASH_SIZE) & mask;
+		while (this.hashSlots[slot] != EMPTY_SLOT) {
+			slot = (slot + 1) & mask;
+		}
+		this.hashSlots[slot] = row + 1;
+		this.usedHashSlots++;
+	}
+
+
+	private void rehash(int capacity) {
+		this.slots = new int[capacity];
+		this.usedSlots = 0;
+		for (int row = 0; row < this.rowCount; row++) {
+			if (this.types[row] != DEAD_ROW) {
+				int slot = findFreeSlot(hash(this.idArena.getBytes(this.idOffsets[row])));
+				this.slots[slot] = row + 1;
+				this.usedSlots++;
+			}
+		}
+	}
+
+
+	private int findSlot(byte[] id, int hash) {
+		int mask = this.slots.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int value = this.slots[slot];
+			if (value == EMPTY_SLOT) {
+				return -1;
+			}
+			if (value != DELETED_SLOT && this.idArena.equals(this.idOffsets[value - 1], id)) {
+				return slot;
+			}
+		}
+	}
+
+
+	private int findFreeSlot(int hash) {
+		int mask = this.slots.length - 1;
+		int slot = hash & mask;
+		while (this.slots[slot] > 0) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+
+	private static int hash(byte[] id) {
+		int hash = Arrays.hashCode(id);
+		return hash ^ (hash >>> 16);
+	}
+
+
+	/**
+	 * The content hashes are uniformly distributed, so their first bytes are used as the hash code.
+	 */
+	private static int hashOf(byte[] contentHash, int offset) {
+		return (contentHash[offset] & 0xFF) << 24 | (contentHash[offset + 1] & 0xFF) << 16
+				| (contentHash[offset + 2] & 0xFF) << 8 | (contentHash[offset + 3] & 0xFF);
+	}
+
+
+	private static byte toTypeCode(MediaItemType type) {
+		return (byte)(type.ordinal() + 1);
+	}
+
+
+	/**
+	 * A growable list of row numbers.
+	 */
+	private static class RowList {
+
+		private int[] rows = new int[4];
+		private int size = 0;
+
+		void add(int row) {
+			if (this.size == this.rows.length) {
+				this.rows = Arrays.copyOf(this.rows, this.size * 2);
+			}
+			this.rows[this.size++] = row;
+		}
+	}
+
+
+	/**
+	 * A growable byte array holding length-prefixed byte strings.
+	 */
+	private static class Arena {
+
+		private byte[] bytes = new byte[1024];
+		private int size = 0;
+
+		int add(byte[] value) {
+			if (value.length > 0xFFFF) {
+				throw new IllegalArgumentException("Value is too long: " + value.length + " bytes");
+			}
+			if (this.size + 2 + value.length > this.bytes.length) {
+				this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + 2 + value.length));
+			}
+			int offset = this.size;
+			this.bytes[offset] = (byte)(value.length >>> 8);
+			this.bytes[offset + 1] = (byte)value.length;
+			System.arraycopy(value, 0, this.bytes, offset + 2, value.length);
+			this.size += 2 + value.length;
+			return offset;
+		}
+
+		int length(int offset) {
+			return ((this.bytes[offset] & 0xFF) << 8) | (this.bytes[offset + 1] & 0xFF);
+		}
+
+		byte[] getBytes(int offset) {
+			return Arrays.copyOfRange(this.bytes, offset + 2, offset + 2 + length(offset));
+		}
+
+		String getString(int offset) {
+			return new String(this.bytes, offset + 2, length(offset), StandardCharsets.UTF_8);
+		}
+
+		boolean equals(int offset, byte[] value) {
+			int length = length(offset);
+			return length == value.length
+					&& Arrays.equals(this.bytes, offset + 2, offset + 2 + length, value, 0, length);
+		}
+
+		void replace(Arena other) {
+			this.bytes = other.bytes;
+			this.size = other.size;
+		}
+	}
+}
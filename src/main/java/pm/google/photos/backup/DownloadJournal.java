@@ -0,0 +1,338 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only journal of the downloads in progress, so the files downloaded by a process which
+ * died before their items were committed to the index are not downloaded again.
+ *
+ * <p>
+ * An intent record with the item id and the destination path is appended before each download
+ * and a completion record with the file size and the content hash after the file is renamed to
+ * its destination. The records have the same layout as the records of the {@link DownloadedPhotosLog},
+ * after an 8 byte header - magic number and format version.
+ * </p>
+ *
+ * <p>
+ * When the journal is replayed on startup, the items of the completed downloads and of the
+ * destination files which exist are added to the index if they are not there yet. The
+ * interrupted downloads which left a part file stay pending, they are resumed with the same
+ * destination file when their items are downloaded again. The journal is then rewritten with
+ * the pending downloads only, and again when it is closed, after the index is committed.
+ * </p>
+ */
+public class DownloadJournal implements AutoCloseable {
+
+	private static final int MAGIC = 0x47504244; // "GPBD"
+	private static final short VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 8;
+
+	private static final byte OPERATION_INTENT = 1;
+	private static final byte OPERATION_COMPLETION = 2;
+
+
+	private final File journalFile;
+	private final File backupDir;
+
+	private boolean sync = false;
+
+	private FileChannel journalChannel;
+
+	/**
+	 * The intents of the downloads which are not completed, by item id.
+	 */
+	private final Map<String, DownloadedMediaItem> pendingItems = new LinkedHashMap<>();
+
+
+	/**
+	 * @param journalFile the journal file
+	 * @param backupDir the directory against which the destination paths are resolved
+	 */
+	public DownloadJournal(File journalFile, File backupDir) {
+		this.journalFile = journalFile;
+		this.backupDir = backupDir;
+	}
+
+
+	/**
+	 * Sets whether each intent record is forced to the storage device before the download starts,
+	 * otherwise the journal survives a crash of the process but not of the operating system.
+	 * @param sync
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+
+	/**
+	 * Replays the journal left by the previous run, adding the items of the completed downloads
+	 * to the specified index, and opens the journal for the new records.
+	 * @param photosIndex
+	 */
+	public synchronized void replay(DownloadedPhotosIndex photosIndex) {
+		try {
+			Map<String, DownloadedMediaItem> intents = new LinkedHashMap<>();
+			Map<String, DownloadedMediaItem> completions = new LinkedHashMap<>();
+			if (this.journalFile.exists()) {
+				readJournal(intents, completions);
+			}
+
+			List<DownloadedMediaItem> adoptedItems = new ArrayList<>();
+			for (DownloadedMediaItem item : completions.values()) {
+				File file = new File(this.backupDir, item.getFilePath());
+				if (photosIndex.getItem(item.getId()) == null && file.isFile() && file.length() == item.getFileSize()) {
+					adoptedItems.add(item);
+				}
+			}
+			for (DownloadedMediaItem item : intents.values()) {
+				if (photosIndex.getItem(item.getId()) != null) {
+					continue;
+				}
+				File file = new File(this.backupDir, item.getFilePath());
+				if (file.isFile()) {
+					// the file is renamed to its destination only when it is complete
+					adoptedItems.add(hashFile(item, file));
+				} else if (FileUtils.getPartFile(file).length() > 0) {
+					this.pendingItems.put(item.getId(), item);
+				}
+			}
+
+			if (!adoptedItems.isEmpty()) {
+				photosIndex.addItems(adoptedItems);
+				for (DownloadedMediaItem item : adoptedItems) {
+					System.out.println("Recovered " + item.getFilePath());
+				}
+			}
+			if (!this.pendingItems.isEmpty()) {
+				System.out.printf("%d interrupted downloads will be resumed.\n", this.pendingItems.size());
+			}
+
+			rewriteJournal();
+
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to replay download journal " + this.journalFile, ex);
+		}
+	}
+
+
+	/**
+	 * Returns the destination file of the interrupted download of the specified item or null.
+	 * @param itemId
+	 */
+	public synchronized File getPendingFile(String itemId) {
+		DownloadedMediaItem item = this.pendingItems.get(itemId);
+		return item != null ? new File(this.backupDir, item.getFilePath()) : null;
+	}
+
+
+	/**
+	 * Returns the destination files of all interrupted downloads.
+	 */
+	public synchronized List<File> getPendingFiles() {
+		List<File> files = new ArrayList<>(this.pendingItems.size());
+		for (DownloadedMediaItem item : this.pendingItems.values()) {
+			files.add(new File(this.backupDir, item.getFilePath()));
+		}
+		return files;
+	}
+
+
+	/**
+	 * Records that the specified item is about to be downloaded to its file path.
+	 * @param item
+	 */
+	public synchronized void recordIntent(DownloadedMediaItem item) {
+		this.pendingItems.put(item.getId(), item);
+		append(OPERATION_INTENT, item, this.sync);
+	}
+
+
+	/**
+	 * Records that the file of the specified item is complete, with its size and content hash.
+	 * @param item
+	 */
+	public synchronized void recordCompletion(DownloadedMediaItem item) {
+		this.pendingItems.remove(item.getId());
+		append(OPERATION_COMPLETION, item, false);
+	}
+
+
+	/**
+	 * Deletes the part files of the interrupted downloads of the items which are not in the specified set,
+	 * e.g. because they were deleted from the library.
+	 * @param itemIds
+	 */
+	public synchronized void discardPendingExcept(Set<String> itemIds) {
+		for (Iterator<DownloadedMediaItem> iterator = this.pendingItems.values().iterator(); iterator.hasNext(); ) {
+			DownloadedMediaItem item = iterator.next();
+			if (!itemIds.contains(item.getId())) {
+				FileUtils.getPartFile(new File(this.backupDir, item.getFilePath())).delete();
+				iterator.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * Rewrites the journal with the interrupted downloads only, e.g. between the syncs of a long-running
+	 * backup. Must be called after the items of the completed downloads are committed to the index and
+	 * while no download is in progress.
+	 */
+	public synchronized void checkpoint() {
+		if (this.journalChannel == null) {
+			return;
+		}
+		try {
+			// the pending downloads which left neither a part file nor a complete file have failed before writing anything
+			this.pendingItems.values().removeIf(item -> {
+				File file = new File(this.backupDir, item.getFilePath());
+				return !file.isFile() && FileUtils.getPartFile(file).length() == 0;
+			});
+			rewriteJournal();
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to rewrite download journal " + this.journalFile, ex);
+		}
+	}
+
+
+	/**
+	 * Rewrites the journal with the interrupted downloads only and closes it. Must be called after
+	 * the items of the completed downloads are committed to the index.
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.journalChannel == null) {
+			return;
+		}
+		checkpoint();
+		try {
+			this.journalChannel.close();
+			this.journalChannel = null;
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to close download journal " + this.journalFile, ex);
+		}
+	}
+
+
+	private void append(byte operation, DownloadedMediaItem item, boolean force) {
+		try {
+			ByteBuffer buffer = DownloadedPhotosLog.encodeRecords(operation, Collections.singletonList(item));
+			while (buffer.hasRemaining()) {
+				this.journalChannel.write(buffer);
+			}
+			if (force) {
+				this.journalChannel.force(false);
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to write download journal " + this.journalFile, ex);
+		}
+	}
+
+
+	/**
+	 * Reads the valid records of the journal, a torn record at the end is ignored.
+	 */
+	private void readJournal(Map<String, DownloadedMediaItem> intents, Map<String, DownloadedMediaItem> completions) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.journalFile.toPath()));
+		if (buffer.remaining() < FILE_HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getShort(Integer.BYTES) != VERSION) {
+			throw new IOException("Not a download journal file: " + this.journalFile);
+		}
+		buffer.position(FILE_HEADER_SIZE);
+
+		int minLength = DownloadedPhotosLog.RECORD_HEADER_SIZE + DownloadedPhotosLog.RECORD_CHECKSUM_SIZE;
+		CRC32 crc = new CRC32();
+		while (buffer.remaining() >= minLength) {
+			int start = buffer.position();
+			int length = buffer.getInt(start);
+			if (length < minLength || length > buffer.remaining()) {
+				break;
+			}
+
+			crc.reset();
+			crc.update(buffer.array(), start, length - DownloadedPhotosLog.RECORD_CHECKSUM_SIZE);
+			if ((int)crc.getValue() != buffer.getInt(start + length - DownloadedPhotosLog.RECORD_CHECKSUM_SIZE)) {
+				break;
+			}
+
+			buffer.position(start + Integer.BYTES);
+			byte operation = buffer.get();
+			DownloadedMediaItem item = DownloadedPhotosLog.decodeRecord(buffer);
+			buffer.position(start + length);
+
+			if (item.getFilePath() == null) {
+				continue;
+			}
+			if (operation == OPERATION_INTENT) {
+				intents.put(item.getId(), item);
+				completions.remove(item.getId());
+			} else if (operation == OPERATION_COMPLETION) {
+				intents.remove(item.getId());
+				completions.put(item.getId(), item);
+			}
+		}
+	}
+
+
+	/**
+	 * Replaces the journal with a new journal containing the intents of the pending downloads
+	 * and opens it for appending.
+	 */
+	private void rewriteJournal() throws IOException {
+		FileUtils.createParentDirectories(this.journalFile);
+		File newFile = new File(this.journalFile.getPath() + ".new");
+		try (FileChannel channel = FileChannel.open(newFile.toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(MAGIC).putShort(VERSION).putShort((short)0).flip();
+			channel.write(header);
+
+			ByteBuffer buffer = DownloadedPhotosLog.encodeRecords(OPERATION_INTENT, this.pendingItems.values());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+
+		if (this.journalChannel != null) {
+			this.journalChannel.close();
+		}
+		Files.move(newFile.toPath(), this.journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.journalChannel = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.WRITE);
+		this.journalChannel.position(this.journalChannel.size());
+	}
+
+
+	/**
+	 * Returns a copy of the specified item with the size and content hash of the specified file.
+	 */
+	private static DownloadedMediaItem hashFile(DownloadedMediaItem item, File file) throws IOException {
+		MessageDigest digest = FileUtils.newContentDigest();
+		long fileSize = file.length();
+		FileUtils.digest(file, fileSize, digest);
+
+		DownloadedMediaItem hashedItem = new DownloadedMediaItem(item.getId());
+		hashedItem.setType(item.getType());
+		hashedItem.setCreationDate(item.getCreationDate());
+		hashedItem.setFilePath(item.getFilePath());
+		hashedItem.setFileSize(fileSize);
+		hashedItem.setContentHash(FileUtils.toHex(digest.digest()));
+		return hashedItem;
+	}
+}
@@ -0,0 +1,116 @@
+package pm.google.photos.backup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A bounded pool of download workers running on virtual threads.
+ *
+ * At most {@code parallelism} tasks run at the same time and at most {@code queueCapacity}
+ * more are waiting for a free worker, so the producer of the tasks is blocked in
+ * {@link #submit(Runnable)} instead of buffering an unbounded number of media items.
+ * No new tasks are accepted after the first failure. The running tasks may also share a bigger
+ * limit with the tasks of other pools, as the tenants of a {@link FairScheduler}.
+ */
+class DownloadWorkers implements AutoCloseable {
+
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+	private final FairScheduler.Tenant runningPermits;
+	private final Semaphore queuedPermits;
+
+	private final AtomicInteger submittedCount = new AtomicInteger();
+	private final AtomicInteger completedCount = new AtomicInteger();
+	private final List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<>());
+
+
+	DownloadWorkers(int parallelism, int queueCapacity) {
+		this(new FairScheduler(parallelism).newTenant(parallelism), queueCapacity);
+	}
+
+	/**
+	 * Creates a pool whose tasks run when the specified tenant is granted a permit.
+	 */
+	DownloadWorkers(FairScheduler.Tenant tenant, int queueCapacity) {
+		this.runningPermits = tenant;
+		this.queuedPermits = new Semaphore(tenant.getLimit() + queueCapacity);
+	}
+
+
+	/**
+	 * Submits a task, blocking while the queue is full.
+	 * @return false if the task was rejected because a previous task has failed
+	 */
+	boolean submit(Runnable task) {
+		this.queuedPermits.acquireUninterruptibly();
+		if (hasFailed()) {
+			this.queuedPermits.release();
+			return false;
+		}
+		this.submittedCount.incrementAndGet();
+		this.executor.execute(() -> {
+			this.runningPermits.acquire();
+			try {
+				if (!hasFailed()) {
+					task.run();
+					this.completedCount.incrementAndGet();
+				}
+			} catch (RuntimeException ex) {
+				this.failures.add(ex);
+			} finally {
+				this.runningPermits.release();
+				this.queuedPermits.release();
+			}
+		});
+		return true;
+	}
+
+
+	boolean hasFailed() {
+		return !this.failures.isEmpty();
+	}
+
+
+	int getSubmittedCount() {
+		return this.submittedCount.get();
+	}
+
+
+	int getCompletedCount() {
+		return this.completedCount.get();
+	}
+
+
+	int getFailedCount() {
+		return this.failures.size();
+	}
+
+
+	/**
+	 * Rethrows the first failure, with all other failures added as suppressed exceptions.
+	 */
+	void throwIfFailed() {
+		synchronized (this.failures) {
+			if (!this.failures.isEmpty()) {
+				RuntimeException failure = this.failures.get(0);
+				this.failures.stream().skip(1).forEach(failure::addSuppressed);
+				throw failure;
+			}
+		}
+	}
+
+
+	/**
+	 * Waits for all submitted tasks to complete.
+	 */
+	@Override
+	public void close() {
+		this.executor.close();
+	}
+}
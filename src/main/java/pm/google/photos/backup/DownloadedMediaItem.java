@@ -31,6 +31,17 @@ public class DownloadedMediaItem implements Serializable {
 	 */
 	private String filePath;
 
+	/**
+	 * The SHA-256 hash of the file content as a lowercase hex string,
+	 * or null for items downloaded by older versions.
+	 */
+	private String contentHash;
+
+	/**
+	 * The file size in bytes, recorded together with the content hash.
+	 */
+	private long fileSize;
+
 
 	public DownloadedMediaItem(String mediaItemId) {
 		this.id = mediaItemId;
@@ -64,6 +75,22 @@ public class DownloadedMediaItem implements Serializable {
 		this.filePath = filePath;
 	}
 
+	public String getContentHash() {
+		return this.contentHash;
+	}
+
+	public void setContentHash(String contentHash) {
+		this.contentHash = contentHash;
+	}
+
+	public long getFileSize() {
+		return this.fileSize;
+	}
+
+	public void setFileSize(long fileSize) {
+		this.fileSize = fileSize;
+	}
+
 	@Override
 	public String toString() {
 		return getFilePath().toString();
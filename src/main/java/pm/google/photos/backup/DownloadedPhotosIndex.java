@@ -1,10 +1,16 @@
 package pm.google.photos.backup;
 
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
 
-public interface DownloadedPhotosIndex {
+/**
+ * Index of the media items which have already been downloaded.
+ * Implementations must be thread-safe, items are added concurrently by the download workers.
+ */
+public interface DownloadedPhotosIndex extends AutoCloseable {
 
 	DownloadedMediaItem getItem(String itemId);
 
@@ -12,6 +18,22 @@ public interface DownloadedPhotosIndex {
 
 	void removeItem(DownloadedMediaItem item);
 
+	/**
+	 * Adds all specified items, implementations should commit them as a single transaction.
+	 * @param items
+	 */
+	default void addItems(Collection<DownloadedMediaItem> items) {
+		items.forEach(this::addItem);
+	}
+
+	/**
+	 * Removes all specified items, implementations should commit them as a single transaction.
+	 * @param items
+	 */
+	default void removeItems(Collection<DownloadedMediaItem> items) {
+		items.forEach(this::removeItem);
+	}
+
 	/**
 	 * Finds all downloaded items of the specified type for the specified date range (inclusive).
 	 * @param type the media item type or null
@@ -20,4 +42,27 @@ public interface DownloadedPhotosIndex {
 	 * @return the list of items from the index matching the criteria
 	 */
 	List<DownloadedMediaItem> findItems(MediaItemType type, LocalDate startDate, LocalDate endDate);
+
+	/**
+	 * Performs the specified action for each downloaded item matching the criteria of
+	 * {@link #findItems(MediaItemType, LocalDate, LocalDate)}. Implementations should not
+	 * hold all matching items in memory at the same time.
+	 */
+	default void forEachItem(MediaItemType type, LocalDate startDate, LocalDate endDate, Consumer<DownloadedMediaItem> action) {
+		findItems(type, startDate, endDate).forEach(action);
+	}
+
+	/**
+	 * Finds a downloaded item with the specified content hash. It is called for every downloaded
+	 * item, so implementations should look up the hash in constant time. The default implementation
+	 * has no lookup by hash and returns null, i.e. duplicates are not detected.
+	 * @param contentHash the SHA-256 hash of the file content as a hex string
+	 * @return any item with the same content or null if there is no such item
+	 */
+	default DownloadedMediaItem findItemByHash(String contentHash) {
+		return null;
+	}
+
+	@Override
+	void close();
 }
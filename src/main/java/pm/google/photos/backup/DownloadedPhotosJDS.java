@@ -2,6 +2,7 @@ package pm.google.photos.backup;
 
 import java.io.File;
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -11,6 +12,7 @@ import jds.JDataStorage;
 
 /**
  * Data storage for the downloaded photos index.
+ * All index operations are synchronized, so the index can be shared by concurrent download workers.
  */
 public class DownloadedPhotosJDS implements DownloadedPhotosIndex {
 
@@ -37,28 +39,39 @@ public class DownloadedPhotosJDS implements DownloadedPhotosIndex {
 		this.jds.connect();
 	}
 
+	@Override
 	public void close() {
 		this.jds.close();
 	}
 
 	@Override
-	public DownloadedMediaItem getItem(String itemId) {
+	public synchronized DownloadedMediaItem getItem(String itemId) {
 		return this.jds.transactionalFn(() ->
 						jds.get(DownloadedMediaItem.class, itemId));
 	}
 
 	@Override
-	public void addItem(DownloadedMediaItem item) {
+	public synchronized void addItem(DownloadedMediaItem item) {
 		this.jds.transactional(() -> jds.insert(item));
 	}
 
 	@Override
-	public void removeItem(DownloadedMediaItem item) {
+	public synchronized void removeItem(DownloadedMediaItem item) {
 		this.jds.transactional(() -> jds.delete(item));
 	}
 
 	@Override
-	public List<DownloadedMediaItem> findItems(MediaItemType type, LocalDate startDate, LocalDate endDate) {
+	public synchronized void addItems(Collection<DownloadedMediaItem> items) {
+		this.jds.transactional(() -> items.forEach(jds::insert));
+	}
+
+	@Override
+	public synchronized void removeItems(Collection<DownloadedMediaItem> items) {
+		this.jds.transactional(() -> items.forEach(jds::delete));
+	}
+
+	@Override
+	public synchronized List<DownloadedMediaItem> findItems(MediaItemType type, LocalDate startDate, LocalDate endDate) {
 
 		List<DownloadedMediaItem> items =
 				this.jds.transactionalFn(() ->
@@ -0,0 +1,495 @@
+package pm.google.photos.backup;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+
+/**
+ * Downloaded photos index stored in an append-only binary log.
+ *
+ * <p>
+ * The log file starts with an 8 byte header - magic number and format version, followed by
+ * one record per added or removed item. Every record has a fixed layout:
+ * <pre>
+ *   int    record length, including this field and the checksum
+ *   byte   operation - 1 for add, 2 for remove
+ *   byte   type - 0 for none, otherwise the media item type ordinal + 1
+ *   int    creation date as epoch day, Integer.MIN_VALUE for none
+ *   short  id length in bytes, unsigned
+ *   short  file path length in bytes, unsigned
+ *   long   file size in bytes
+ *   byte   content hash length in bytes - 0 for none or 32
+ *   byte[] id, UTF-8
+ *   byte[] file path, UTF-8
+ *   byte[] SHA-256 content hash
+ *   int    CRC32 checksum of all previous bytes of the record
+ * </pre>
+ * </p>
+ *
+ * <p>
+ * The log is read sequentially through a buffer when the index is initialized and the live
+ * items are kept in memory in a {@link CompactPhotosIndex}. A torn record at the end of the log, left by a crash during
+ * a write, is truncated, as are the bytes of a failed write. An invalid record followed by valid
+ * records is corruption, the index then fails to open instead of dropping the valid records.
+ * The log is compacted, i.e. rewritten with the live items only, when the number of records
+ * exceeds twice the number of live items.
+ * </p>
+ */
+public class DownloadedPhotosLog implements DownloadedPhotosIndex {
+
+	private static final int MAGIC = 0x47504249; // "GPBI"
+	private static final short VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 8;
+
+	static final int RECORD_HEADER_SIZE = 23;
+	static final int RECORD_CHECKSUM_SIZE = 4;
+	private static final int MAX_RECORD_SIZE = RECORD_HEADER_SIZE + 2 * 0xFFFF + 0xFF + RECORD_CHECKSUM_SIZE;
+
+	/**
+	 * The size of the chunks in which the log after an invalid record is searched for valid records.
+	 */
+	private static final int SCAN_CHUNK_SIZE = 1024 * 1024;
+
+	private static final byte OPERATION_ADD = 1;
+	private static final byte OPERATION_REMOVE = 2;
+
+	private static final int NO_DATE = Integer.MIN_VALUE;
+
+	/**
+	 * The minimum number of records before the log is considered for compaction.
+	 */
+	private static final int MIN_COMPACTION_RECORDS = 10_000;
+
+
+	private final File logFile;
+	private final File legacyStorageDir;
+
+	private final CompactPhotosIndex items = new CompactPhotosIndex();
+
+	private FileChannel logChannel;
+	private long recordCount;
+
+
+	/**
+	 * Creates an index stored in the specified log file.
+	 * @param logFile the log file
+	 * @param legacyStorageDir the JDS storage directory of the index, from which the items
+	 * 		are migrated if the log file does not exist yet, or null
+	 */
+	public static DownloadedPhotosLog create(File logFile, File legacyStorageDir) {
+		return new DownloadedPhotosLog(logFile, legacyStorageDir);
+	}
+
+	private DownloadedPhotosLog(File logFile, File legacyStorageDir) {
+		this.logFile = logFile;
+		this.legacyStorageDir = legacyStorageDir;
+	}
+
+	public synchronized void initialize() {
+		try {
+			if (!this.logFile.exists()) {
+				migrateLegacyStorage();
+			}
+			if (!this.logFile.exists()) {
+				FileUtils.createParentDirectories(this.logFile);
+				writeLog(this.logFile, Collections.emptyList());
+			}
+
+			this.logChannel = FileChannel.open(this.logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long validLength = readLog();
+			if (validLength < this.logChannel.size()) {
+				System.out.println("Truncating incomplete record at the end of " + this.logFile);
+				this.logChannel.truncate(validLength);
+			}
+			this.logChannel.position(validLength);
+
+			compactIfNeeded();
+
+		} catch (IOException ex) {
+			if (this.logChannel != null) {
+				try {
+					this.logChannel.close();
+				} catch (IOException closeEx) {
+					ex.addSuppressed(closeEx);
+				}
+				this.logChannel = null;
+			}
+			throw new RuntimeException("Failed to open photos index " + this.logFile, ex);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (this.logChannel == null) {
+			return;
+		}
+		try {
+			compactIfNeeded();
+			this.logChannel.close();
+			this.logChannel = null;
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to close photos index " + this.logFile, ex);
+		}
+	}
+
+	@Override
+	public synchronized DownloadedMediaItem getItem(String itemId) {
+		return this.items.getItem(itemId);
+	}
+
+	@Override
+	public void addItem(DownloadedMediaItem item) {
+		addItems(Collections.singletonList(item));
+	}
+
+	@Override
+	public void removeItem(DownloadedMediaItem item) {
+		removeItems(Collections.singletonList(item));
+	}
+
+	@Override
+	public synchronized void addItems(Collection<DownloadedMediaItem> items) {
+		append(OPERATION_ADD, items);
+		items.forEach(this.items::addItem);
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized void removeItems(Collection<DownloadedMediaItem> items) {
+		append(OPERATION_REMOVE, items);
+		items.forEach(this.items::removeItem);
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized DownloadedMediaItem findItemByHash(String contentHash) {
+		return this.items.findItemByHash(contentHash);
+	}
+
+	@Override
+	public synchronized List<DownloadedMediaItem> findItems(MediaItemType type, LocalDate startDate, LocalDate endDate) {
+		return this.items.findItems(type, startDate, endDate);
+	}
+
+	@Override
+	public synchronized void forEachItem(MediaItemType type, LocalDate startDate, LocalDate endDate, Consumer<DownloadedMediaItem> action) {
+		this.items.forEachItem(type, startDate, endDate, action);
+	}
+
+
+	/**
+	 * Appends the records for the specified items to the log and forces them to the storage device.
+	 */
+	private void append(byte operation, Collection<DownloadedMediaItem> items) {
+		ByteBuffer buffer = encodeRecords(operation, items);
+		long start;
+		try {
+			start = this.logChannel.position();
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to write photos index " + this.logFile, ex);
+		}
+		try {
+			while (buffer.hasRemaining()) {
+				this.logChannel.write(buffer);
+			}
+			this.logChannel.force(false);
+			this.recordCount += items.size();
+
+		} catch (IOException ex) {
+			// the records of a failed write are cut off, so a retry does not append them after torn bytes
+			try {
+				this.logChannel.truncate(start);
+				this.logChannel.position(start);
+			} catch (IOException truncateEx) {
+				ex.addSuppressed(truncateEx);
+			}
+			throw new RuntimeException("Failed to write photos index " + this.logFile, ex);
+		}
+	}
+
+
+	/**
+	 * Reads all records from the log, starting after the file header.
+	 * @return the length of the log up to the end of the last valid record
+	 * @throws IOException if an invalid record is followed by valid records
+	 */
+	private long readLog() throws IOException {
+		long size = this.logChannel.size();
+		long validLength = FILE_HEADER_SIZE;
+
+		int minLength = RECORD_HEADER_SIZE + RECORD_CHECKSUM_SIZE;
+		CRC32 crc = new CRC32();
+		ByteBuffer record = ByteBuffer.allocate(1024);
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.logFile)))) {
+			if (size < FILE_HEADER_SIZE || input.readInt() != MAGIC) {
+				throw new IOException("Not a photos index file: " + this.logFile);
+			}
+			short version = input.readShort();
+			if (version != VERSION) {
+				throw new IOException("Unsupported photos index version " + version + ": " + this.logFile);
+			}
+			input.skipNBytes(FILE_HEADER_SIZE - Integer.BYTES - Short.BYTES);
+			while (size - validLength >= minLength) {
+				int length = input.readInt();
+				if (length < minLength || length > size - validLength) {
+					break;
+				}
+
+				if (record.capacity() < length) {
+					record = ByteBuffer.allocate(Math.max(length, 2 * record.capacity()));
+				}
+				record.clear().putInt(length);
+				input.readFully(record.array(), Integer.BYTES, length - Integer.BYTES);
+
+				crc.reset();
+				crc.update(record.array(), 0, length - RECORD_CHECKSUM_SIZE);
+				if ((int)crc.getValue() != record.getInt(length - RECORD_CHECKSUM_SIZE)) {
+					break;
+				}
+
+				record.position(Integer.BYTES);
+				byte operation = record.get();
+				DownloadedMediaItem item = decodeRecord(record);
+				validLength += length;
+
+				if (operation == OPERATION_ADD) {
+					this.items.addItem(item);
+				} else {
+					this.items.removeItem(item);
+				}
+				this.recordCount++;
+			}
+		}
+
+		if (validLength < size) {
+			long nextRecord = findValidRecord(validLength + 1, size);
+			if (nextRecord >= 0) {
+				throw new IOException(String.format("Corrupted record at offset %d of %s, followed by a valid record at offset %d",
+						validLength, this.logFile, nextRecord));
+			}
+		}
+		return validLength;
+	}
+
+
+	/**
+	 * Searches the log for the first valid record which starts at or after the specified offset.
+	 * @return the offset of the record or -1 if there is none
+	 */
+	private long findValidRecord(long offset, long size) throws IOException {
+		int minLength = RECORD_HEADER_SIZE + RECORD_CHECKSUM_SIZE;
+		CRC32 crc = new CRC32();
+		ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK_SIZE);
+
+		// the chunks overlap by the maximum record size, so each record is complete in one of them
+		for (long chunkStart = offset; size - chunkStart >= minLength; chunkStart += SCAN_CHUNK_SIZE - MAX_RECORD_SIZE) {
+			chunk.clear();
+			while (chunk.hasRemaining() && this.logChannel.read(chunk, chunkStart + chunk.position()) > 0) {
+				// read the whole chunk
+			}
+			int chunkLength = chunk.position();
+			boolean lastChunk = chunkStart + chunkLength >= size;
+			int scanEnd = lastChunk ? chunkLength - minLength : SCAN_CHUNK_SIZE - MAX_RECORD_SIZE - 1;
+
+			for (int position = 0; position <= scanEnd; position++) {
+				int length = chunk.getInt(position);
+				if (length < minLength || length > chunkLength - position) {
+					continue;
+				}
+				crc.reset();
+				crc.update(chunk.array(), position, length - RECORD_CHECKSUM_SIZE);
+				if ((int)crc.getValue() == chunk.getInt(position + length - RECORD_CHECKSUM_SIZE)) {
+					return chunkStart + position;
+				}
+			}
+			if (lastChunk) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Rewrites the log with the live items only, if most of its records are obsolete.
+	 */
+	private void compactIfNeeded() {
+		if (this.recordCount < MIN_COMPACTION_RECORDS || this.recordCount <= 2L * this.items.size()) {
+			return;
+		}
+		rewriteLog();
+	}
+
+
+	/**
+	 * Replaces the log with a new log containing the live items only.
+	 */
+	private void rewriteLog() {
+		try {
+			File compactedFile = new File(this.logFile.getPath() + ".compact");
+			writeLog(compactedFile, this.items.findItems(null, null, null));
+
+			this.logChannel.close();
+			Files.move(compactedFile.toPath(), this.logFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			this.logChannel = FileChannel.open(this.logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.logChannel.position(this.logChannel.size());
+			this.recordCount = this.items.size();
+
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to rewrite photos index " + this.logFile, ex);
+		}
+	}
+
+
+	/**
+	 * Migrates the items from the JDS storage used by the previous versions.
+	 */
+	private void migrateLegacyStorage() throws IOException {
+		if (this.legacyStorageDir == null || !this.legacyStorageDir.isDirectory()) {
+			return;
+		}
+
+		System.out.println("Migrating photos index from " + this.legacyStorageDir);
+		DownloadedPhotosJDS legacyIndex = DownloadedPhotosJDS.create(this.legacyStorageDir);
+		try {
+			legacyIndex.initialize();
+			List<DownloadedMediaItem> legacyItems = legacyIndex.findItems(null, null, null);
+
+			FileUtils.createParentDirectories(this.logFile);
+			File migratedFile = new File(this.logFile.getPath() + ".migrate");
+			writeLog(migratedFile, legacyItems);
+			Files.move(migratedFile.toPath(), this.logFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+			System.out.printf("Migrated %d items to %s\n", legacyItems.size(), this.logFile);
+		} finally {
+			legacyIndex.close();
+		}
+	}
+
+
+	/**
+	 * Writes a new log file with an add record for each of the specified items.
+	 */
+	private static void writeLog(File file, Collection<DownloadedMediaItem> items) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			header.putInt(MAGIC).putShort(VERSION).putShort((short)0).flip();
+			channel.write(header);
+
+			ByteBuffer buffer = encodeRecords(OPERATION_ADD, items);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+	}
+
+
+	/**
+	 * Encodes a record for each of the specified items, the records are also used by the {@link DownloadJournal}.
+	 */
+	static ByteBuffer encodeRecords(byte operation, Collection<DownloadedMediaItem> items) {
+		List<byte[]> fields = new ArrayList<>(3 * items.size());
+		int capacity = 0;
+		for (DownloadedMediaItem item : items) {
+			byte[] id = toUtf8(item.getId());
+			byte[] filePath = toUtf8(item.getFilePath());
+			byte[] contentHash = item.getContentHash() != null ? HexFormat.of().parseHex(item.getContentHash()) : new byte[0];
+			fields.add(id);
+			fields.add(filePath);
+			fields.add(contentHash);
+			capacity += RECORD_HEADER_SIZE + RECORD_CHECKSUM_SIZE + id.length + filePath.length + contentHash.length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(capacity);
+		CRC32 crc = new CRC32();
+		Iterator<byte[]> fieldsIterator = fields.iterator();
+		for (DownloadedMediaItem item : items) {
+			byte[] id = fieldsIterator.next();
+			byte[] filePath = fieldsIterator.next();
+			byte[] contentHash = fieldsIterator.next();
+			int start = buffer.position();
+			int length = RECORD_HEADER_SIZE + RECORD_CHECKSUM_SIZE + id.length + filePath.length + contentHash.length;
+
+			buffer.putInt(length);
+			buffer.put(operation);
+			buffer.put(item.getType() != null ? (byte)(item.getType().ordinal() + 1) : 0);
+			buffer.putInt(item.getCreationDate() != null ? Math.toIntExact(item.getCreationDate().toEpochDay()) : NO_DATE);
+			buffer.putShort((short)id.length);
+			buffer.putShort((short)filePath.length);
+			buffer.putLong(item.getFileSize());
+			buffer.put((byte)contentHash.length);
+			buffer.put(id);
+			buffer.put(filePath);
+			buffer.put(contentHash);
+
+			crc.reset();
+			crc.update(buffer.array(), start, length - RECORD_CHECKSUM_SIZE);
+			buffer.putInt((int)crc.getValue());
+		}
+		return buffer.flip();
+	}
+
+
+	/**
+	 * Decodes the record fields following the operation byte.
+	 */
+	static DownloadedMediaItem decodeRecord(ByteBuffer buffer) {
+		byte type = buffer.get();
+		int epochDay = buffer.getInt();
+		int idLength = Short.toUnsignedInt(buffer.getShort());
+		int filePathLength = Short.toUnsignedInt(buffer.getShort());
+		long fileSize = buffer.getLong();
+		int contentHashLength = Byte.toUnsignedInt(buffer.get());
+		String id = fromUtf8(buffer, idLength);
+		String filePath = fromUtf8(buffer, filePathLength);
+		byte[] contentHash = new byte[contentHashLength];
+		buffer.get(contentHash);
+
+		DownloadedMediaItem item = new DownloadedMediaItem(id);
+		item.setType(type != 0 ? MediaItemType.values()[type - 1] : null);
+		item.setCreationDate(epochDay != NO_DATE ? LocalDate.ofEpochDay(epochDay) : null);
+		item.setFilePath(filePathLength > 0 ? filePath : null);
+		item.setFileSize(fileSize);
+		item.setContentHash(contentHashLength > 0 ? HexFormat.of().formatHex(contentHash) : null);
+		return item;
+	}
+
+
+	private static byte[] toUtf8(String value) {
+		byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		if (bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Value is too long to be stored in the photos index: " + value);
+		}
+		return bytes;
+	}
+
+
+	private static String fromUtf8(ByteBuffer buffer, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
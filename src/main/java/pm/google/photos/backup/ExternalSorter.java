@@ -0,0 +1,287 @@
+package pm.google.photos.backup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+
+/**
+ * Sorts a stream of strings, e.g. media item ids, within a memory budget.
+ *
+ * The strings are buffered in memory as UTF-8 bytes. When the buffer exceeds the memory budget,
+ * it is sorted and written to a temporary run file. The sorted strings are then read by merging
+ * the runs and the last buffer, without duplicates. The strings are ordered by their UTF-8 bytes,
+ * i.e. by code points, so the output of two sorters can be merge-joined.
+ */
+public class ExternalSorter implements AutoCloseable {
+
+	public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+	/**
+	 * The estimated memory used by a buffered string in addition to its bytes - the array header and the reference.
+	 */
+	private static final int ENTRY_OVERHEAD = 24;
+
+	private static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+
+	private final long memoryBudget;
+	private final File spillDir;
+
+	private List<byte[]> buffer = new ArrayList<>();
+	private long bufferedBytes = 0;
+
+	private final List<File> runFiles = new ArrayList<>();
+	private final List<DataInputStream> runReaders = new ArrayList<>();
+	private boolean merging = false;
+
+
+	/**
+	 * @param memoryBudget the maximum estimated size of the buffered strings in bytes
+	 * @param spillDir the directory of the run files or null for the default temporary directory
+	 */
+	public ExternalSorter(long memoryBudget, File spillDir) {
+		if (memoryBudget < 1) {
+			throw new IllegalArgumentException("memoryBudget must be positive: " + memoryBudget);
+		}
+		this.memoryBudget = memoryBudget;
+		this.spillDir = spillDir;
+	}
+
+
+	public void add(String value) {
+		if (this.merging) {
+			throw new IllegalStateException("The sorted strings are already being read");
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("String is too long: " + bytes.length + " bytes");
+		}
+		this.buffer.add(bytes);
+		this.bufferedBytes += bytes.length + ENTRY_OVERHEAD;
+		if (this.bufferedBytes > this.memoryBudget) {
+			spill();
+		}
+	}
+
+
+	/**
+	 * Returns the number of run files written so far.
+	 */
+	public int getRunCount() {
+		return this.runFiles.size();
+	}
+
+
+	/**
+	 * Returns the added strings in ascending order, without duplicates.
+	 * No strings can be added after this method is called.
+	 */
+	public Iterator<String> sorted() {
+		if (this.merging) {
+			throw new IllegalStateException("The sorted strings are already being read");
+		}
+		this.merging = true;
+
+		byte[][] lastRun = this.buffer.toArray(new byte[0][]);
+		Arrays.sort(lastRun, Arrays::compareUnsigned);
+		this.buffer = null;
+
+		PriorityQueue<RunCursor> cursors = new PriorityQueue<>((a, b) -> Arrays.compareUnsigned(a.current, b.current));
+		try {
+			for (File runFile : this.runFiles) {
+				DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), RUN_BUFFER_SIZE));
+				this.runReaders.add(reader);
+				RunCursor cursor = new FileRunCursor(reader);
+				if (cursor.advance()) {
+					cursors.add(cursor);
+				}
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to read sort run", ex);
+		}
+		MemoryRunCursor memoryCursor = new MemoryRunCursor(lastRun);
+		if (memoryCursor.advance()) {
+			cursors.add(memoryCursor);
+		}
+		return new MergeIterator(cursors);
+	}
+
+
+	/**
+	 * Compares two strings in the order of the sorted strings, i.e. by code points.
+	 * @param a
+	 * @param b
+	 */
+	public static int compare(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int codePointA = a.codePointAt(i);
+			int codePointB = b.codePointAt(j);
+			if (codePointA != codePointB) {
+				return Integer.compare(codePointA, codePointB);
+			}
+			i += Character.charCount(codePointA);
+			j += Character.charCount(codePointB);
+		}
+		return Integer.compare(a.length() - i, b.length() - j);
+	}
+
+
+	/**
+	 * Deletes the run files.
+	 */
+	@Override
+	public void close() {
+		for (DataInputStream reader : this.runReaders) {
+			try {
+				reader.close();
+			} catch (IOException ex) {
+				// the run file is deleted anyway
+			}
+		}
+		this.runReaders.clear();
+		for (File runFile : this.runFiles) {
+			runFile.delete();
+		}
+		this.runFiles.clear();
+	}
+
+
+	/**
+	 * Sorts the buffered strings and writes them to a new run file.
+	 */
+	private void spill() {
+		byte[][] run = this.buffer.toArray(new byte[0][]);
+		Arrays.sort(run, Arrays::compareUnsigned);
+		try {
+			File runFile = File.createTempFile("sort-run", ".tmp", this.spillDir);
+			this.runFiles.add(runFile);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), RUN_BUFFER_SIZE))) {
+				byte[] previous = null;
+				for (byte[] value : run) {
+					if (previous == null || !Arrays.equals(previous, value)) {
+						out.writeShort(value.length);
+						out.write(value);
+					}
+					previous = value;
+				}
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to write sort run", ex);
+		}
+		this.buffer = new ArrayList<>();
+		this.bufferedBytes = 0;
+	}
+
+
+	private static abstract class RunCursor {
+
+		byte[] current;
+
+		/**
+		 * Moves to the next string of the run.
+		 * @return false if the run has ended
+		 */
+		abstract boolean advance() throws IOException;
+	}
+
+
+	private static class MemoryRunCursor extends RunCursor {
+
+		private final byte[][] run;
+		private int next = 0;
+
+		MemoryRunCursor(byte[][] run) {
+			this.run = run;
+		}
+
+		@Override
+		boolean advance() {
+			if (this.next == this.run.length) {
+				return false;
+			}
+			this.current = this.run[this.next++];
+			return true;
+		}
+	}
+
+
+	private static class FileRunCursor extends RunCursor {
+
+		private final DataInputStream reader;
+
+		FileRunCursor(DataInputStream reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			int length;
+			try {
+				length = this.reader.readUnsignedShort();
+			} catch (EOFException ex) {
+				return false;
+			}
+			this.current = new byte[length];
+			this.reader.readFully(this.current);
+			return true;
+		}
+	}
+
+
+	private static class MergeIterator implements Iterator<String> {
+
+		private final PriorityQueue<RunCursor> cursors;
+		private byte[] previous = null;
+		private byte[] next = null;
+
+		MergeIterator(PriorityQueue<RunCursor> cursors) {
+			this.cursors = cursors;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (this.next == null && !this.cursors.isEmpty()) {
+				RunCursor cursor = this.cursors.poll();
+				byte[] value = cursor.current;
+				if (this.previous == null || !Arrays.equals(this.previous, value)) {
+					this.next = value;
+					this.previous = value;
+				}
+				try {
+					if (cursor.advance()) {
+						this.cursors.add(cursor);
+					}
+				} catch (IOException ex) {
+					throw new RuntimeException("Failed to read sort run", ex);
+				}
+			}
+			return this.next != null;
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			String value = new String(this.next, StandardCharsets.UTF_8);
+			this.next = null;
+			return value;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package pm.google.photos.backup;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Shares a bounded number of running tasks, e.g. downloads, fairly between tenants, e.g. the
+ * accounts backed up by the same process.
+ *
+ * <p>
+ * A task must acquire a permit from its {@link Tenant} before it runs and release it afterwards.
+ * At most {@code parallelism} permits are held at the same time, by all tenants together, and at
+ * most the limit of a tenant by the tasks of that tenant. When a permit is released it is granted
+ * to the tenants with waiting tasks in round-robin order, so a tenant with thousands of queued
+ * downloads does not starve a tenant with a few.
+ * </p>
+ */
+public class FairScheduler {
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The number of free permits, guarded by the lock.
+	 */
+	private int available;
+
+	/**
+	 * The tenants with waiting tasks in the order in which they are served, guarded by the lock.
+	 */
+	private final Queue<Tenant> waitingTenants = new ArrayDeque<>();
+
+
+	/**
+	 * @param parallelism the maximum number of tasks running at the same time
+	 */
+	public FairScheduler(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.available = parallelism;
+	}
+
+
+	/**
+	 * Creates a new tenant.
+	 * @param limit the maximum number of tasks of the tenant running at the same time
+	 */
+	public Tenant newTenant(int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit must be positive: " + limit);
+		}
+		return new Tenant(limit);
+	}
+
+
+	/**
+	 * Grants the free permits to the waiting tasks, one task of each tenant below its limit in turn.
+	 */
+	private void dispatch() {
+		int skippedTenants = 0;
+		while (this.available > 0 && skippedTenants < this.waitingTenants.size()) {
+			Tenant tenant = this.waitingTenants.poll();
+			if (tenant.running >= tenant.limit) {
+				// served again after one of its tasks releases its permit
+				this.waitingTenants.add(tenant);
+				skippedTenants++;
+				continue;
+			}
+			skippedTenants = 0;
+
+			Waiter waiter = tenant.waiters.poll();
+			this.available--;
+			tenant.running++;
+			waiter.granted = true;
+			waiter.condition.signal();
+
+			if (!tenant.waiters.isEmpty()) {
+				this.waitingTenants.add(tenant);
+			}
+		}
+	}
+
+
+	public class Tenant {
+
+		private final int limit;
+
+		// guarded by the lock of the scheduler
+		private final Queue<Waiter> waiters = new ArrayDeque<>();
+		private int running = 0;
+
+		private Tenant(int limit) {
+			this.limit = limit;
+		}
+
+
+		public int getLimit() {
+			return this.limit;
+		}
+
+
+		/**
+		 * Waits until a permit is granted to the calling task.
+		 */
+		public void acquire() {
+			FairScheduler.this.lock.lock();
+			try {
+				Waiter waiter = new Waiter(FairScheduler.this.lock.newCondition());
+				if (this.waiters.isEmpty()) {
+					FairScheduler.this.waitingTenants.add(this);
+				}
+				this.waiters.add(waiter);
+				dispatch();
+				while (!waiter.granted) {
+					waiter.condition.awaitUninterruptibly();
+				}
+			} finally {
+				FairScheduler.this.lock.unlock();
+			}
+		}
+
+
+		/**
+		 * Releases the permit of a task which has finished.
+		 */
+		public void release() {
+			FairScheduler.this.lock.lock();
+			try {
+				this.running--;
+				FairScheduler.this.available++;
+				dispatch();
+			} finally {
+				FairScheduler.this.lock.unlock();
+			}
+		}
+	}
+
+
+	private static class Waiter {
+
+		private final Condition condition;
+		private boolean granted = false;
+
+		private Waiter(Condition condition) {
+			this.condition = condition;
+		}
+	}
+}
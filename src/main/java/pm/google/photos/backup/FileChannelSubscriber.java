@@ -0,0 +1,187 @@
+package pm.google.photos.backup;
+
+import java.io.IOException;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Writes an HTTP response body to a file channel with positioned writes, as the body buffers arrive.
+ *
+ * The body buffers are copied into a direct write buffer of the {@link FileWriteEngine}, which is
+ * written to the file when it is full, so a file is written in a few large writes. The subscriber
+ * either opens the file itself, when the body is received, and closes it at the end, or writes to
+ * a channel shared with other subscribers, e.g. the byte ranges of a segmented download.
+ * The body of the response is the number of written bytes.
+ */
+class FileChannelSubscriber implements BodySubscriber<Long> {
+
+	private final FileWriteEngine writeEngine;
+	private final Path file;
+	private final OpenOption[] options;
+	private final long startPosition;
+	private final long fileSize;
+	private final MessageDigest digest;
+	private final AtomicLong progress;
+
+	private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+	private FileChannel channel;
+	private boolean ownsChannel;
+	private ByteBuffer writeBuffer;
+	private long position;
+	private Flow.Subscription subscription;
+
+
+	/**
+	 * Creates a subscriber which opens the specified file with the specified options and writes the body
+	 * starting at the specified position.
+	 * @param writeEngine
+	 * @param file
+	 * @param options
+	 * @param position
+	 * @param fileSize the final size of the file, for the preallocation, or -1 if not known
+	 * @param digest the digest updated with the body or null
+	 * @param progress the counter of the received bytes, shared with the waiting thread
+	 */
+	FileChannelSubscriber(FileWriteEngine writeEngine, Path file, OpenOption[] options, long position, long fileSize,
+			MessageDigest digest, AtomicLong progress) {
+		this.writeEngine = writeEngine;
+		this.file = file;
+		this.options = options;
+		this.startPosition = position;
+		this.position = position;
+		this.fileSize = fileSize;
+		this.digest = digest;
+		this.progress = progress;
+	}
+
+
+	/**
+	 * Creates a subscriber which writes the body to the specified channel, starting at the specified
+	 * position. The channel is not closed.
+	 */
+	FileChannelSubscriber(FileWriteEngine writeEngine, FileChannel channel, long position, AtomicLong progress) {
+		this(writeEngine, null, null, position, -1, null, progress);
+		this.channel = channel;
+	}
+
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		this.subscription = subscription;
+		try {
+			if (this.channel == null) {
+				this.channel = FileChannel.open(this.file, this.options);
+				this.ownsChannel = true;
+				this.writeEngine.preallocate(this.channel, this.fileSize);
+			}
+		} catch (IOException ex) {
+			fail(ex);
+			return;
+		}
+		this.writeBuffer = this.writeEngine.acquireWriteBuffer();
+		subscription.request(1);
+	}
+
+
+	@Override
+	public void onNext(List<ByteBuffer> buffers) {
+		try {
+			for (ByteBuffer buffer : buffers) {
+				int length = buffer.remaining();
+				if (this.digest != null) {
+					this.digest.update(buffer.duplicate());
+				}
+				while (buffer.hasRemaining()) {
+					if (!this.writeBuffer.hasRemaining()) {
+						writeBuffer();
+					}
+					int chunk = Math.min(buffer.remaining(), this.writeBuffer.remaining());
+					this.writeBuffer.put(buffer.slice(buffer.position(), chunk));
+					buffer.position(buffer.position() + chunk);
+				}
+				this.progress.addAndGet(length);
+			}
+		} catch (IOException ex) {
+			fail(ex);
+			return;
+		}
+		this.subscription.request(1);
+	}
+
+
+	@Override
+	public void onError(Throwable throwable) {
+		release();
+		this.result.completeExceptionally(throwable);
+	}
+
+
+	@Override
+	public void onComplete() {
+		try {
+			writeBuffer();
+			if (this.ownsChannel) {
+				// a preallocated file is truncated to the received body, so its size is never mistaken for complete
+				if (this.channel.size() > this.position) {
+					this.channel.truncate(this.position);
+				}
+				this.channel.close();
+			}
+			release();
+			this.result.complete(this.position - this.startPosition);
+		} catch (IOException ex) {
+			fail(ex);
+		}
+	}
+
+
+	@Override
+	public CompletionStage<Long> getBody() {
+		return this.result;
+	}
+
+
+	private void writeBuffer() throws IOException {
+		this.writeBuffer.flip();
+		while (this.writeBuffer.hasRemaining()) {
+			this.position += this.channel.write(this.writeBuffer, this.position);
+		}
+		this.writeBuffer.clear();
+	}
+
+
+	private void fail(IOException ex) {
+		this.subscription.cancel();
+		release();
+		this.result.completeExceptionally(ex);
+	}
+
+
+	/**
+	 * Returns the write buffer to the pool and closes the channel, if it is owned by the subscriber.
+	 */
+	private void release() {
+		if (this.writeBuffer != null) {
+			this.writeEngine.releaseWriteBuffer(this.writeBuffer);
+			this.writeBuffer = null;
+		}
+		if (this.ownsChannel && this.channel.isOpen()) {
+			try {
+				this.channel.close();
+			} catch (IOException ex) {
+				// the write has already failed or the result is already complete
+			}
+		}
+	}
+}
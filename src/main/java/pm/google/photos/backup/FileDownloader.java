@@ -0,0 +1,576 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Downloads files over HTTP.
+ *
+ * All downloads share one {@link HttpClient}, which keeps the connections open between the downloads
+ * and multiplexes the concurrent downloads from the same host over one HTTP/2 connection, so the TLS
+ * handshake and the TCP slow start are not repeated for every file. The response bodies are written
+ * straight to the file channel as they arrive. The downloader is thread safe.
+ *
+ * Files are first downloaded to a temporary {@code .part} file, which is renamed to the
+ * destination file when the download is complete. The files are written and synced by the
+ * {@link FileWriteEngine}. Files larger than the segmented download
+ * threshold are downloaded as several byte ranges fetched concurrently.
+ */
+public class FileDownloader {
+
+	public static final long DEFAULT_SEGMENTED_DOWNLOAD_THRESHOLD = 64L * 1024 * 1024;
+	public static final int DEFAULT_SEGMENTS = 4;
+
+	public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(30);
+	public static final Duration DEFAULT_READ_TIMEOUT = Duration.ofSeconds(60);
+
+	private static final String SEGMENTS_FILE_SUFFIX = ".segments";
+	private static final String PREALLOCATED_FILE_SUFFIX = ".alloc";
+
+	/**
+	 * The suffixes of the temporary files of a download, appended to the name of its destination file.
+	 */
+	static final List<String> TEMPORARY_FILE_SUFFIXES = List.of(FileUtils.PART_FILE_SUFFIX,
+			FileUtils.PART_FILE_SUFFIX + SEGMENTS_FILE_SUFFIX, FileUtils.PART_FILE_SUFFIX + PREALLOCATED_FILE_SUFFIX);
+
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(?:(\\d+)|\\*)");
+
+	/**
+	 * A stale file is deleted before a new one is created, so the creation fails if another
+	 * process creates the same file at the same time.
+	 */
+	private static final OpenOption[] CREATE_NEW = new OpenOption[] {
+			StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW };
+
+	private static final OpenOption[] APPEND_TO_EXISTING = new OpenOption[] {
+			StandardOpenOption.WRITE };
+
+
+	private final HttpClient httpClient;
+
+	private FileWriteEngine writeEngine = new FileWriteEngine();
+
+	private long segmentedDownloadThreshold = DEFAULT_SEGMENTED_DOWNLOAD_THRESHOLD;
+	private int segments = DEFAULT_SEGMENTS;
+	private Duration readTimeout = DEFAULT_READ_TIMEOUT;
+
+
+	public FileDownloader() {
+		this(DEFAULT_CONNECT_TIMEOUT);
+	}
+
+
+	/**
+	 * @param connectTimeout the maximum time to wait for a new connection to be established
+	 */
+	public FileDownloader(Duration connectTimeout) {
+		this(newHttpClient(connectTimeout));
+	}
+
+
+	/**
+	 * Creates a downloader which sends the requests with the specified client.
+	 * @param httpClient
+	 */
+	public FileDownloader(HttpClient httpClient) {
+		this.httpClient = httpClient;
+	}
+
+
+	/**
+	 * Creates a client which prefers HTTP/2 and follows redirects, like {@link HttpURLConnection} does.
+	 * @param connectTimeout
+	 */
+	public static HttpClient newHttpClient(Duration connectTimeout) {
+		return HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(connectTimeout)
+				.build();
+	}
+
+
+	/**
+	 * Sets the write engine which writes the downloaded files to the disk.
+	 * @param writeEngine
+	 */
+	public void setWriteEngine(FileWriteEngine writeEngine) {
+		this.writeEngine = writeEngine;
+	}
+
+
+	public FileWriteEngine getWriteEngine() {
+		return this.writeEngine;
+	}
+
+
+	/**
+	 * Sets the minimum file size in bytes for which the file is downloaded in segments.
+	 * @param segmentedDownloadThreshold
+	 */
+	public void setSegmentedDownloadThreshold(long segmentedDownloadThreshold) {
+		if (segmentedDownloadThreshold < 1) {
+			throw new IllegalArgumentException("segmentedDownloadThreshold must be positive: " + segmentedDownloadThreshold);
+		}
+		this.segmentedDownloadThreshold = segmentedDownloadThreshold;
+	}
+
+
+	/**
+	 * Sets the number of byte ranges downloaded concurrently for large files,
+	 * 1 disables the segmented downloads.
+	 * @param segments
+	 */
+	public void setSegments(int segments) {
+		if (segments < 1) {
+			throw new IllegalArgumentException("segments must be positive: " + segments);
+		}
+		this.segments = segments;
+	}
+
+
+	/**
+	 * Sets the maximum time to wait for the response headers and then for each part of the response body.
+	 * @param readTimeout
+	 */
+	public void setReadTimeout(Duration readTimeout) {
+		if (readTimeout.isNegative() || readTimeout.isZero()) {
+			throw new IllegalArgumentException("readTimeout must be positive: " + readTimeout);
+		}
+		this.readTimeout = readTimeout;
+	}
+
+
+	/**
+	 * Downloads a file from the specified URL and writes it to the specified destination file.
+	 * An existing destination file is never overwritten, the download fails with
+	 * {@link java.nio.file.FileAlreadyExistsException} instead and the part file is kept.
+	 *
+	 * If the {@code .part} file is left by an interrupted download, only the missing bytes
+	 * are requested with an HTTP range request.
+	 *
+	 * The SHA-256 hash of the content is computed while the bytes are transferred. Only the
+	 * already downloaded prefix of a resumed download and the files downloaded in segments
+	 * are read back from the disk to be hashed.
+	 *
+	 * @param sourceUrl
+	 * @param destinationFile
+	 * @return the SHA-256 hash of the file content as a hex string
+	 * @throws IOException
+	 */
+	public String downloadFile(URL sourceUrl, File destinationFile) throws IOException {
+		URI sourceUri = toURI(sourceUrl);
+		File partFile = FileUtils.getPartFile(destinationFile);
+		FileUtils.createParentDirectories(destinationFile);
+
+		MessageDigest digest = FileUtils.newContentDigest();
+		if (!resumeDownload(sourceUri, partFile, digest)) {
+			digest.reset();
+			download(sourceUri, partFile, digest);
+		}
+
+		this.writeEngine.beforeRename(partFile);
+		FileUtils.moveNoReplace(partFile, destinationFile);
+		this.writeEngine.afterRename(destinationFile);
+		return FileUtils.toHex(digest.digest());
+	}
+
+
+	/**
+	 * Deletes the part file of the specified destination file and the other temporary files of its
+	 * download, so the download starts from the beginning instead of resuming the part file.
+	 * @param destinationFile
+	 * @throws IOException
+	 */
+	public static void deleteTemporaryFiles(File destinationFile) throws IOException {
+		for (String suffix : TEMPORARY_FILE_SUFFIXES) {
+			Files.deleteIfExists(new File(destinationFile.getParentFile(), destinationFile.getName() + suffix).toPath());
+		}
+	}
+
+
+	/**
+	 * Downloads the whole file from the specified URI, overwriting the part file if it exists.
+	 */
+	private void download(URI sourceUri, File partFile, MessageDigest digest) throws IOException {
+		File preallocatedFile = new File(partFile.getParentFile(), partFile.getName() + PREALLOCATED_FILE_SUFFIX);
+		try {
+			Files.deleteIfExists(partFile.toPath());
+			Files.deleteIfExists(preallocatedFile.toPath());
+
+			// the body of a file downloaded in segments is not read, its size is known from the headers
+			AtomicLong progress = new AtomicLong();
+			HttpResponse<Long> response = send(newRequest(sourceUri).build(), responseInfo -> {
+				if (responseInfo.statusCode() != HttpURLConnection.HTTP_OK) {
+					return reject(responseInfo);
+				}
+				if (isSegmentedDownload(responseInfo.headers())) {
+					return cancel();
+				}
+				return newFileSubscriber(responseInfo, partFile, preallocatedFile, digest, progress);
+			}, progress);
+			checkResponseCode(response);
+			long fileSize = getContentLength(response.headers());
+
+			if (response.body() < 0) {
+				if (downloadSegments(sourceUri, partFile, fileSize)) {
+					FileUtils.digest(partFile, fileSize, digest);
+					return;
+				}
+				// the server does not honour range requests, fall back to a single stream
+				Files.deleteIfExists(partFile.toPath());
+				AtomicLong fallbackProgress = new AtomicLong();
+				response = send(newRequest(sourceUri).build(), responseInfo -> responseInfo.statusCode() == HttpURLConnection.HTTP_OK ?
+						newFileSubscriber(responseInfo, partFile, preallocatedFile, digest, fallbackProgress) : reject(responseInfo), fallbackProgress);
+				checkResponseCode(response);
+				fileSize = getContentLength(response.headers());
+			}
+
+			if (this.writeEngine.isPreallocated(fileSize)) {
+				checkComplete(preallocatedFile, fileSize);
+				Files.move(preallocatedFile.toPath(), partFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				checkComplete(partFile, fileSize);
+			}
+
+		} finally {
+			preallocatedFile.delete();
+		}
+	}
+
+
+	/**
+	 * Returns a subscriber which writes the whole file. A preallocated file has its final size from the
+	 * start, so it is written to a separate temporary file, which is renamed to the part file when it is
+	 * complete, because the download of an interrupted preallocated file cannot be resumed from its size.
+	 */
+	private FileChannelSubscriber newFileSubscriber(ResponseInfo responseInfo, File partFile, File preallocatedFile,
+			MessageDigest digest, AtomicLong progress) {
+		long fileSize = getContentLength(responseInfo.headers());
+		File file = this.writeEngine.isPreallocated(fileSize) ? preallocatedFile : partFile;
+		return new FileChannelSubscriber(this.writeEngine, file.toPath(), CREATE_NEW, 0, fileSize, digest, progress);
+	}
+
+
+	/**
+	 * Downloads the missing bytes of the part file left by an interrupted download.
+	 * @return false if there is nothing to resume or the server does not support
+	 * 		range requests for this file, so it must be downloaded again
+	 */
+	private boolean resumeDownload(URI sourceUri, File partFile, MessageDigest digest) throws IOException {
+		long partSize = partFile.length();
+		if (partSize == 0) {
+			return false;
+		}
+
+		// the downloaded prefix is hashed before the missing bytes are appended to the digest
+		FileUtils.digest(partFile, partSize, digest);
+
+		HttpRequest request = newRequest(sourceUri).header("Range", "bytes=" + partSize + "-").build();
+		AtomicLong progress = new AtomicLong();
+		HttpResponse<Long> response = send(request, responseInfo -> isResumable(responseInfo, partSize) ?
+				new FileChannelSubscriber(this.writeEngine, partFile.toPath(), APPEND_TO_EXISTING, partSize, -1, digest, progress) : reject(responseInfo), progress);
+
+		int responseCode = response.statusCode();
+		if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST && responseCode != HTTP_RANGE_NOT_SATISFIABLE) {
+			throw HttpStatusException.fromResponse(response);
+		}
+
+		// the part file is already complete, the download was interrupted just before the rename
+		if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+			return getContentRangeTotal(response.headers()) == partSize;
+		}
+
+		if (response.body() < 0) {
+			return false;
+		}
+
+		checkComplete(partFile, getContentRangeTotal(response.headers()));
+		return true;
+	}
+
+
+	private static boolean isResumable(ResponseInfo responseInfo, long partSize) {
+		return responseInfo.statusCode() == HttpURLConnection.HTTP_PARTIAL
+				&& getContentRangeStart(responseInfo.headers()) == partSize
+				&& getContentRangeTotal(responseInfo.headers()) == partSize + getContentLength(responseInfo.headers());
+	}
+
+
+	private boolean isSegmentedDownload(HttpHeaders headers) {
+		// an empty file has no byte range to fetch
+		long contentLength = getContentLength(headers);
+		return this.segments > 1
+				&& contentLength > 0
+				&& contentLength >= this.segmentedDownloadThreshold
+				&& "bytes".equalsIgnoreCase(headers.firstValue("Accept-Ranges").orElse(null));
+	}
+
+
+	/**
+	 * Downloads the file as {@code segments} byte ranges fetched concurrently and written to the
+	 * same file channel with positioned writes. Each segment verifies that exactly the requested
+	 * number of bytes was received. The segments are written to a separate temporary
+	 * file, which is renamed to the part file only when all segments are complete, because the
+	 * part file of an interrupted segmented download would not be a contiguous prefix of the file.
+	 *
+	 * @return false if the server does not honour range requests
+	 */
+	private boolean downloadSegments(URI sourceUri, File partFile, long fileSize) throws IOException {
+		File segmentsFile = new File(partFile.getParentFile(), partFile.getName() + SEGMENTS_FILE_SUFFIX);
+		long segmentSize = (fileSize + this.segments - 1) / this.segments;
+
+		boolean rangesHonoured = true;
+		try {
+			Files.deleteIfExists(segmentsFile.toPath());
+			try (FileChannel outChannel = FileChannel.open(segmentsFile.toPath(), CREATE_NEW)) {
+
+				// extend the file to its full size, so the segments can be written in any order
+				outChannel.write(ByteBuffer.allocate(1), fileSize - 1);
+
+				// the requests are sent at once and the responses awaited in turn
+				AtomicLong progress = new AtomicLong();
+				List<CompletableFuture<HttpResponse<Long>>> responses = new ArrayList<>(this.segments);
+				List<Long> segmentLengths = new ArrayList<>(this.segments);
+				for (long start = 0; start < fileSize; start += segmentSize) {
+					long first = start;
+					long last = Math.min(start + segmentSize, fileSize) - 1;
+					HttpRequest request = newRequest(sourceUri).header("Range", "bytes=" + first + "-" + last).build();
+					responses.add(this.httpClient.sendAsync(request, responseInfo -> isRequestedRange(responseInfo, first, last, fileSize) ?
+							new FileChannelSubscriber(this.writeEngine, outChannel, first, progress) : reject(responseInfo)));
+					segmentLengths.add(last - first + 1);
+				}
+
+				try {
+					for (int i = 0; i < responses.size(); i++) {
+						HttpResponse<Long> response = await(responses.get(i), progress);
+						if (response.statusCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+							throw HttpStatusException.fromResponse(response);
+						}
+						if (response.body() < 0) {
+							rangesHonoured = false;
+						} else if (response.body().longValue() != segmentLengths.get(i)) {
+							throw new IOException(String.format("Incomplete segment of %s, expected %d bytes but got %d",
+									partFile, segmentLengths.get(i), response.body()));
+						}
+					}
+				} finally {
+					// the channel is closed when this method returns, no segment may write to it after that
+					responses.forEach(response -> response.cancel(true));
+				}
+			}
+
+			if (rangesHonoured) {
+				Files.move(segmentsFile.toPath(), partFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+
+		} finally {
+			segmentsFile.delete();
+		}
+
+		return rangesHonoured;
+	}
+
+
+	/**
+	 * Checks that the response contains exactly the requested [first:last] byte range (inclusive) of the file.
+	 */
+	private static boolean isRequestedRange(ResponseInfo responseInfo, long first, long last, long fileSize) {
+		return responseInfo.statusCode() == HttpURLConnection.HTTP_PARTIAL
+				&& getContentRangeStart(responseInfo.headers()) == first
+				&& getContentRangeTotal(responseInfo.headers()) == fileSize
+				&& getContentLength(responseInfo.headers()) == last - first + 1;
+	}
+
+
+	private HttpRequest.Builder newRequest(URI sourceUri) {
+		return HttpRequest.newBuilder(sourceUri).timeout(this.readTimeout).GET();
+	}
+
+
+	/**
+	 * Sends the request and waits for the response body.
+	 * @param progress the counter of the received body bytes, updated by the body subscriber
+	 */
+	private <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> bodyHandler, AtomicLong progress) throws IOException {
+		return await(this.httpClient.sendAsync(request, bodyHandler), progress);
+	}
+
+
+	/**
+	 * Waits for the response body. The exchange is aborted if no body bytes are received within
+	 * the read timeout, the request timeout of the client only limits the wait for the headers.
+	 */
+	private <T> HttpResponse<T> await(CompletableFuture<HttpResponse<T>> response, AtomicLong progress) throws IOException {
+		long lastProgress = progress.get();
+		try {
+			while (true) {
+				try {
+					return response.get(this.readTimeout.toNanos(), TimeUnit.NANOSECONDS);
+				} catch (TimeoutException ex) {
+					long currentProgress = progress.get();
+					if (currentProgress == lastProgress) {
+						response.cancel(true);
+						throw new HttpTimeoutException("Read timed out after " + currentProgress + " bytes");
+					}
+					lastProgress = currentProgress;
+				}
+			}
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException)ex.getCause();
+			}
+			throw new RuntimeException("Download failed", ex.getCause());
+		} catch (InterruptedException ex) {
+			response.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Download interrupted");
+		}
+	}
+
+
+	/**
+	 * Drops the body of a response which is not written to the file. A successful response, e.g. the
+	 * whole file instead of the requested range, is cancelled without reading its body, which may be
+	 * gigabytes long. The body of an error response is short and is read.
+	 */
+	private static BodySubscriber<Long> reject(ResponseInfo responseInfo) {
+		int statusCode = responseInfo.statusCode();
+		return statusCode >= 200 && statusCode < 300 ? cancel() : discard();
+	}
+
+
+	/**
+	 * Reads and drops the body of an error response, it is short and the connection stays usable.
+	 */
+	private static BodySubscriber<Long> discard() {
+		return BodySubscribers.replacing(-1L);
+	}
+
+
+	/**
+	 * Cancels a response without reading its body.
+	 */
+	private static BodySubscriber<Long> cancel() {
+		return new BodySubscriber<Long>() {
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.cancel();
+			}
+
+			@Override
+			public void onNext(List<ByteBuffer> buffers) {
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+			}
+
+			@Override
+			public void onComplete() {
+			}
+
+			@Override
+			public CompletionStage<Long> getBody() {
+				return CompletableFuture.completedStage(-1L);
+			}
+		};
+	}
+
+
+	private static void checkComplete(File partFile, long fileSize) throws IOException {
+		if (fileSize >= 0 && partFile.length() != fileSize) {
+			throw new IOException(String.format("Incomplete download of %s, expected %d bytes but got %d",
+					partFile, fileSize, partFile.length()));
+		}
+	}
+
+
+	/**
+	 * Throws an {@link HttpStatusException} if the response of a request for the whole file is not 200 OK.
+	 */
+	private static void checkResponseCode(HttpResponse<?> response) throws IOException {
+		if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+			throw HttpStatusException.fromResponse(response);
+		}
+	}
+
+
+	private static URI toURI(URL sourceUrl) throws IOException {
+		try {
+			return sourceUrl.toURI();
+		} catch (URISyntaxException ex) {
+			throw new IOException("Invalid download URL " + sourceUrl, ex);
+		}
+	}
+
+
+	private static long getContentLength(HttpHeaders headers) {
+		return headers.firstValueAsLong("Content-Length").orElse(-1);
+	}
+
+
+	/**
+	 * Returns the first byte position from the "Content-Range: bytes first-last/total" header or -1.
+	 */
+	private static long getContentRangeStart(HttpHeaders headers) {
+		Matcher matcher = parseContentRange(headers);
+		return matcher != null && matcher.group(1) != null ? Long.parseLong(matcher.group(1)) : -1;
+	}
+
+
+	/**
+	 * Returns the total length from the "Content-Range: bytes first-last/total" header or -1.
+	 */
+	private static long getContentRangeTotal(HttpHeaders headers) {
+		Matcher matcher = parseContentRange(headers);
+		return matcher != null && matcher.group(3) != null ? Long.parseLong(matcher.group(3)) : -1;
+	}
+
+
+	private static Matcher parseContentRange(HttpHeaders headers) {
+		String contentRange = headers.firstValue("Content-Range").orElse(null);
+		if (contentRange == null) {
+			return null;
+		}
+		Matcher matcher = CONTENT_RANGE.matcher(contentRange.trim());
+		return matcher.matches() ? matcher : null;
+	}
+}
@@ -0,0 +1,195 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Hands out unique destination file names in the backup directories.
+ *
+ * <p>
+ * The names of the files in a directory are listed once, when the first file name in the
+ * directory is requested. The taken names and the files reserved for the downloads in
+ * progress are then tracked in memory, so a free name is found without probing the file
+ * system. A colliding name gets the next index suffix not used yet for the same name,
+ * e.g. "IMG_0001_002.jpg" after "IMG_0001_001.jpg", so finding a free name for the
+ * thousandth "IMG_0001.jpg" does not test the previous 999 names again. The part file
+ * of an interrupted download and its other temporary files take the name of their destination
+ * file, so another item never resumes the part file of a different item.
+ * </p>
+ *
+ * <p>
+ * A reservation ends when its file is released. The name of a file which was not created,
+ * e.g. because its download failed, is then reserved again by the next item with the same
+ * name, so the failed downloads do not leave gaps in the index suffixes.
+ * </p>
+ *
+ * <p>
+ * The names of a directory are kept while the directory has reservations in flight. Once they
+ * have all been released, the directory is kept among the most recently used idle directories,
+ * beyond which its names are dropped and the directory is listed again when a name in it is
+ * requested, so a long-running process does not keep the names of every directory it has used.
+ * </p>
+ *
+ * <p>
+ * The registry does not see the files created by other processes after the directory was
+ * listed, the downloaded files are therefore moved to their destination without replacing
+ * an existing file.
+ * </p>
+ */
+public class FileNameRegistry {
+
+	/**
+	 * The maximum number of directories without reservations in flight whose names are kept.
+	 */
+	static final int MAX_IDLE_DIRECTORIES = 64;
+
+	/**
+	 * The directories which have been listed, by path. Guarded by {@code this}.
+	 */
+	private final Map<File, DirectoryNames> directories = new HashMap<>();
+
+	/**
+	 * The listed directories without reservations in flight, least recently used first. Guarded by {@code this}.
+	 */
+	private final Map<File, DirectoryNames> idleDirectories = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, DirectoryNames> eldest) {
+			if (size() > MAX_IDLE_DIRECTORIES) {
+				FileNameRegistry.this.directories.remove(eldest.getKey());
+				return true;
+			}
+			return false;
+		}
+	};
+
+
+	/**
+	 * Reserves a file name in the specified directory which is neither taken by an existing
+	 * file nor reserved by a download in progress. The specified file name is used as is if
+	 * it is free, otherwise an index suffix is added to it.
+	 * @param dir
+	 * @param filename
+	 * @return the reserved file
+	 */
+	public synchronized File reserve(File dir, String filename) {
+		DirectoryNames names = getNames(dir);
+		if (names.taken.add(filename)) {
+			names.reservations.put(filename, new Reservation(filename, 0));
+			return new File(dir, filename);
+		}
+
+		int index = names.nextIndexes.getOrDefault(filename, 1);
+		String indexedFilename = FileUtils.getIndexedFilename(filename, index);
+		while (!names.taken.add(indexedFilename)) {
+			indexedFilename = FileUtils.getIndexedFilename(filename, ++index);
+		}
+		names.nextIndexes.put(filename, index + 1);
+		names.reservations.put(indexedFilename, new Reservation(filename, index));
+		return new File(dir, indexedFilename);
+	}
+
+
+	/**
+	 * Marks the name of the specified file as taken, e.g. by the part file of an interrupted download
+	 * which is resumed later with the same destination file. The name stays reserved until the file
+	 * is released.
+	 * @param file
+	 */
+	public synchronized void markTaken(File file) {
+		DirectoryNames names = getNames(file.getParentFile());
+		names.taken.add(file.getName());
+		names.reservations.put(file.getName(), new Reservation(file.getName(), 0));
+	}
+
+
+	/**
+	 * Ends the reservation of the specified file once its download is done or has failed.
+	 * The name stays taken if the file or its part file has been created, otherwise it can
+	 * be reserved again, and its index suffix is the next one tried for the same name.
+	 * @param file
+	 */
+	public synchronized void release(File file) {
+		DirectoryNames names = this.directories.get(file.getParentFile());
+		if (names == null) {
+			return;
+		}
+		Reservation reservation = names.reservations.remove(file.getName());
+		if (reservation == null) {
+			return;
+		}
+		if (!file.exists() && !FileUtils.getPartFile(file).exists()) {
+			names.taken.remove(file.getName());
+			if (reservation.index > 0) {
+				names.nextIndexes.merge(reservation.filename, reservation.index, Math::min);
+			}
+		}
+		if (names.reservations.isEmpty()) {
+			this.idleDirectories.put(file.getParentFile(), names);
+		}
+	}
+
+
+	/**
+	 * Returns the names of the specified directory, listing the directory if its names are not kept.
+	 */
+	private DirectoryNames getNames(File dir) {
+		this.idleDirectories.remove(dir);
+		return this.directories.computeIfAbsent(dir, DirectoryNames::list);
+	}
+
+
+	private static class DirectoryNames {
+
+		private final Set<String> taken = new HashSet<>();
+
+		/**
+		 * The next index suffix to try for each original file name which was taken.
+		 */
+		private final Map<String, Integer> nextIndexes = new HashMap<>();
+
+		/**
+		 * The reservations in flight, by reserved name.
+		 */
+		private final Map<String, Reservation> reservations = new HashMap<>();
+
+		static DirectoryNames list(File dir) {
+			DirectoryNames names = new DirectoryNames();
+			String[] filenames = dir.list();
+			if (filenames != null) {
+				for (String filename : filenames) {
+					names.taken.add(filename);
+					for (String suffix : FileDownloader.TEMPORARY_FILE_SUFFIXES) {
+						if (filename.endsWith(suffix) && filename.length() > suffix.length()) {
+							names.taken.add(filename.substring(0, filename.length() - suffix.length()));
+						}
+					}
+				}
+			}
+			return names;
+		}
+	}
+
+
+	private static class Reservation {
+
+		/**
+		 * The requested file name.
+		 */
+		private final String filename;
+
+		/**
+		 * The index suffix added to the requested file name, or 0 if it is used as is.
+		 */
+		private final int index;
+
+		Reservation(String filename, int index) {
+			this.filename = filename;
+			this.index = index;
+		}
+	}
+}
@@ -2,21 +2,25 @@ package pm.google.photos.backup;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.file.OpenOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
 import org.apache.commons.io.FilenameUtils;
 
 
 public class FileUtils {
 
+	static final String PART_FILE_SUFFIX = ".part";
+
+	private static final int DIGEST_BUFFER_SIZE = 1024 * 1024;
+
 	/**
 	 * Deletes the file with the specified path from the specified root dir.
 	 * All empty parent directories up to the root dir are also deleted.
@@ -71,28 +75,39 @@ public class FileUtils {
 	}
 
 	/**
-	 * Returns the first non existing file with the specified filename, by adding an index suffix
-	 * between the base name and the file extension. For example, if the filename is "IMG_20201002_195004.jpg"
-	 * the returned file might be "IMG_20201002_195004_001.jpg"
+	 * Returns the specified filename with the specified index suffix between the base name
+	 * and the file extension, e.g. "IMG_20201002_195004_001.jpg" for index 1.
 	 *
-	 * @param parent
 	 * @param filename
+	 * @param index
 	 */
-	public static File getNextFile(File parent, String filename) {
-
+	public static String getIndexedFilename(String filename, int index) {
 		String basename = FilenameUtils.getBaseName(filename);
 		String extension = FilenameUtils.getExtension(filename);
+		return String.format("%s_%03d.%s", basename, index, extension);
+	}
 
-		File file = null;
-		int index = 1;
-
-		do {
-			filename = String.format("%s_%03d.%s", basename, index, extension);
-			file = new File(parent, filename);
-			index++;
-		} while (file.exists());
-
-		return file;
+	/**
+	 * Moves the source file to the target file, unless the target file already exists.
+	 * The target is created as a hard link to the source, which fails atomically if the target
+	 * exists, and the source is deleted. If hard links are not supported, the file is renamed
+	 * after checking that the target does not exist.
+	 *
+	 * @param source
+	 * @param target
+	 * @throws FileAlreadyExistsException if the target file exists
+	 * @throws IOException
+	 */
+	public static void moveNoReplace(File source, File target) throws IOException {
+		try {
+			Files.createLink(target.toPath(), source.toPath());
+		} catch (FileAlreadyExistsException ex) {
+			throw ex;
+		} catch (UnsupportedOperationException | IOException ex) {
+			Files.move(source.toPath(), target.toPath());
+			return;
+		}
+		Files.delete(source.toPath());
 	}
 
 	/**
@@ -107,42 +122,68 @@ public class FileUtils {
 	}
 
 	/**
-	 * Downloads a file from the specified URL and writes it to the specified destination file.
-	 * If the destination file already exists it will be overwritten.
-	 *
-	 * @param sourceUrl
+	 * Returns the temporary file to which the specified destination file is downloaded.
 	 * @param destinationFile
-	 * @throws IOException
 	 */
-	public static void downloadFile(URL sourceUrl, File destinationFile) throws IOException {
-		HttpURLConnection urlConnection = null;
+	public static File getPartFile(File destinationFile) {
+		return new File(destinationFile.getParentFile(), destinationFile.getName() + PART_FILE_SUFFIX);
+	}
+
+	/**
+	 * Returns a new SHA-256 message digest.
+	 */
+	public static MessageDigest newContentDigest() {
 		try {
-			urlConnection = (HttpURLConnection)sourceUrl.openConnection();
-			long fileSize = urlConnection.getContentLengthLong();
-			createParentDirectories(destinationFile);
-			download(urlConnection, destinationFile, fileSize);
-
-		} finally {
-			if (urlConnection != null)
-				urlConnection.disconnect();
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException("SHA-256 is not supported", ex);
 		}
 	}
 
-	private static void download(URLConnection urlConnection, File destinationFile, long fileSize) throws IOException {
-
-		final OpenOption[] OVERWRITE_IF_EXISTS = new OpenOption[] {
-				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING };
+	/**
+	 * Updates the specified digest with the first {@code length} bytes of the specified file.
+	 * @param file
+	 * @param length
+	 * @param digest
+	 * @throws IOException
+	 */
+	public static void digest(File file, long length, MessageDigest digest) throws IOException {
+		digest(file, length, digest, null);
+	}
 
-		try (ReadableByteChannel inChannel = Channels.newChannel(urlConnection.getInputStream());
-				FileChannel outChannel = FileChannel.open(destinationFile.toPath(), OVERWRITE_IF_EXISTS)) {
-			transfer(inChannel, outChannel, fileSize);
+	/**
+	 * Updates the specified digest with the first {@code length} bytes of the specified file,
+	 * reading the file sequentially in large blocks at the rate allowed by the specified limiter.
+	 * @param file
+	 * @param length
+	 * @param digest
+	 * @param rateLimiter the rate limiter or null for no limit
+	 * @throws IOException
+	 */
+	public static void digest(File file, long length, MessageDigest digest, ByteRateLimiter rateLimiter) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long remaining = length;
+			while (remaining > 0) {
+				buffer.clear().limit((int)Math.min(buffer.capacity(), remaining));
+				if (rateLimiter != null) {
+					rateLimiter.acquire(buffer.remaining());
+				}
+				int read = channel.read(buffer);
+				if (read < 0) {
+					throw new IOException("Unexpected end of file " + file);
+				}
+				digest.update(buffer.array(), 0, read);
+				remaining -= read;
+			}
 		}
 	}
 
-	private static void transfer(ReadableByteChannel in, FileChannel out, long size) throws IOException {
-		long position = 0;
-		while (position < size) {
-			position += out.transferFrom(in, position, size);
-		}
+	/**
+	 * Returns the specified digest as a lowercase hex string.
+	 * @param digest
+	 */
+	public static String toHex(byte[] digest) {
+		return HexFormat.of().formatHex(digest);
 	}
 }
@@ -0,0 +1,263 @@
+package pm.google.photos.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Controls how the downloaded files are written to the disk - the write buffers, the preallocation
+ * and when the files are synced to the storage device.
+ *
+ * <p>
+ * The response body buffers are copied into large direct buffers, which are reused by the downloads,
+ * so the file is written in a few large writes instead of one write per network buffer. A file of a
+ * known size above the preallocation threshold is extended to its final size before it is written,
+ * so the file system does not have to grow it with every write.
+ * </p>
+ *
+ * <p>
+ * The durability policy decides when the written files are synced:
+ * <ul>
+ * <li>{@link Durability#NONE} - never, the operating system writes the files back when it sees fit,
+ * a power loss can leave truncated files which look complete</li>
+ * <li>{@link Durability#FILE} - the content of each file is synced before it is renamed to its final
+ * name and the directory after the rename, so a file with the final name is always complete</li>
+ * <li>{@link Durability#BATCH} - the renamed files are synced together, every N files or MB and always
+ * before the index commits the items of the files (see {@link #sync()}), so the index never refers to
+ * a file which is not synced. A power loss can leave truncated files which are not in the index.
+ * The files of a failed sync are synced again by the next sync.</li>
+ * </ul>
+ * </p>
+ */
+public class FileWriteEngine {
+
+	public enum Durability { NONE, FILE, BATCH }
+
+	public static final int DEFAULT_WRITE_BUFFER_SIZE = 1024 * 1024;
+	public static final int DEFAULT_SYNC_BATCH_FILES = 100;
+	public static final long DEFAULT_SYNC_BATCH_BYTES = 256L * 1024 * 1024;
+
+
+	private Durability durability = Durability.NONE;
+	private int writeBufferSize = DEFAULT_WRITE_BUFFER_SIZE;
+	private long preallocationThreshold = 0;
+	private int syncBatchFiles = DEFAULT_SYNC_BATCH_FILES;
+	private long syncBatchBytes = DEFAULT_SYNC_BATCH_BYTES;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> writeBuffers = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The renamed files which are not synced yet, guarded by {@code this}.
+	 */
+	private List<File> unsyncedFiles = new ArrayList<>();
+	private long unsyncedBytes = 0;
+
+	/**
+	 * Serializes the batch syncs, so a sync returns only when the files of a concurrent sync are synced too.
+	 */
+	private final Object syncLock = new Object();
+
+
+	public void setDurability(Durability durability) {
+		this.durability = durability;
+	}
+
+
+	public Durability getDurability() {
+		return this.durability;
+	}
+
+
+	/**
+	 * Sets the size of the direct buffers through which the files are written.
+	 * @param writeBufferSize
+	 */
+	public void setWriteBufferSize(int writeBufferSize) {
+		if (writeBufferSize < 1) {
+			throw new IllegalArgumentException("writeBufferSize must be positive: " + writeBufferSize);
+		}
+		this.writeBufferSize = writeBufferSize;
+	}
+
+
+	/**
+	 * Sets the minimum size of the files which are preallocated, 0 disables the preallocation.
+	 * @param preallocationThreshold
+	 */
+	public void setPreallocationThreshold(long preallocationThreshold) {
+		this.preallocationThreshold = preallocationThreshold;
+	}
+
+
+	/**
+	 * Sets the number of files and bytes after which the batched files are synced.
+	 * @param files
+	 * @param bytes
+	 */
+	public void setSyncBatch(int files, long bytes) {
+		if (files < 1 || bytes < 1) {
+			throw new IllegalArgumentException("sync batch must be positive: " + files + " files, " + bytes + " bytes");
+		}
+		this.syncBatchFiles = files;
+		this.syncBatchBytes = bytes;
+	}
+
+
+	/**
+	 * Checks if a file of the specified size is preallocated.
+	 * @param fileSize the file size or -1 if not known
+	 */
+	public boolean isPreallocated(long fileSize) {
+		return this.preallocationThreshold > 0 && fileSize >= this.preallocationThreshold;
+	}
+
+
+	/**
+	 * Extends the file to the specified size, if it is preallocated.
+	 */
+	void preallocate(FileChannel channel, long fileSize) throws IOException {
+		if (isPreallocated(fileSize) && channel.size() < fileSize) {
+			channel.write(ByteBuffer.allocate(1), fileSize - 1);
+		}
+	}
+
+
+	/**
+	 * Takes a write buffer from the pool, it must be returned with {@link #releaseWriteBuffer(ByteBuffer)}.
+	 */
+	ByteBuffer acquireWriteBuffer() {
+		ByteBuffer buffer = this.writeBuffers.poll();
+		if (buffer == null || buffer.capacity() != this.writeBufferSize) {
+			buffer = ByteBuffer.allocateDirect(this.writeBufferSize);
+		}
+		return buffer;
+	}
+
+
+	void releaseWriteBuffer(ByteBuffer buffer) {
+		buffer.clear();
+		this.writeBuffers.offer(buffer);
+	}
+
+
+	/**
+	 * Called when a file is completely written, before it is renamed to its final name.
+	 * @param file
+	 */
+	public void beforeRename(File file) throws IOException {
+		if (this.durability == Durability.FILE) {
+			syncFile(file);
+		}
+	}
+
+
+	/**
+	 * Called after a completely written file is renamed to its final name.
+	 * @param file
+	 */
+	public void afterRename(File file) {
+		if (this.durability == Durability.FILE) {
+			syncDirectory(file.getParentFile());
+
+		} else if (this.durability == Durability.BATCH) {
+			boolean batchFull;
+			synchronized (this) {
+				this.unsyncedFiles.add(file);
+				this.unsyncedBytes += file.length();
+				batchFull = this.unsyncedFiles.size() >= this.syncBatchFiles || this.unsyncedBytes >= this.syncBatchBytes;
+			}
+			if (batchFull) {
+				try {
+					sync();
+				} catch (IOException ex) {
+					// the file is complete, the files stay unsynced and are synced again before the commit
+					System.out.println(ex.getMessage() + ": " + ex.getCause().getMessage());
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Syncs the renamed files which are not synced yet, and their directories.
+	 * Must be called before the items of the files are committed to the index.
+	 * @throws IOException if a file cannot be synced, the files which are not synced stay in the batch
+	 */
+	public void sync() throws IOException {
+		synchronized (this.syncLock) {
+			List<File> files;
+			synchronized (this) {
+				if (this.unsyncedFiles.isEmpty()) {
+					return;
+				}
+				files = this.unsyncedFiles;
+				this.unsyncedFiles = new ArrayList<>();
+				this.unsyncedBytes = 0;
+			}
+
+			Set<File> dirs = new LinkedHashSet<>();
+			for (int i = 0; i < files.size(); i++) {
+				File file = files.get(i);
+				try {
+					if (file.exists()) {
+						syncFile(file);
+						dirs.add(file.getParentFile());
+					}
+				} catch (IOException ex) {
+					// the files which are not synced go back to the batch, before the files renamed since
+					List<File> unsyncedFiles = new ArrayList<>(files.subList(i, files.size()));
+					synchronized (this) {
+						unsyncedFiles.addAll(this.unsyncedFiles);
+						this.unsyncedFiles = unsyncedFiles;
+						this.unsyncedBytes = unsyncedFiles.stream().mapToLong(File::length).sum();
+					}
+					throw new IOException("Failed to sync downloaded file " + file, ex);
+				}
+			}
+			for (File dir : dirs) {
+				syncDirectory(dir);
+			}
+		}
+	}
+
+
+	/**
+	 * Syncs the batched files like {@link #sync()}, e.g. as the action before the index commits their items.
+	 * @throws UncheckedIOException if a file cannot be synced
+	 */
+	public void syncBeforeCommit() {
+		try {
+			sync();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex.getMessage(), ex);
+		}
+	}
+
+
+	private static void syncFile(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+
+	/**
+	 * Syncs the directory entries, i.e. the file renames. Not supported on all platforms, e.g. Windows.
+	 */
+	private static void syncDirectory(File dir) {
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException ex) {
+			// the directory cannot be opened or synced on this platform
+		}
+	}
+}
@@ -3,10 +3,18 @@ package pm.google.photos.backup;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
@@ -27,13 +35,63 @@ public class GooglePhotosBackupApp {
 	private static final String CMD_OPTION_BACKUP_DIR = "backup_dir";
 	private static final String CMD_OPTION_BACKUP_DIR_DEFAULT = "backup";
 
+	private static final String CMD_OPTION_ACCOUNTS = "accounts";
+
 	private static final String CMD_OPTION_START_DATE = "start_date";
 	private static final String CMD_OPTION_END_DATE = "end_date";
 
 	private static final String CMD_OPTION_MEDIA_TYPE = "media_type";
 
+	private static final String CMD_OPTION_PARALLELISM = "parallelism";
+	private static final String CMD_OPTION_PARALLELISM_DEFAULT = "1";
+
+	private static final String CMD_OPTION_LISTING_PARALLELISM = "listing_parallelism";
+
+	private static final String CMD_OPTION_SEGMENTS = "segments";
+	private static final String CMD_OPTION_SEGMENT_THRESHOLD = "segment_threshold";
+
+	private static final String CMD_OPTION_CONNECT_TIMEOUT = "connect_timeout";
+	private static final String CMD_OPTION_READ_TIMEOUT = "read_timeout";
+
+	private static final String CMD_OPTION_FSYNC = "fsync";
+	private static final String CMD_OPTION_FSYNC_BATCH_FILES = "fsync_batch_files";
+	private static final String CMD_OPTION_FSYNC_BATCH_SIZE = "fsync_batch_size";
+	private static final String CMD_OPTION_WRITE_BUFFER_SIZE = "write_buffer_size";
+	private static final String CMD_OPTION_PREALLOCATE_THRESHOLD = "preallocate_threshold";
+
+	private static final String CMD_OPTION_DIFF_MEMORY = "diff_memory";
+	private static final String CMD_OPTION_LISTING_FRESHNESS = "listing_freshness";
+
+	private static final String CMD_OPTION_DAEMON = "daemon";
+	private static final String CMD_OPTION_SYNC_INTERVAL = "sync_interval";
+	private static final String CMD_OPTION_SYNC_DAYS = "sync_days";
+	private static final String CMD_OPTION_RECONCILE_INTERVAL = "reconcile_interval";
+
+	private static final String CMD_OPTION_METRICS_FILE = "metrics_file";
+
+	private static final String CMD_OPTION_VERIFY = "verify";
+	private static final String CMD_OPTION_REPAIR = "repair";
+	private static final String CMD_OPTION_VERIFY_RATE_LIMIT = "verify_rate_limit";
+
 	private static final String CMD_OPTION_HELP = "help";
 
+	private static final long MEGABYTE = 1024 * 1024;
+
+	/**
+	 * Serializes the authorizations of the accounts of a multi-account backup, which may ask for the consent of the user.
+	 */
+	private static final Object AUTHORIZATION_LOCK = new Object();
+
+	/**
+	 * The indexes of the running backups, closed by the shutdown hook if the JVM exits
+	 * before the backups finish, e.g. when a daemon is stopped, so their pending items are committed.
+	 */
+	private static final Set<BatchingPhotosIndex> OPEN_INDEXES = ConcurrentHashMap.newKeySet();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> OPEN_INDEXES.forEach(BatchingPhotosIndex::close), "index-shutdown"));
+	}
+
 
 	public static void main(String[] args) {
 
@@ -41,9 +99,32 @@ public class GooglePhotosBackupApp {
 
 		options.addOption(CMD_OPTION_CLIENT_SECRET, true, "the path to the client_secret.json file");
 		options.addOption(CMD_OPTION_BACKUP_DIR, 	true, "the backup directory where photos will be downloaded");
+		options.addOption(CMD_OPTION_ACCOUNTS,      true, "optional accounts file listing the client secret file and the backup directory of each account, the accounts are backed up concurrently and share the download parallelism");
 		options.addOption(CMD_OPTION_START_DATE, 	true, "optional start date (YYYY-MM-DD), if specified only photos created after this date will be backed up");
 		options.addOption(CMD_OPTION_END_DATE, 		true, "optional end date (YYYY-MM-DD), if specified only photos created before this date will be backed up");
 		options.addOption(CMD_OPTION_MEDIA_TYPE,    true, "the media type - photo or video, if not specified both photo and video items will be backed up");
+		options.addOption(CMD_OPTION_PARALLELISM,   true, "the number of media items to download concurrently, default is " + CMD_OPTION_PARALLELISM_DEFAULT);
+		options.addOption(CMD_OPTION_LISTING_PARALLELISM, true, "the number of date range partitions of the library listed concurrently, default is " + GooglePhotosLibrary.DEFAULT_LISTING_PARALLELISM);
+		options.addOption(CMD_OPTION_SEGMENTS,      true, "the number of byte ranges downloaded concurrently for large files, default is " + FileDownloader.DEFAULT_SEGMENTS);
+		options.addOption(CMD_OPTION_SEGMENT_THRESHOLD, true, "the minimum file size in MB for which the file is downloaded in segments, default is " + FileDownloader.DEFAULT_SEGMENTED_DOWNLOAD_THRESHOLD / MEGABYTE);
+		options.addOption(CMD_OPTION_CONNECT_TIMEOUT, true, "the maximum time in seconds to establish a download connection, default is " + FileDownloader.DEFAULT_CONNECT_TIMEOUT.toSeconds());
+		options.addOption(CMD_OPTION_READ_TIMEOUT,  true, "the maximum time in seconds to wait for download data, default is " + FileDownloader.DEFAULT_READ_TIMEOUT.toSeconds());
+		options.addOption(CMD_OPTION_FSYNC,         true, "when the downloaded files are synced to the disk - none (default), file (each file before it gets its final name) or batch (every few files and before the index is written)");
+		options.addOption(CMD_OPTION_FSYNC_BATCH_FILES, true, "with -fsync batch, the number of files after which they are synced, default is " + FileWriteEngine.DEFAULT_SYNC_BATCH_FILES);
+		options.addOption(CMD_OPTION_FSYNC_BATCH_SIZE, true, "with -fsync batch, the size in MB after which the files are synced, default is " + FileWriteEngine.DEFAULT_SYNC_BATCH_BYTES / MEGABYTE);
+		options.addOption(CMD_OPTION_WRITE_BUFFER_SIZE, true, "the size in KB of the buffers through which the files are written, default is " + FileWriteEngine.DEFAULT_WRITE_BUFFER_SIZE / 1024);
+		options.addOption(CMD_OPTION_PREALLOCATE_THRESHOLD, true, "optional minimum file size in MB for which the file is extended to its full size before it is written, such downloads are not resumed");
+		options.addOption(CMD_OPTION_DIFF_MEMORY,   true, "the memory in MB for sorting the item ids to find the removed items, beyond which they are sorted on disk, default is " + ExternalSorter.DEFAULT_MEMORY_BUDGET / MEGABYTE);
+		options.addOption(CMD_OPTION_LISTING_FRESHNESS, true, "the age in minutes up to which the listing of a backup which has not finished is resumed or reused, 0 to list the library again, default is " + ListingCheckpoint.DEFAULT_FRESHNESS.toMinutes());
+		options.addOption(CMD_OPTION_DAEMON,        "keep running and sync the library on a schedule, instead of backing up once");
+		options.addOption(CMD_OPTION_SYNC_INTERVAL, true, "with -daemon, the time in minutes between the syncs, default is " + BackupDaemon.DEFAULT_SYNC_INTERVAL.toMinutes());
+		options.addOption(CMD_OPTION_SYNC_DAYS,     true, "with -daemon, the number of most recent days of items backed up by a sync, default is " + BackupDaemon.DEFAULT_SYNC_DAYS);
+		options.addOption(CMD_OPTION_RECONCILE_INTERVAL, true, "with -daemon, the time in hours between the syncs of the whole library, default is " + BackupDaemon.DEFAULT_RECONCILE_INTERVAL.toHours());
+
+		options.addOption(CMD_OPTION_METRICS_FILE,  true, "optional file to which the run metrics are written in the Prometheus text format, e.g. for the node exporter textfile collector");
+		options.addOption(CMD_OPTION_VERIFY,        "verify the downloaded files against the index instead of backing up, the parallelism defaults to the number of processors");
+		options.addOption(CMD_OPTION_REPAIR,        "with -verify, remove the bad items from the index and delete their files, so they are downloaded by the next backup");
+		options.addOption(CMD_OPTION_VERIFY_RATE_LIMIT, true, "with -verify, the maximum read rate in MB per second, no limit by default");
 
 		options.addOption(CMD_OPTION_HELP, "print usage");
 
@@ -56,13 +137,38 @@ public class GooglePhotosBackupApp {
 				System.exit(0);
 			}
 
-			File clientSecretFile = getClientSecretFile(cmdLine);
-			File backupDir = getBackupDir(cmdLine);
+			if (cmdLine.hasOption(CMD_OPTION_VERIFY)) {
+				boolean verified = runBackupVerification(
+						getBackupDir(cmdLine),
+						cmdLine.hasOption(CMD_OPTION_PARALLELISM) ? getParallelism(cmdLine) : Runtime.getRuntime().availableProcessors(),
+						getVerifyRateLimit(cmdLine),
+						cmdLine.hasOption(CMD_OPTION_REPAIR));
+				System.exit(verified ? 0 : 3);
+			}
+
 			LocalDate startDate = getStartDate(cmdLine);
 			LocalDate endDate = getEndDate(cmdLine);
 			MediaItemType mediaType = getMediaType(cmdLine);
+			int parallelism = getParallelism(cmdLine);
+			int listingParallelism = getListingParallelism(cmdLine);
+			FileDownloader fileDownloader = getFileDownloader(cmdLine);
+			long diffMemoryBudget = getDiffMemoryBudget(cmdLine);
+			Duration listingFreshness = getListingFreshness(cmdLine);
+
+			if (cmdLine.hasOption(CMD_OPTION_ACCOUNTS)) {
+				List<BackupAccount> accounts = BackupAccount.load(new File(cmdLine.getOptionValue(CMD_OPTION_ACCOUNTS)));
+				runMultiAccountBackup(accounts, startDate, endDate, mediaType, parallelism, listingParallelism,
+						fileDownloader, diffMemoryBudget, listingFreshness, () -> getBackupDaemon(cmdLine));
+				System.exit(0);
+			}
+
+			File clientSecretFile = getClientSecretFile(cmdLine);
+			File backupDir = getBackupDir(cmdLine);
+			BackupDaemon daemon = getBackupDaemon(cmdLine);
+			File metricsFile = getMetricsFile(cmdLine);
 
-			runGooglePhotosBackup(clientSecretFile, backupDir, startDate, endDate, mediaType);
+			runGooglePhotosBackup(clientSecretFile, backupDir, startDate, endDate, mediaType, parallelism, listingParallelism,
+					fileDownloader, null, diffMemoryBudget, listingFreshness, daemon, metricsFile);
 			System.exit(0);
 		}
 		catch (ParseException ex) {
@@ -78,12 +184,74 @@ public class GooglePhotosBackupApp {
 	}
 
 
+	/**
+	 * Backs up the specified accounts concurrently in this process. The downloads of all accounts share
+	 * the specified parallelism, in turns, and the connections of the file downloader.
+	 * @param daemons creates the daemon which runs the backup of an account or returns null to back up once
+	 */
+	public static void runMultiAccountBackup(
+			List<BackupAccount> accounts,
+			LocalDate startDate,
+			LocalDate endDate,
+			MediaItemType mediaType,
+			int parallelism,
+			int listingParallelism,
+			FileDownloader fileDownloader,
+			long diffMemoryBudget,
+			Duration listingFreshness,
+			Supplier<BackupDaemon> daemons) {
+
+		System.out.println("Backing up " + accounts.size() + " accounts, downloading up to " + parallelism + " items concurrently in total");
+
+		FairScheduler scheduler = new FairScheduler(parallelism);
+		List<String> failedAccounts = Collections.synchronizedList(new ArrayList<>());
+
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (BackupAccount account : accounts) {
+				executor.execute(() -> {
+					try {
+						runGooglePhotosBackup(
+								checkClientSecretFile(account.getClientSecretFile()),
+								createBackupDir(account.getBackupDir()),
+								startDate, endDate, mediaType,
+								account.getParallelism() > 0 ? account.getParallelism() : parallelism,
+								listingParallelism, fileDownloader, scheduler, diffMemoryBudget, listingFreshness,
+								daemons.get(), account.getMetricsFile());
+					} catch (RuntimeException ex) {
+						ex.printStackTrace();
+						System.out.println("Backup of account " + account.getName() + " failed: " + ex.getMessage());
+						failedAccounts.add(account.getName());
+					}
+				});
+			}
+		}
+
+		if (!failedAccounts.isEmpty()) {
+			throw new RuntimeException("Backup failed for " + failedAccounts.size() + " of " + accounts.size()
+					+ " accounts: " + String.join(", ", failedAccounts));
+		}
+	}
+
+
+	/**
+	 * Backs up one account.
+	 * @param scheduler the scheduler shared with the backups of other accounts or null
+	 * @param listingFreshness the maximum age of a listing which is resumed or null to list the library again
+	 */
 	public static void runGooglePhotosBackup(
 			File clientSecretFile,
 			File backupDir,
 			LocalDate startDate,
 			LocalDate endDate,
-			MediaItemType mediaType) {
+			MediaItemType mediaType,
+			int parallelism,
+			int listingParallelism,
+			FileDownloader fileDownloader,
+			FairScheduler scheduler,
+			long diffMemoryBudget,
+			Duration listingFreshness,
+			BackupDaemon daemon,
+			File metricsFile) {
 
 		System.out.println("Client secret file is " + clientSecretFile.getAbsolutePath());
 		System.out.println("Backup directory is " + backupDir.getAbsolutePath());
@@ -95,45 +263,136 @@ public class GooglePhotosBackupApp {
 		System.out.println("Backing up " + (mediaType != null ?
 				mediaType.name().toLowerCase() + " only" : "photos and videos"));
 
+		System.out.println("Downloading up to " + parallelism + " items concurrently");
+
 		File dataStoreDir = new File(backupDir, ".data_store");
 		File credentialsDataStore = new File(dataStoreDir, "credentials");
 		File photosIndexDataStore = new File(dataStoreDir, "index");
+		File photosIndexLog = new File(dataStoreDir, "index.log");
+		File downloadJournalFile = new File(dataStoreDir, "journal.log");
+		File listingCheckpointFile = new File(dataStoreDir, "listing.checkpoint");
 		File photosBackupDir = new File(backupDir, "photos");
 
 		String userId = System.getProperty("user.name");
 		List<String> scopes = Arrays.asList("https://www.googleapis.com/auth/photoslibrary.readonly");
-		Credentials credentials = new GoogleAuthFlow(clientSecretFile, credentialsDataStore).authorize(userId, scopes);
+		Credentials credentials;
+		synchronized (AUTHORIZATION_LOCK) {
+			credentials = new GoogleAuthFlow(clientSecretFile, credentialsDataStore).authorize(userId, scopes);
+		}
 
 		GooglePhotosLibrary photosLibrary = null;
-		DownloadedPhotosJDS photosIndex = null;
+		DownloadedPhotosIndex photosIndex = null;
+		DownloadJournal journal = null;
+		ListingCheckpoint listingCheckpoint = null;
+		BackupMetrics metrics = new BackupMetrics();
 
 		try {
 
 			photosLibrary = new GooglePhotosLibrary(credentials);
+			photosLibrary.setListingParallelism(listingParallelism);
+			photosLibrary.setMetrics(metrics);
 			photosLibrary.initialize();
 
-			photosIndex = DownloadedPhotosJDS.create(photosIndexDataStore);
-			photosIndex.initialize();
+			DownloadedPhotosLog photosIndexStorage = DownloadedPhotosLog.create(photosIndexLog, photosIndexDataStore);
+			photosIndexStorage.initialize();
+			BatchingPhotosIndex batchingIndex = new BatchingPhotosIndex(photosIndexStorage);
+			// the downloaded files are synced before their items are committed, as the durability policy requires
+			batchingIndex.setBeforeCommit(fileDownloader.getWriteEngine()::syncBeforeCommit);
+			photosIndex = batchingIndex;
+			OPEN_INDEXES.add(batchingIndex);
+
+			journal = new DownloadJournal(downloadJournalFile, photosBackupDir);
+			journal.setSync(fileDownloader.getWriteEngine().getDurability() != FileWriteEngine.Durability.NONE);
 
 			PhotosBackupRunner backup = new PhotosBackupRunner(photosLibrary, photosIndex, photosBackupDir);
 			backup.setStartDate(startDate);
 			backup.setEndDate(endDate);
 			backup.setMediaItemType(mediaType);
-			backup.run();
+			backup.setParallelism(parallelism);
+			backup.setScheduler(scheduler);
+			backup.setFileDownloader(fileDownloader);
+			backup.setMetrics(metrics);
+			backup.setJournal(journal);
+			if (listingFreshness != null) {
+				listingCheckpoint = new ListingCheckpoint(listingCheckpointFile);
+				listingCheckpoint.setFreshness(listingFreshness);
+				backup.setListingCheckpoint(listingCheckpoint);
+			} else {
+				new ListingCheckpoint(listingCheckpointFile).delete();
+			}
+			// the sorted runs of the item ids are spilled next to the index
+			backup.setDiffMemoryBudget(diffMemoryBudget, dataStoreDir);
+
+			if (daemon != null) {
+				DownloadJournal daemonJournal = journal;
+				daemon.setAfterSync(() -> {
+					// the journal is truncated only after the index is committed
+					batchingIndex.flush();
+					daemonJournal.checkpoint();
+					if (metricsFile != null)
+						metrics.writePrometheusFile(metricsFile);
+				});
+				daemon.run(backup);
+			} else {
+				backup.run();
+			}
 
 		} finally {
 			if (photosLibrary != null)
 				photosLibrary.close();
-			if (photosIndex != null)
+			if (photosIndex != null) {
 				photosIndex.close();
+				OPEN_INDEXES.remove(photosIndex);
+			}
+			// the journal is truncated only after the index is committed
+			if (journal != null)
+				journal.close();
+			if (listingCheckpoint != null)
+				listingCheckpoint.close();
+			if (metricsFile != null)
+				metrics.writePrometheusFile(metricsFile);
+		}
+	}
+
+
+	/**
+	 * Verifies the downloaded files against the photos index.
+	 * @return true if all files could be read and no bad items were found, or they were all repaired
+	 */
+	public static boolean runBackupVerification(File backupDir, int parallelism, long rateLimit, boolean repair) {
+
+		System.out.println("Backup directory is " + backupDir.getAbsolutePath());
+		System.out.println("Verifying up to " + parallelism + " files concurrently"
+				+ (rateLimit > 0 ? ", reading at most " + rateLimit / MEGABYTE + " MB per second" : ""));
+
+		File dataStoreDir = new File(backupDir, ".data_store");
+		File photosIndexDataStore = new File(dataStoreDir, "index");
+		File photosIndexLog = new File(dataStoreDir, "index.log");
+		File photosBackupDir = new File(backupDir, "photos");
+
+		DownloadedPhotosLog photosIndex = DownloadedPhotosLog.create(photosIndexLog, photosIndexDataStore);
+		try {
+			photosIndex.initialize();
+
+			BackupVerifier verifier = new BackupVerifier(photosIndex, photosBackupDir);
+			verifier.setParallelism(parallelism);
+			verifier.setRateLimit(rateLimit);
+			verifier.setRepair(repair);
+			return verifier.run();
+
+		} finally {
+			photosIndex.close();
 		}
 	}
 
 
 	private static File getClientSecretFile(CommandLine cmdLine) {
+		return checkClientSecretFile(new File(cmdLine.getOptionValue(
+				CMD_OPTION_CLIENT_SECRET, CMD_OPTION_CLIENT_SECRET_DEFAULT)));
+	}
+
 
-		File clientSecretFile = new File(cmdLine.getOptionValue(
-				CMD_OPTION_CLIENT_SECRET, CMD_OPTION_CLIENT_SECRET_DEFAULT));
+	private static File checkClientSecretFile(File clientSecretFile) {
 
 		if (!clientSecretFile.exists())
 			throw new RuntimeException("Invalid client secret file: " + clientSecretFile.getAbsolutePath());
@@ -143,9 +402,12 @@ public class GooglePhotosBackupApp {
 
 
 	private static File getBackupDir(CommandLine cmdLine) {
+		return createBackupDir(new File(cmdLine.getOptionValue(
+				CMD_OPTION_BACKUP_DIR, CMD_OPTION_BACKUP_DIR_DEFAULT)));
+	}
+
 
-		File backupDir = new File(cmdLine.getOptionValue(
-				CMD_OPTION_BACKUP_DIR, CMD_OPTION_BACKUP_DIR_DEFAULT));
+	private static File createBackupDir(File backupDir) {
 		try {
 			Files.createDirectories(backupDir.toPath());
 			return backupDir;
@@ -182,6 +444,100 @@ public class GooglePhotosBackupApp {
 	}
 
 
+	private static int getParallelism(CommandLine cmdLine) {
+		return parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_PARALLELISM, CMD_OPTION_PARALLELISM_DEFAULT));
+	}
+
+
+	private static int getListingParallelism(CommandLine cmdLine) {
+		return cmdLine.hasOption(CMD_OPTION_LISTING_PARALLELISM) ?
+				parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_LISTING_PARALLELISM)) : GooglePhotosLibrary.DEFAULT_LISTING_PARALLELISM;
+	}
+
+
+	private static long getDiffMemoryBudget(CommandLine cmdLine) {
+		return cmdLine.hasOption(CMD_OPTION_DIFF_MEMORY) ?
+				parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_DIFF_MEMORY)) * MEGABYTE : ExternalSorter.DEFAULT_MEMORY_BUDGET;
+	}
+
+
+	private static Duration getListingFreshness(CommandLine cmdLine) {
+		if (!cmdLine.hasOption(CMD_OPTION_LISTING_FRESHNESS))
+			return ListingCheckpoint.DEFAULT_FRESHNESS;
+		String value = cmdLine.getOptionValue(CMD_OPTION_LISTING_FRESHNESS);
+		return value.equals("0") ? null : Duration.ofMinutes(parsePositiveInt(value));
+	}
+
+
+	private static BackupDaemon getBackupDaemon(CommandLine cmdLine) {
+		if (!cmdLine.hasOption(CMD_OPTION_DAEMON))
+			return null;
+		BackupDaemon daemon = new BackupDaemon();
+		if (cmdLine.hasOption(CMD_OPTION_SYNC_INTERVAL))
+			daemon.setSyncInterval(Duration.ofMinutes(parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_SYNC_INTERVAL))));
+		if (cmdLine.hasOption(CMD_OPTION_SYNC_DAYS))
+			daemon.setSyncDays(parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_SYNC_DAYS)));
+		if (cmdLine.hasOption(CMD_OPTION_RECONCILE_INTERVAL))
+			daemon.setReconcileInterval(Duration.ofHours(parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_RECONCILE_INTERVAL))));
+		return daemon;
+	}
+
+
+	private static File getMetricsFile(CommandLine cmdLine) {
+		return cmdLine.hasOption(CMD_OPTION_METRICS_FILE) ?
+				new File(cmdLine.getOptionValue(CMD_OPTION_METRICS_FILE)) : null;
+	}
+
+
+	private static long getVerifyRateLimit(CommandLine cmdLine) {
+		return cmdLine.hasOption(CMD_OPTION_VERIFY_RATE_LIMIT) ?
+				parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_VERIFY_RATE_LIMIT)) * MEGABYTE : 0;
+	}
+
+
+	private static FileDownloader getFileDownloader(CommandLine cmdLine) {
+		FileDownloader fileDownloader = new FileDownloader(cmdLine.hasOption(CMD_OPTION_CONNECT_TIMEOUT) ?
+				Duration.ofSeconds(parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_CONNECT_TIMEOUT))) : FileDownloader.DEFAULT_CONNECT_TIMEOUT);
+		if (cmdLine.hasOption(CMD_OPTION_SEGMENTS))
+			fileDownloader.setSegments(parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_SEGMENTS)));
+		if (cmdLine.hasOption(CMD_OPTION_SEGMENT_THRESHOLD))
+			fileDownloader.setSegmentedDownloadThreshold(parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_SEGMENT_THRESHOLD)) * MEGABYTE);
+		if (cmdLine.hasOption(CMD_OPTION_READ_TIMEOUT))
+			fileDownloader.setReadTimeout(Duration.ofSeconds(parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_READ_TIMEOUT))));
+		fileDownloader.setWriteEngine(getFileWriteEngine(cmdLine));
+		return fileDownloader;
+	}
+
+
+	private static FileWriteEngine getFileWriteEngine(CommandLine cmdLine) {
+		FileWriteEngine writeEngine = new FileWriteEngine();
+		if (cmdLine.hasOption(CMD_OPTION_FSYNC))
+			writeEngine.setDurability(FileWriteEngine.Durability.valueOf(cmdLine.getOptionValue(CMD_OPTION_FSYNC).toUpperCase()));
+		if (cmdLine.hasOption(CMD_OPTION_FSYNC_BATCH_FILES) || cmdLine.hasOption(CMD_OPTION_FSYNC_BATCH_SIZE))
+			writeEngine.setSyncBatch(
+					cmdLine.hasOption(CMD_OPTION_FSYNC_BATCH_FILES) ?
+							parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_FSYNC_BATCH_FILES)) : FileWriteEngine.DEFAULT_SYNC_BATCH_FILES,
+					cmdLine.hasOption(CMD_OPTION_FSYNC_BATCH_SIZE) ?
+							parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_FSYNC_BATCH_SIZE)) * MEGABYTE : FileWriteEngine.DEFAULT_SYNC_BATCH_BYTES);
+		if (cmdLine.hasOption(CMD_OPTION_WRITE_BUFFER_SIZE))
+			writeEngine.setWriteBufferSize(parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_WRITE_BUFFER_SIZE)) * 1024);
+		if (cmdLine.hasOption(CMD_OPTION_PREALLOCATE_THRESHOLD))
+			writeEngine.setPreallocationThreshold(parsePositiveInt(cmdLine.getOptionValue(CMD_OPTION_PREALLOCATE_THRESHOLD)) * MEGABYTE);
+		return writeEngine;
+	}
+
+
+	private static int parsePositiveInt(String value) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number < 1) throw new NumberFormatException();
+			return number;
+		} catch (NumberFormatException ex) {
+			throw new RuntimeException("Invalid positive number: " + value);
+		}
+	}
+
+
 	private static void printHelp(Options options) {
 		HelpFormatter help = new HelpFormatter();
 		help.setOptionComparator(null);
@@ -7,15 +7,31 @@ import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.api.gax.rpc.ApiException;
 import com.google.auth.Credentials;
 import com.google.photos.library.v1.PhotosLibraryClient;
 import com.google.photos.library.v1.PhotosLibrarySettings;
+import com.google.photos.library.v1.proto.BatchGetMediaItemsResponse;
 import com.google.photos.library.v1.proto.DateFilter;
 import com.google.photos.library.v1.proto.Filters;
+import com.google.photos.library.v1.proto.MediaItemResult;
 import com.google.photos.library.v1.proto.MediaTypeFilter;
 import com.google.photos.library.v1.proto.MediaTypeFilter.MediaType;
+import com.google.photos.library.v1.proto.SearchMediaItemsRequest;
+import com.google.photos.library.v1.proto.SearchMediaItemsResponse;
 import com.google.photos.types.proto.DateRange;
 import com.google.photos.types.proto.MediaItem;
 import com.google.protobuf.Timestamp;
@@ -25,16 +41,62 @@ import com.google.type.Date;
 /**
  * A wrapper for the google photos client -
  * {@linkplain PhotosLibraryClient}.
+ *
+ * The API calls go through a {@link Backend}, which is the client by default, so the library
+ * can also be backed by a stand-in, e.g. the fake library of the load test.
  */
 public class GooglePhotosLibrary {
 
+	/**
+	 * The Photos Library API calls used by the library.
+	 */
+	public interface Backend extends AutoCloseable {
+
+		/**
+		 * Requests one page of the media items matching the filters of the specified request,
+		 * starting at its page token.
+		 */
+		SearchMediaItemsResponse searchMediaItems(SearchMediaItemsRequest request);
+
+		MediaItem getMediaItem(String mediaItemId);
+
+		BatchGetMediaItemsResponse batchGetMediaItems(List<String> mediaItemIds);
+
+		@Override
+		void close();
+	}
+
 	private static final LocalDate DATE_MIN = LocalDate.of(1, 1, 1);
 	private static final LocalDate DATE_MAX = LocalDate.of(9999, 12, 31);
 
+	public static final int DEFAULT_LISTING_PARALLELISM = 4;
+
+	/**
+	 * The maximum page size of a search, the default is only 25 items.
+	 */
+	private static final int SEARCH_PAGE_SIZE = 100;
+
+	/**
+	 * The number of most recent years which are listed as separate partitions,
+	 * all older items are listed as one partition.
+	 */
+	private static final int PARTITIONED_YEARS = 20;
+
+	/**
+	 * The maximum number of concurrent API calls, lowered while the API quota is exceeded.
+	 */
+	private static final int MAX_CONCURRENT_CALLS = 8;
+
 
 	private final Credentials credentials;
 
-	private PhotosLibraryClient client;
+	private Backend backend;
+
+	private int listingParallelism = DEFAULT_LISTING_PARALLELISM;
+
+	private final AdaptiveThrottle throttle = new AdaptiveThrottle("Photos Library API", MAX_CONCURRENT_CALLS);
+
+	private BackupMetrics metrics = new BackupMetrics();
 
 
 	public GooglePhotosLibrary(Credentials credentials) {
@@ -42,16 +104,46 @@ public class GooglePhotosLibrary {
 	}
 
 
+	/**
+	 * Creates a library backed by the specified backend instead of the Photos Library API client.
+	 * @param backend
+	 */
+	public GooglePhotosLibrary(Backend backend) {
+		this.credentials = null;
+		this.backend = backend;
+	}
+
+
 	public Credentials getCredentials() {
 		return this.credentials;
 	}
 
 
+	/**
+	 * Sets the maximum number of date range partitions which are listed concurrently.
+	 * @param listingParallelism
+	 */
+	public void setListingParallelism(int listingParallelism) {
+		if (listingParallelism < 1) {
+			throw new IllegalArgumentException("listing parallelism must be positive: " + listingParallelism);
+		}
+		this.listingParallelism = listingParallelism;
+	}
+
+
+	public void setMetrics(BackupMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+
 	public void initialize() {
+		if (this.backend != null) {
+			return;
+		}
 		try {
 			PhotosLibrarySettings settings = PhotosLibrarySettings.newBuilder()
 					.setCredentialsProvider(this::getCredentials).build();
-			this.client = PhotosLibraryClient.initialize(settings);
+			this.backend = new ClientBackend(PhotosLibraryClient.initialize(settings));
 
 		} catch (IOException ex) {
 			throw new RuntimeException("Failed to initialize photos library", ex);
@@ -60,33 +152,168 @@ public class GooglePhotosLibrary {
 
 
 	public void close() {
-		this.client.close();
+		this.backend.close();
 	}
 
 
+	/**
+	 * Returns the media items matching the specified filters, each item once.
+	 */
 	public List<MediaItem> listMediaItems(MediaItemType mediaItemType, LocalDate startDate, LocalDate endDate) {
+		Set<String> ids = new HashSet<>();
+		try (Stream<MediaItem> items = streamMediaItems(mediaItemType, startDate, endDate)) {
+			return items.filter(item -> ids.add(item.getId())).collect(Collectors.toList());
+		}
+	}
+
+
+	/**
+	 * Returns a lazy stream of the media items matching the specified filters.
+	 * The search result pages are fetched while the stream is consumed, so only a few pages
+	 * are held in memory. The date range is split into yearly partitions, which are listed
+	 * concurrently by up to {@code listingParallelism} workers, the most recent years first.
+	 * The stream must be closed to stop the workers if it is not consumed completely.
+	 * The stream is not deduplicated, an item returned more than once by the search, e.g. when
+	 * the library changes while it is listed, is repeated. The backup skips the repeated items
+	 * which are in flight or already in the index.
+	 */
+	public Stream<MediaItem> streamMediaItems(MediaItemType mediaItemType, LocalDate startDate, LocalDate endDate) {
+		return streamMediaItems(mediaItemType, startDate, endDate, null);
+	}
+
+
+	/**
+	 * Returns a lazy stream of the media items matching the specified filters, like
+	 * {@link #streamMediaItems(MediaItemType, LocalDate, LocalDate)}, and records each page in the
+	 * specified checkpoint. If the checkpoint resumes a listing of the same partitions, the complete
+	 * partitions are skipped and the others are listed from their next page, the items listed before
+	 * are not in the stream, they are returned by {@link ListingCheckpoint#streamResumedItems()}.
+	 * @param checkpoint the listing checkpoint or null
+	 */
+	public Stream<MediaItem> streamMediaItems(MediaItemType mediaItemType, LocalDate startDate, LocalDate endDate,
+			ListingCheckpoint checkpoint) {
 
 		MediaType mediaType = mediaItemType != null ?
 				toMediaType(mediaItemType) : MediaType.ALL_MEDIA;
 
-		DateRange dateRange = DateRange.newBuilder()
-				.setStartDate(toDate(startDate != null ? startDate : DATE_MIN))
-				.setEndDate(toDate(endDate != null ? endDate : DATE_MAX))
+		List<DateRange> dateRanges = (this.listingParallelism > 1) ?
+				partitionDateRange(startDate != null ? startDate : DATE_MIN, endDate != null ? endDate : DATE_MAX) :
+				List.of(toDateRange(startDate != null ? startDate : DATE_MIN, endDate != null ? endDate : DATE_MAX));
+
+		if (checkpoint != null) {
+			checkpoint.open(toListingKey(mediaType, dateRanges), dateRanges.size());
+		}
+
+		List<Iterable<MediaItem>> partitions = new ArrayList<>(dateRanges.size());
+		for (int partition = 0; partition < dateRanges.size(); partition++) {
+			if (checkpoint == null || !checkpoint.isPartitionComplete(partition)) {
+				Filters filters = toFilters(mediaType, dateRanges.get(partition));
+				int searchPartition = partition;
+				partitions.add(() -> new SearchIterator(filters, searchPartition, checkpoint));
+			}
+		}
+
+		if (partitions.isEmpty()) {
+			return Stream.empty();
+		}
+		if (partitions.size() == 1) {
+			return StreamSupport.stream(partitions.get(0).spliterator(), false);
+		}
+
+		PartitionedSearch search = new PartitionedSearch(partitions,
+				Math.min(this.listingParallelism, partitions.size()));
+
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(search, Spliterator.NONNULL), false)
+				.onClose(search::close);
+	}
+
+
+	/**
+	 * Returns a key which identifies the filters of the specified partitions in a listing checkpoint.
+	 */
+	private static String toListingKey(MediaType mediaType, List<DateRange> dateRanges) {
+		return mediaType + " " + dateRanges.stream()
+				.map(dateRange -> toLocalDate(dateRange.getStartDate()) + "/" + toLocalDate(dateRange.getEndDate()))
+				.collect(Collectors.joining(","));
+	}
+
+
+	/**
+	 * Performs an API call through the throttle, every attempt is timed separately.
+	 */
+	private <T> T call(String method, Supplier<T> call) {
+		return this.throttle.call(() -> {
+			try (BackupMetrics.Timer timer = this.metrics.startApiCall(method)) {
+				return call.get();
+			}
+		});
+	}
+
+
+	/**
+	 * Splits the specified date range into one partition for each of the last {@value #PARTITIONED_YEARS}
+	 * years, one partition for all older dates and one for all future dates, most recent first.
+	 */
+	static List<DateRange> partitionDateRange(LocalDate startDate, LocalDate endDate) {
+		int lastYear = Math.min(endDate.getYear(), LocalDate.now().getYear());
+		int firstYear = Math.max(startDate.getYear(), lastYear - PARTITIONED_YEARS + 1);
+		if (firstYear > lastYear) {
+			return List.of(toDateRange(startDate, endDate));
+		}
+
+		List<DateRange> dateRanges = new ArrayList<>();
+		LocalDate afterLastYear = LocalDate.of(lastYear + 1, 1, 1);
+		if (endDate.isAfter(afterLastYear) || endDate.isEqual(afterLastYear)) {
+			dateRanges.add(toDateRange(afterLastYear, endDate));
+		}
+		for (int year = lastYear; year >= firstYear; year--) {
+			LocalDate yearStart = LocalDate.of(year, 1, 1);
+			LocalDate yearEnd = LocalDate.of(year, 12, 31);
+			dateRanges.add(toDateRange(
+					startDate.isAfter(yearStart) ? startDate : yearStart,
+					endDate.isBefore(yearEnd) ? endDate : yearEnd));
+		}
+		LocalDate firstYearStart = LocalDate.of(firstYear, 1, 1);
+		if (startDate.isBefore(firstYearStart)) {
+			dateRanges.add(toDateRange(startDate, firstYearStart.minusDays(1)));
+		}
+		return dateRanges;
+	}
+
+
+	private static DateRange toDateRange(LocalDate startDate, LocalDate endDate) {
+		return DateRange.newBuilder()
+				.setStartDate(toDate(startDate))
+				.setEndDate(toDate(endDate))
 				.build();
+	}
 
-		Filters filters = Filters.newBuilder()
+
+	private static Filters toFilters(MediaType mediaType, DateRange dateRange) {
+		return Filters.newBuilder()
 				.setMediaTypeFilter(MediaTypeFilter.newBuilder().addMediaTypes(mediaType))
 				.setDateFilter(DateFilter.newBuilder().addRanges(dateRange))
 				.build();
-
-		List<MediaItem> items = new ArrayList<>();
-		this.client.searchMediaItems(filters).iterateAll().forEach(items::add);
-		return items;
 	}
 
 
 	public MediaItem getMediaItem(String mediaItemId) {
-		return this.client.getMediaItem(mediaItemId);
+		return call("getMediaItem", () -> this.backend.getMediaItem(mediaItemId));
+	}
+
+
+	/**
+	 * Returns the results for the media items with the specified ids, in the same order as the ids,
+	 * fetched in batches of up to {@value MediaItemRefresher#MAX_BATCH_SIZE} items per request.
+	 * A result without a media item has the status of the item which could not be fetched.
+	 */
+	public List<MediaItemResult> getMediaItems(List<String> mediaItemIds) {
+		List<MediaItemResult> results = new ArrayList<>(mediaItemIds.size());
+		for (int i = 0; i < mediaItemIds.size(); i += MediaItemRefresher.MAX_BATCH_SIZE) {
+			List<String> batch = mediaItemIds.subList(i, Math.min(i + MediaItemRefresher.MAX_BATCH_SIZE, mediaItemIds.size()));
+			results.addAll(call("batchGetMediaItems", () -> this.backend.batchGetMediaItems(batch)).getMediaItemResultsList());
+		}
+		return results;
 	}
 
 
@@ -99,6 +326,11 @@ public class GooglePhotosLibrary {
 	}
 
 
+	private static LocalDate toLocalDate(Date date) {
+		return LocalDate.of(date.getYear(), date.getMonth(), date.getDay());
+	}
+
+
 	private static Date toDate(LocalDate localDate) {
 		return Date.newBuilder()
 				.setYear(localDate.getYear())
@@ -155,4 +387,103 @@ public class GooglePhotosLibrary {
 			throw new RuntimeException("Failed to get media item download url", ex);
 		}
 	}
+
+
+	/**
+	 * Iterates the media items of a search partition, the next page is requested when the items of
+	 * the current page are consumed. Each page request is retried and recorded in the checkpoint.
+	 */
+	private class SearchIterator implements Iterator<MediaItem> {
+
+		private final Filters filters;
+		private final int partition;
+		private final ListingCheckpoint checkpoint;
+
+		private String pageToken;
+		private boolean resuming;
+		private boolean lastPage = false;
+		private Iterator<MediaItem> page = Collections.emptyIterator();
+
+		SearchIterator(Filters filters, int partition, ListingCheckpoint checkpoint) {
+			this.filters = filters;
+			this.partition = partition;
+			this.checkpoint = checkpoint;
+			this.pageToken = checkpoint != null ? checkpoint.getPageToken(partition) : null;
+			this.resuming = this.pageToken != null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!this.page.hasNext() && !this.lastPage) {
+				SearchMediaItemsResponse response = requestPage();
+				this.pageToken = response.getNextPageToken();
+				this.lastPage = this.pageToken.isEmpty();
+				if (this.checkpoint != null) {
+					this.checkpoint.recordPage(this.partition, response.getMediaItemsList(), this.pageToken);
+				}
+				this.page = response.getMediaItemsList().iterator();
+			}
+			return this.page.hasNext();
+		}
+
+		@Override
+		public MediaItem next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return this.page.next();
+		}
+
+		private SearchMediaItemsResponse requestPage() {
+			SearchMediaItemsRequest.Builder request = SearchMediaItemsRequest.newBuilder()
+					.setFilters(this.filters)
+					.setPageSize(SEARCH_PAGE_SIZE);
+			if (this.pageToken != null) {
+				request.setPageToken(this.pageToken);
+			}
+			boolean resuming = this.resuming;
+			this.resuming = false;
+			try {
+				return call("searchMediaItems", () -> GooglePhotosLibrary.this.backend.searchMediaItems(request.build()));
+			} catch (ApiException ex) {
+				if (!resuming) {
+					throw ex;
+				}
+				// the page token may have expired, the items which are listed again are skipped as duplicates
+				System.out.println("Failed to resume listing from checkpoint, listing the partition again: " + ex.getMessage());
+				this.pageToken = null;
+				return requestPage();
+			}
+		}
+	}
+
+
+	private static class ClientBackend implements Backend {
+
+		private final PhotosLibraryClient client;
+
+		ClientBackend(PhotosLibraryClient client) {
+			this.client = client;
+		}
+
+		@Override
+		public SearchMediaItemsResponse searchMediaItems(SearchMediaItemsRequest request) {
+			return this.client.searchMediaItems(request).getPage().getResponse();
+		}
+
+		@Override
+		public MediaItem getMediaItem(String mediaItemId) {
+			return this.client.getMediaItem(mediaItemId);
+		}
+
+		@Override
+		public BatchGetMediaItemsResponse batchGetMediaItems(List<String> mediaItemIds) {
+			return this.client.batchGetMediaItems(mediaItemIds);
+		}
+
+		@Override
+		public void close() {
+			this.client.close();
+		}
+	}
 }
@@ -0,0 +1,64 @@
+package pm.google.photos.backup;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+
+/**
+ * Signals that an HTTP request was answered with an error status code.
+ */
+public class HttpStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+	private final Duration retryAfter;
+
+
+	public HttpStatusException(String message, int statusCode, Duration retryAfter) {
+		super(message);
+		this.statusCode = statusCode;
+		this.retryAfter = retryAfter;
+	}
+
+
+	/**
+	 * Creates an exception for the status code of the specified response.
+	 * @param response
+	 */
+	public static HttpStatusException fromResponse(HttpResponse<?> response) {
+		int statusCode = response.statusCode();
+		return new HttpStatusException(
+				String.format("Server returned HTTP status %d for %s", statusCode, response.uri()),
+				statusCode, parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null)));
+	}
+
+
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+
+	/**
+	 * Returns the delay requested by the Retry-After header or null.
+	 */
+	public Duration getRetryAfter() {
+		return this.retryAfter;
+	}
+
+
+	/**
+	 * Parses the delay in seconds form of the Retry-After header, the HTTP date form is ignored.
+	 */
+	private static Duration parseRetryAfter(String retryAfter) {
+		if (retryAfter == null) {
+			return null;
+		}
+		try {
+			return Duration.ofSeconds(Long.parseLong(retryAfter.trim()));
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+}
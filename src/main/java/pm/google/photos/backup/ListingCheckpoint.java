@@ -0,0 +1,492 @@
+package pm.google.photos.backup;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+import com.google.photos.types.proto.MediaItem;
+
+
+/**
+ * Persists the progress of a library listing, so a backup which died while listing the library,
+ * or after listing it, does not list it again from the first page.
+ *
+ * <p>
+ * The checkpoint file starts with a listing record - the time the listing was started, the number
+ * of its partitions and a key which identifies the filters of the partitions. Each page of search
+ * results is appended as the item records of the page - id, type and creation date, in the layout
+ * of the {@link DownloadedPhotosLog} records - followed by a page record with the partition and the
+ * token of its next page, empty for the last page. The records of a page are appended with a single
+ * write and a torn record at the end is ignored, so a page is either recorded with its token or
+ * listed again.
+ * </p>
+ *
+ * <p>
+ * A listing with the same key which was started within the freshness window is resumed - the
+ * complete partitions are skipped, the others are listed from their next page, and the recorded
+ * items are returned by {@link #streamResumedItems()}. Otherwise a new listing is started. The
+ * items added to or removed from the library after the resumed listing was started are picked up
+ * by the next listing, so the window bounds how stale a resumed listing can be. A complete listing
+ * is reused only by the first listing of the process, a later listing with the same checkpoint,
+ * e.g. the next sync of a daemon, lists the library again instead of missing its new items.
+ * </p>
+ */
+public class ListingCheckpoint implements AutoCloseable {
+
+	public static final Duration DEFAULT_FRESHNESS = Duration.ofHours(6);
+
+	private static final int MAGIC = 0x4750424C; // "GPBL"
+	private static final short VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 8;
+
+	private static final byte OPERATION_ITEM = 1;
+	private static final byte OPERATION_LISTING = 2;
+	private static final byte OPERATION_PAGE = 3;
+
+	/**
+	 * The page token of a partition whose last page has been listed.
+	 */
+	private static final String PARTITION_COMPLETE = "";
+
+
+	private final File checkpointFile;
+	private final Clock clock;
+
+	private Duration freshness = DEFAULT_FRESHNESS;
+
+	private FileChannel checkpointChannel;
+
+	/**
+	 * The next page tokens of the partitions of the current listing, null for a partition which was not
+	 * listed yet and {@value #PARTITION_COMPLETE} for a complete partition.
+	 */
+	private String[] pageTokens = new String[0];
+
+	/**
+	 * The length of the resumed checkpoint file, the records after it were appended by this process.
+	 */
+	private long resumedLength = FILE_HEADER_SIZE;
+
+	/**
+	 * Whether a listing was already opened, a complete listing is then from an earlier run of this process.
+	 */
+	private boolean opened = false;
+
+
+	public ListingCheckpoint(File checkpointFile) {
+		this(checkpointFile, Clock.systemUTC());
+	}
+
+	ListingCheckpoint(File checkpointFile, Clock clock) {
+		this.checkpointFile = checkpointFile;
+		this.clock = clock;
+	}
+
+
+	/**
+	 * Sets the maximum age of a listing which is resumed, measured from the start of the listing.
+	 * @param freshness
+	 */
+	public void setFreshness(Duration freshness) {
+		if (freshness.isNegative() || freshness.isZero()) {
+			throw new IllegalArgumentException("freshness must be positive: " + freshness);
+		}
+		this.freshness = freshness;
+	}
+
+
+	/**
+	 * Resumes the listing in the checkpoint file if it has the specified key and is fresh,
+	 * otherwise starts a new listing.
+	 * @param listingKey identifies the filters of the partitions
+	 * @param partitionCount the number of partitions
+	 * @return true if the listing was resumed
+	 */
+	public synchronized boolean open(String listingKey, int partitionCount) {
+		try {
+			closeChannel();
+			boolean reuseComplete = !this.opened;
+			this.opened = true;
+			if (this.checkpointFile.exists() && resume(listingKey, partitionCount, reuseComplete)) {
+				return true;
+			}
+			startListing(listingKey, partitionCount);
+			return false;
+
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to open listing checkpoint " + this.checkpointFile, ex);
+		}
+	}
+
+
+	/**
+	 * Returns whether all pages of the specified partition have been listed.
+	 * @param partition
+	 */
+	public synchronized boolean isPartitionComplete(int partition) {
+		return PARTITION_COMPLETE.equals(this.pageTokens[partition]);
+	}
+
+
+	/**
+	 * Returns the token of the next page of the specified partition or null to list it from the first page.
+	 * @param partition
+	 */
+	public synchronized String getPageToken(int partition) {
+		return isPartitionComplete(partition) ? null : this.pageTokens[partition];
+	}
+
+
+	/**
+	 * Records the items of a page of the specified partition and the token of its next page.
+	 * @param partition
+	 * @param items
+	 * @param nextPageToken the token of the next page, empty or null for the last page
+	 */
+	public synchronized void recordPage(int partition, List<MediaItem> items, String nextPageToken) {
+		if (this.checkpointChannel == null) {
+			throw new IllegalStateException("Listing checkpoint is not open");
+		}
+		List<DownloadedMediaItem> records = new ArrayList<>(items.size());
+		for (MediaItem item : items) {
+			DownloadedMediaItem record = new DownloadedMediaItem(item.getId());
+			record.setType(GooglePhotosLibrary.getMediaItemType(item));
+			record.setCreationDate(GooglePhotosLibrary.getCreationDate(item));
+			records.add(record);
+		}
+		String pageToken = nextPageToken != null ? nextPageToken : PARTITION_COMPLETE;
+
+		ByteBuffer itemRecords = DownloadedPhotosLog.encodeRecords(OPERATION_ITEM, records);
+		ByteBuffer pageRecord = encodePageRecord(partition, pageToken);
+		try {
+			ByteBuffer[] buffers = { itemRecords, pageRecord };
+			while (pageRecord.hasRemaining()) {
+				this.checkpointChannel.write(buffers);
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to write listing checkpoint " + this.checkpointFile, ex);
+		}
+		this.pageTokens[partition] = pageToken;
+	}
+
+
+	/**
+	 * Returns the items recorded by the resumed listing, read from the checkpoint file while the
+	 * stream is consumed. The stream must be closed.
+	 */
+	public synchronized Stream<DownloadedMediaItem> streamResumedItems() {
+		try {
+			ItemReader reader = new ItemReader(this.resumedLength);
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader, Spliterator.NONNULL), false)
+					.onClose(reader::close);
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to read listing checkpoint " + this.checkpointFile, ex);
+		}
+	}
+
+
+	/**
+	 * Closes and deletes the checkpoint, e.g. after the backup of the listed items has finished,
+	 * so the next backup lists the library again.
+	 */
+	public synchronized void delete() {
+		close();
+		this.pageTokens = new String[0];
+		this.resumedLength = FILE_HEADER_SIZE;
+		if (this.checkpointFile.exists() && !this.checkpointFile.delete()) {
+			throw new RuntimeException("Failed to delete listing checkpoint " + this.checkpointFile);
+		}
+	}
+
+
+	@Override
+	public synchronized void close() {
+		try {
+			closeChannel();
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to close listing checkpoint " + this.checkpointFile, ex);
+		}
+	}
+
+
+	private void closeChannel() throws IOException {
+		if (this.checkpointChannel != null) {
+			this.checkpointChannel.close();
+			this.checkpointChannel = null;
+		}
+	}
+
+
+	/**
+	 * Reads the page tokens of the listing in the checkpoint file and opens it for appending,
+	 * if it has the specified key and is fresh.
+	 * @param reuseComplete whether a listing whose partitions are all complete is reused
+	 */
+	private boolean resume(String listingKey, int partitionCount, boolean reuseComplete) throws IOException {
+		String[] tokens = new String[partitionCount];
+		long position = FILE_HEADER_SIZE;
+		Instant startedAt = null;
+		long pageItemCount = 0;
+
+		// the length and the items up to the last page record, the items of a page without its page record are listed again
+		long length = FILE_HEADER_SIZE;
+		long itemCount = 0;
+
+		try (DataInputStream input = openInput()) {
+			if (input == null) {
+				return false;
+			}
+			byte[] record;
+			while ((record = readRecord(input)) != null) {
+				position += record.length;
+				ByteBuffer buffer = ByteBuffer.wrap(record, Integer.BYTES, record.length - Integer.BYTES);
+				byte operation = buffer.get();
+				if (startedAt == null) {
+					// the first record is the listing record
+					if (operation != OPERATION_LISTING) {
+						return false;
+					}
+					startedAt = Instant.ofEpochMilli(buffer.getLong());
+					int count = Short.toUnsignedInt(buffer.getShort());
+					String key = readString(buffer);
+					if (count != partitionCount || !key.equals(listingKey)
+							|| !this.clock.instant().isBefore(startedAt.plus(this.freshness))) {
+						return false;
+					}
+					length = position;
+				} else if (operation == OPERATION_PAGE) {
+					int partition = Short.toUnsignedInt(buffer.getShort());
+					if (partition >= partitionCount) {
+						break;
+					}
+					tokens[partition] = readString(buffer);
+					length = position;
+					itemCount += pageItemCount;
+					pageItemCount = 0;
+				} else if (operation == OPERATION_ITEM) {
+					pageItemCount++;
+				}
+			}
+		}
+		long completePartitions = Arrays.stream(tokens).filter(PARTITION_COMPLETE::equals).count();
+		if (startedAt == null || (completePartitions == partitionCount && !reuseComplete)) {
+			return false;
+		}
+
+		// the records after the last page record are cut off, so the next records are appended after the valid ones
+		this.checkpointChannel = FileChannel.open(this.checkpointFile.toPath(), StandardOpenOption.WRITE);
+		this.checkpointChannel.truncate(length);
+		this.checkpointChannel.position(length);
+		this.pageTokens = tokens;
+		this.resumedLength = length;
+
+		if (completePartitions == partitionCount) {
+			System.out.printf("Reusing the listing started at %s, %d items listed.\n", startedAt, itemCount);
+		} else {
+			System.out.printf("Resuming the listing started at %s, %d items and %d of %d partitions listed.\n",
+					startedAt, itemCount, completePartitions, partitionCount);
+		}
+		return true;
+	}
+
+
+	/**
+	 * Replaces the checkpoint file with a new listing.
+	 */
+	private void startListing(String listingKey, int partitionCount) throws IOException {
+		FileUtils.createParentDirectories(this.checkpointFile);
+		this.checkpointChannel = FileChannel.open(this.checkpointFile.toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		header.putInt(MAGIC).putShort(VERSION).putShort((short)0).flip();
+		ByteBuffer listingRecord = encodeListingRecord(this.clock.instant(), partitionCount, listingKey);
+		ByteBuffer[] buffers = { header, listingRecord };
+		while (listingRecord.hasRemaining()) {
+			this.checkpointChannel.write(buffers);
+		}
+
+		this.pageTokens = new String[partitionCount];
+		this.resumedLength = this.checkpointChannel.position();
+	}
+
+
+	/**
+	 * Opens the checkpoint file for reading the records after the file header.
+	 * @return null if the file is not a listing checkpoint
+	 */
+	private DataInputStream openInput() throws IOException {
+		InputStream input = new BufferedInputStream(new FileInputStream(this.checkpointFile));
+		DataInputStream dataInput = new DataInputStream(input);
+		try {
+			if (dataInput.readInt() != MAGIC || dataInput.readShort() != VERSION) {
+				dataInput.close();
+				return null;
+			}
+			dataInput.readShort();
+			return dataInput;
+		} catch (EOFException ex) {
+			dataInput.close();
+			return null;
+		}
+	}
+
+
+	/**
+	 * Reads the next record, including its length and checksum.
+	 * @return null at the end of the file or at a torn or corrupted record
+	 */
+	private static byte[] readRecord(DataInputStream input) throws IOException {
+		try {
+			int length = input.readInt();
+			int minLength = Integer.BYTES + 1 + DownloadedPhotosLog.RECORD_CHECKSUM_SIZE;
+			if (length < minLength || length > DownloadedPhotosLog.RECORD_HEADER_SIZE + 2 * 0xFFFF + 0xFF + DownloadedPhotosLog.RECORD_CHECKSUM_SIZE) {
+				return null;
+			}
+			byte[] record = new byte[length];
+			ByteBuffer.wrap(record).putInt(length);
+			input.readFully(record, Integer.BYTES, length - Integer.BYTES);
+
+			CRC32 crc = new CRC32();
+			crc.update(record, 0, length - DownloadedPhotosLog.RECORD_CHECKSUM_SIZE);
+			if ((int)crc.getValue() != ByteBuffer.wrap(record).getInt(length - DownloadedPhotosLog.RECORD_CHECKSUM_SIZE)) {
+				return null;
+			}
+			return record;
+
+		} catch (EOFException ex) {
+			return null;
+		}
+	}
+
+
+	private static ByteBuffer encodeListingRecord(Instant startedAt, int partitionCount, String listingKey) {
+		byte[] key = toUtf8(listingKey);
+		ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + 1 + Long.BYTES + 2 * Short.BYTES + key.length
+				+ DownloadedPhotosLog.RECORD_CHECKSUM_SIZE);
+		buffer.putInt(buffer.capacity());
+		buffer.put(OPERATION_LISTING);
+		buffer.putLong(startedAt.toEpochMilli());
+		buffer.putShort((short)partitionCount);
+		buffer.putShort((short)key.length);
+		buffer.put(key);
+		return putChecksum(buffer);
+	}
+
+
+	private static ByteBuffer encodePageRecord(int partition, String pageToken) {
+		byte[] token = toUtf8(pageToken);
+		ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + 1 + 2 * Short.BYTES + token.length
+				+ DownloadedPhotosLog.RECORD_CHECKSUM_SIZE);
+		buffer.putInt(buffer.capacity());
+		buffer.put(OPERATION_PAGE);
+		buffer.putShort((short)partition);
+		buffer.putShort((short)token.length);
+		buffer.put(token);
+		return putChecksum(buffer);
+	}
+
+
+	private static ByteBuffer putChecksum(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putInt((int)crc.getValue());
+		return buffer.flip();
+	}
+
+
+	private static byte[] toUtf8(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Value is too long to be stored in the listing checkpoint: " + value);
+		}
+		return bytes;
+	}
+
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Reads the item records of the checkpoint file up to the specified length.
+	 */
+	private class ItemReader implements Iterator<DownloadedMediaItem> {
+
+		private final DataInputStream input;
+		private final long length;
+
+		private long position = FILE_HEADER_SIZE;
+		private DownloadedMediaItem nextItem;
+
+		private ItemReader(long length) throws IOException {
+			this.input = openInput();
+			this.length = length;
+		}
+
+		@Override
+		public boolean hasNext() {
+			try {
+				while (this.nextItem == null && this.input != null && this.position < this.length) {
+					byte[] record = readRecord(this.input);
+					if (record == null) {
+						break;
+					}
+					this.position += record.length;
+					ByteBuffer buffer = ByteBuffer.wrap(record, Integer.BYTES, record.length - Integer.BYTES);
+					if (buffer.get() == OPERATION_ITEM) {
+						this.nextItem = DownloadedPhotosLog.decodeRecord(buffer);
+					}
+				}
+				return this.nextItem != null;
+
+			} catch (IOException ex) {
+				throw new RuntimeException("Failed to read listing checkpoint " + ListingCheckpoint.this.checkpointFile, ex);
+			}
+		}
+
+		@Override
+		public DownloadedMediaItem next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			DownloadedMediaItem item = this.nextItem;
+			this.nextItem = null;
+			return item;
+		}
+
+		private void close() {
+			try {
+				if (this.input != null) {
+					this.input.close();
+				}
+			} catch (IOException ex) {
+				throw new RuntimeException("Failed to close listing checkpoint " + ListingCheckpoint.this.checkpointFile, ex);
+			}
+		}
+	}
+}
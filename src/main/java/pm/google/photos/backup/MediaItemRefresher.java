@@ -0,0 +1,134 @@
+package pm.google.photos.backup;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.photos.library.v1.proto.MediaItemResult;
+import com.google.photos.types.proto.MediaItem;
+import com.google.rpc.Code;
+
+
+/**
+ * Keeps track of when the base URLs of the media items waiting for download were obtained.
+ *
+ * The base URL of a media item expires ~60 minutes after the item was fetched from the library.
+ * Items are refreshed only when their base URL is close to expiration and the refresh is done
+ * with a single batch request for up to {@value #MAX_BATCH_SIZE} of the tracked items which
+ * are close to expiration, instead of one request per item.
+ */
+public class MediaItemRefresher {
+
+	/**
+	 * The maximum number of media items in a single batch get request.
+	 */
+	public static final int MAX_BATCH_SIZE = 50;
+
+	/**
+	 * The age after which the base URL is considered close to expiration.
+	 */
+	private static final Duration REFRESH_AGE = Duration.ofMinutes(45);
+
+
+	private final GooglePhotosLibrary photosLibrary;
+	private final Clock clock;
+
+	/**
+	 * The tracked items by id. Guarded by {@code this}.
+	 */
+	private final Map<String, TrackedItem> trackedItems = new LinkedHashMap<>();
+
+
+	public MediaItemRefresher(GooglePhotosLibrary photosLibrary) {
+		this(photosLibrary, Clock.systemUTC());
+	}
+
+	MediaItemRefresher(GooglePhotosLibrary photosLibrary, Clock clock) {
+		this.photosLibrary = photosLibrary;
+		this.clock = clock;
+	}
+
+
+	/**
+	 * Starts tracking the specified item, which has just been fetched from the library.
+	 * An item without a base URL, e.g. restored from a listing checkpoint, is fetched again
+	 * when it is refreshed, in a batch with the other items which are close to expiration.
+	 * @param item
+	 */
+	public synchronized void track(MediaItem item) {
+		Instant obtainedAt = item.getBaseUrl().isEmpty() ? Instant.MIN : this.clock.instant();
+		this.trackedItems.put(item.getId(), new TrackedItem(item, obtainedAt));
+	}
+
+
+	/**
+	 * Stops tracking the specified item and returns it with a base URL which is not close to expiration.
+	 * If the base URL must be refreshed, the other tracked items which are close to expiration are
+	 * refreshed in the same batch request.
+	 *
+	 * @param item
+	 * @return the refreshed item or null if the item is no longer in the library
+	 * @throws IOException if the item could not be fetched, e.g. because of a transient error
+	 */
+	public MediaItem refresh(MediaItem item) throws IOException {
+
+		List<String> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+		synchronized (this) {
+			TrackedItem trackedItem = this.trackedItems.remove(item.getId());
+			if (trackedItem != null && !isCloseToExpiration(trackedItem)) {
+				return trackedItem.item;
+			}
+
+			batch.add(item.getId());
+			for (TrackedItem other : this.trackedItems.values()) {
+				if (batch.size() == MAX_BATCH_SIZE) break;
+				if (isCloseToExpiration(other)) batch.add(other.item.getId());
+			}
+		}
+
+		Instant obtainedAt = this.clock.instant();
+		List<MediaItemResult> results = this.photosLibrary.getMediaItems(batch);
+
+		synchronized (this) {
+			// the other items which could not be fetched stay close to expiration and are refreshed again
+			for (int i = 1; i < results.size(); i++) {
+				MediaItemResult result = results.get(i);
+				if (result.hasMediaItem() && this.trackedItems.containsKey(batch.get(i))) {
+					this.trackedItems.put(batch.get(i), new TrackedItem(result.getMediaItem(), obtainedAt));
+				}
+			}
+		}
+
+		MediaItemResult result = results.get(0);
+		if (result.hasMediaItem()) {
+			return result.getMediaItem();
+		} else if (result.getStatus().getCode() == Code.NOT_FOUND_VALUE) {
+			return null;
+		} else {
+			throw new IOException("Failed to fetch media item " + item.getId() + ": " + result.getStatus().getMessage());
+		}
+	}
+
+
+	private boolean isCloseToExpiration(TrackedItem trackedItem) {
+		return !this.clock.instant().isBefore(trackedItem.obtainedAt.plus(REFRESH_AGE));
+	}
+
+
+	private static class TrackedItem {
+
+		private final MediaItem item;
+		private final Instant obtainedAt;
+
+		private TrackedItem(MediaItem item, Instant obtainedAt) {
+			this.item = item;
+			this.obtainedAt = obtainedAt;
+		}
+	}
+}
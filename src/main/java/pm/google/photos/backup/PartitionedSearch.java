@@ -0,0 +1,144 @@
+package pm.google.photos.backup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.photos.types.proto.MediaItem;
+
+
+/**
+ * Searches several disjoint partitions of a media items search concurrently and merges
+ * the results into a single iterator.
+ *
+ * At most {@code parallelism} partitions are searched at the same time. The workers hand the
+ * items over in chunks through a bounded queue, so they are blocked while the consumer is
+ * behind and no more than a few chunks are held in memory. The partitions must not overlap,
+ * so the merged result contains each item once, unless the search itself returns duplicates.
+ * The merge does not deduplicate them, which would hold the ids of the whole listing in memory,
+ * the consumers skip the repeated items, see
+ * {@link GooglePhotosLibrary#streamMediaItems(MediaItemType, java.time.LocalDate, java.time.LocalDate)}.
+ */
+class PartitionedSearch implements Iterator<MediaItem>, AutoCloseable {
+
+	private static final int CHUNK_SIZE = 100;
+
+	private final ExecutorService executor;
+	private final BlockingQueue<Chunk> chunks;
+
+	private int remainingPartitions;
+	private Iterator<MediaItem> currentChunk = Collections.emptyIterator();
+
+
+	/**
+	 * @param partitions the lazy searches of the partitions, a search requests its pages while it is iterated
+	 * @param parallelism the maximum number of partitions searched at the same time
+	 */
+	PartitionedSearch(List<Iterable<MediaItem>> partitions, int parallelism) {
+		this.remainingPartitions = partitions.size();
+		this.chunks = new ArrayBlockingQueue<>(2 * parallelism);
+		this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "partitioned-search");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		for (Iterable<MediaItem> partition : partitions) {
+			this.executor.execute(() -> searchPartition(partition));
+		}
+		this.executor.shutdown();
+	}
+
+
+	@Override
+	public boolean hasNext() {
+		while (!this.currentChunk.hasNext()) {
+			if (this.remainingPartitions == 0) {
+				return false;
+			}
+			Chunk chunk = takeChunk();
+			if (chunk.failure != null) {
+				close();
+				throw chunk.failure;
+			}
+			if (chunk.last) {
+				this.remainingPartitions--;
+			}
+			this.currentChunk = chunk.items.iterator();
+		}
+		return true;
+	}
+
+
+	@Override
+	public MediaItem next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return this.currentChunk.next();
+	}
+
+
+	/**
+	 * Stops the searches which are still running.
+	 */
+	@Override
+	public void close() {
+		this.executor.shutdownNow();
+	}
+
+
+	private void searchPartition(Iterable<MediaItem> partition) {
+		try {
+			List<MediaItem> items = new ArrayList<>(CHUNK_SIZE);
+			for (MediaItem item : partition) {
+				items.add(item);
+				if (items.size() == CHUNK_SIZE) {
+					this.chunks.put(new Chunk(items, false, null));
+					items = new ArrayList<>(CHUNK_SIZE);
+				}
+			}
+			this.chunks.put(new Chunk(items, true, null));
+
+		} catch (InterruptedException ex) {
+			// the search was closed
+		} catch (RuntimeException ex) {
+			try {
+				this.chunks.put(new Chunk(Collections.emptyList(), true, ex));
+			} catch (InterruptedException ignore) {
+				// the search was closed
+			}
+		}
+	}
+
+
+	private Chunk takeChunk() {
+		try {
+			return this.chunks.take();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new RuntimeException("Interrupted while listing media items", ex);
+		}
+	}
+
+
+	private static class Chunk {
+
+		private final List<MediaItem> items;
+		private final boolean last;
+		private final RuntimeException failure;
+
+		private Chunk(List<MediaItem> items, boolean last, RuntimeException failure) {
+			this.items = items;
+			this.last = last;
+			this.failure = failure;
+		}
+	}
+}
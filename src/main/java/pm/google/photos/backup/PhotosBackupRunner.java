@@ -3,33 +3,79 @@ package pm.google.photos.backup;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import com.google.api.gax.rpc.ApiException;
 import com.google.photos.types.proto.MediaItem;
+import com.google.photos.types.proto.MediaMetadata;
+import com.google.photos.types.proto.Photo;
+import com.google.photos.types.proto.Video;
+import com.google.protobuf.Timestamp;
 
 
 public class PhotosBackupRunner {
 
+	/**
+	 * The maximum number of listed items waiting for a free download worker.
+	 */
+	private static final int MAX_QUEUED_ITEMS = 1000;
+
+	private static final String LINK_FILE_SUFFIX = ".link";
+
 	private final GooglePhotosLibrary photosLibrary;
 	private final DownloadedPhotosIndex photosIndex;
 	private final File backupDir;
+	private final MediaItemRefresher mediaItemRefresher;
+
+	private FileDownloader fileDownloader = new FileDownloader();
+	private BackupMetrics metrics = new BackupMetrics();
+	private DownloadJournal journal = null;
+	private boolean journalReplayed = false;
+	private ListingCheckpoint listingCheckpoint = null;
 
 	private MediaItemType mediaItemType;
 	private LocalDate startDate = null;
 	private LocalDate endDate = null;
+	private int parallelism = 1;
+	private FairScheduler scheduler = null;
+	private long diffMemoryBudget = ExternalSorter.DEFAULT_MEMORY_BUDGET;
+	private File spillDir = null;
+
+	/**
+	 * The destination file names which are taken or reserved by the downloads in progress.
+	 */
+	private final FileNameRegistry fileNames = new FileNameRegistry();
+
+	/**
+	 * The ids of the new items which are queued or being downloaded.
+	 */
+	private final Set<String> inFlightItemIds = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The number of items which failed to download after all retries.
+	 */
+	private final AtomicInteger failedItems = new AtomicInteger();
 
 
 	public PhotosBackupRunner(GooglePhotosLibrary photosLibrary, DownloadedPhotosIndex photosIndex, File backupDir) {
 		this.photosLibrary = photosLibrary;
 		this.photosIndex = photosIndex;
 		this.backupDir = backupDir;
+		this.mediaItemRefresher = new MediaItemRefresher(photosLibrary);
 	}
 
 
@@ -43,89 +89,409 @@ public class PhotosBackupRunner {
 	}
 
 
+	public LocalDate getStartDate() {
+		return this.startDate;
+	}
+
+
 	public void setEndDate(LocalDate endDate) {
 		this.endDate = endDate;
 	}
 
 
+	public LocalDate getEndDate() {
+		return this.endDate;
+	}
+
+
+	public void setFileDownloader(FileDownloader fileDownloader) {
+		this.fileDownloader = fileDownloader;
+	}
+
+
+	public void setMetrics(BackupMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * Sets the journal of the downloads in progress, which is replayed when the first backup starts.
+	 * @param journal
+	 */
+	public void setJournal(DownloadJournal journal) {
+		this.journal = journal;
+	}
+
+
+	/**
+	 * Sets the checkpoint in which the listing of the library is recorded, so a backup which did not
+	 * finish is resumed without listing the library again. The checkpoint is deleted when a backup
+	 * finishes without failed items.
+	 * @param listingCheckpoint
+	 */
+	public void setListingCheckpoint(ListingCheckpoint listingCheckpoint) {
+		this.listingCheckpoint = listingCheckpoint;
+	}
+
+
+	public ListingCheckpoint getListingCheckpoint() {
+		return this.listingCheckpoint;
+	}
+
+
+	/**
+	 * Sets the maximum number of media items which are downloaded concurrently.
+	 * @param parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+
+	/**
+	 * Sets a scheduler whose permits the downloads share with the downloads of other backups,
+	 * e.g. of the other accounts backed up by the same process. The parallelism is then the
+	 * maximum number of downloads of this backup within the limit of the scheduler.
+	 * @param scheduler
+	 */
+	public void setScheduler(FairScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+
+	/**
+	 * Sets the memory in bytes for sorting the ids of the downloaded and listed items, beyond which
+	 * the sorted ids are spilled to temporary files in the specified directory.
+	 * @param diffMemoryBudget
+	 * @param spillDir the directory of the temporary files or null for the default temporary directory
+	 */
+	public void setDiffMemoryBudget(long diffMemoryBudget, File spillDir) {
+		if (diffMemoryBudget < 2) {
+			throw new IllegalArgumentException("diffMemoryBudget is too small: " + diffMemoryBudget);
+		}
+		this.diffMemoryBudget = diffMemoryBudget;
+		this.spillDir = spillDir;
+	}
+
+
+	/**
+	 * Backs up the items in the date range. Can be called again, e.g. by a long-running process,
+	 * after the previous backup has returned.
+	 */
 	public void run() {
 
-		System.out.println("Listing photos library items...");
 		long startTime = System.nanoTime();
+		this.failedItems.set(0);
+		this.metrics.startRun();
+
+		// the files downloaded before a crash are added to the index before it is scanned,
+		// the names of the interrupted downloads are kept for their items
+		if (this.journal != null && !this.journalReplayed) {
+			this.journal.replay(this.photosIndex);
+			this.journal.getPendingFiles().forEach(this.fileNames::markTaken);
+			this.journalReplayed = true;
+		}
 
-		Map<String, DownloadedMediaItem> downloadedItems =
-				this.photosIndex.findItems(mediaItemType, startDate, endDate).stream()
-				.collect(Collectors.toMap(DownloadedMediaItem::getId, Function.identity()));
+		System.out.println("Listing photos library items...");
 
-		Map<String, MediaItem> libraryItems =
-				this.photosLibrary.listMediaItems(mediaItemType, startDate, endDate).stream()
-				.collect(Collectors.toMap(MediaItem::getId, Function.identity(), (i1, i2) -> i1));
+		// the ids of the downloaded items and of the listed items are sorted within the memory budget,
+		// spilling to disk if needed, and merge-joined to find the removed items once the listing is complete
+		try (ExternalSorter downloadedIds = new ExternalSorter(this.diffMemoryBudget / 2, this.spillDir);
+				ExternalSorter listedIds = new ExternalSorter(this.diffMemoryBudget / 2, this.spillDir)) {
+
+			try (BackupMetrics.Timer timer = this.metrics.startPhase(BackupMetrics.PHASE_INDEX_SCAN)) {
+				this.photosIndex.forEachItem(mediaItemType, startDate, endDate, item -> downloadedIds.add(item.getId()));
+			}
+			Set<String> listedPendingIds = new HashSet<>();
+
+			// the downloads are throttled separately from the library API calls
+			AdaptiveThrottle downloadThrottle = new AdaptiveThrottle("Download", this.parallelism);
+			DownloadWorkers workers = this.scheduler != null ?
+					new DownloadWorkers(this.scheduler.newTenant(this.parallelism), MAX_QUEUED_ITEMS) :
+					new DownloadWorkers(this.parallelism, MAX_QUEUED_ITEMS);
+			boolean listingComplete = true;
+			try (workers) {
+
+				// new items are queued for download while the next pages are still being listed,
+				// an item listed more than once is skipped while it is in flight or once it is in the index
+				try (BackupMetrics.Timer timer = this.metrics.startPhase(BackupMetrics.PHASE_LISTING);
+						Stream<MediaItem> libraryItems = streamLibraryItems()) {
+					Iterator<MediaItem> iterator = libraryItems.iterator();
+					while (iterator.hasNext()) {
+						MediaItem item = iterator.next();
+						this.metrics.increment(BackupMetrics.ITEMS_LISTED);
+						listedIds.add(item.getId());
+						if (this.journal != null && this.journal.getPendingFile(item.getId()) != null) {
+							listedPendingIds.add(item.getId());
+						}
+						if (this.photosIndex.getItem(item.getId()) == null && this.inFlightItemIds.add(item.getId())) {
+							this.metrics.increment(BackupMetrics.ITEMS_NEW);
+							this.mediaItemRefresher.track(item);
+							if (!workers.submit(() -> backupItem(item, downloadThrottle))) {
+								this.inFlightItemIds.remove(item.getId());
+								listingComplete = false;
+								break;
+							}
+						}
+					}
+				}
+
+				System.out.printf("%d new items found.\n", workers.getSubmittedCount());
+
+				// removed items are known only after the whole library has been listed
+				if (listingComplete) {
+					List<DownloadedMediaItem> removedItems;
+					try (BackupMetrics.Timer timer = this.metrics.startPhase(BackupMetrics.PHASE_DIFF)) {
+						removedItems = findRemovedItems(downloadedIds.sorted(), listedIds.sorted());
+					}
+					if (listedIds.getRunCount() > 0) {
+						System.out.printf("Sorted the listed items with %d runs spilled to disk.\n", listedIds.getRunCount());
+					}
+					System.out.printf("%d items to be removed.\n", removedItems.size());
+
+					if (this.journal != null) {
+						this.journal.discardPendingExcept(listedPendingIds);
+					}
+
+					removeItems(removedItems);
+				}
+			}
+
+			System.out.printf("%d of %d new items downloaded, %d failed.\n",
+					workers.getCompletedCount() - this.failedItems.get(), workers.getSubmittedCount(),
+					workers.getFailedCount() + this.failedItems.get());
+			workers.throwIfFailed();
+
+			// the next backup lists the library again, unless this one has not finished
+			if (this.listingCheckpoint != null && listingComplete && this.failedItems.get() == 0) {
+				this.listingCheckpoint.delete();
+			}
+		}
 
-		Set<String> removedItems = diff(downloadedItems.keySet(), libraryItems.keySet());
-		Set<String> newItems = diff(libraryItems.keySet(), downloadedItems.keySet());
+		long stopTime = System.nanoTime();
+		this.metrics.printSummary();
+		System.out.println("Backup finished in " + BackupMetrics.formatDuration(stopTime - startTime) + ".");
+	}
 
-		System.out.printf("%d items to be removed.\n", removedItems.size());
-		System.out.printf("%d new items found.\n", newItems.size());
 
-		for (String removedItemId : removedItems) {
-			removeItem(downloadedItems.get(removedItemId));
+	/**
+	 * Returns the items of the library, the items recorded by a resumed listing first. The recorded
+	 * items have no base URL, they are fetched again before they are downloaded.
+	 */
+	private Stream<MediaItem> streamLibraryItems() {
+		Stream<MediaItem> listedItems = this.photosLibrary.streamMediaItems(mediaItemType, startDate, endDate, this.listingCheckpoint);
+		if (this.listingCheckpoint == null) {
+			return listedItems;
 		}
+		try {
+			Stream<MediaItem> resumedItems = this.listingCheckpoint.streamResumedItems().map(PhotosBackupRunner::toMediaItem);
+			return Stream.concat(resumedItems, listedItems);
+		} catch (RuntimeException ex) {
+			listedItems.close();
+			throw ex;
+		}
+	}
+
 
-		for (String newItemId : newItems) {
-			backupItem(libraryItems.get(newItemId), newItems.size());
+	/**
+	 * Returns a media item with the id, type and creation date of the specified item and no base URL.
+	 */
+	private static MediaItem toMediaItem(DownloadedMediaItem item) {
+		MediaMetadata.Builder metadata = MediaMetadata.newBuilder();
+		if (item.getCreationDate() != null) {
+			metadata.setCreationTime(Timestamp.newBuilder()
+					.setSeconds(item.getCreationDate().atStartOfDay(ZoneId.systemDefault()).toEpochSecond()).build());
+		}
+		if (item.getType() == MediaItemType.PHOTO) {
+			metadata.setPhoto(Photo.getDefaultInstance());
+		} else if (item.getType() == MediaItemType.VIDEO) {
+			metadata.setVideo(Video.getDefaultInstance());
 		}
+		return MediaItem.newBuilder()
+				.setId(item.getId())
+				.setMediaMetadata(metadata.build())
+				.build();
+	}
 
-		long stopTime = System.nanoTime();
-		System.out.printf("Backup finished in %d minutes.\n", TimeUnit.NANOSECONDS.toMinutes(stopTime-startTime));
+
+	/**
+	 * Merge-joins the sorted ids of the downloaded items and of the listed items.
+	 * @return the downloaded items which are not listed
+	 */
+	private List<DownloadedMediaItem> findRemovedItems(Iterator<String> downloadedIds, Iterator<String> listedIds) {
+		List<DownloadedMediaItem> removedItems = new ArrayList<>();
+		forEachMissingId(downloadedIds, listedIds, downloadedId -> {
+			DownloadedMediaItem item = this.photosIndex.getItem(downloadedId);
+			if (item != null) {
+				removedItems.add(item);
+			}
+		});
+		return removedItems;
+	}
+
+
+	/**
+	 * Performs the specified action for each id of the first iterator which is not returned by the
+	 * second iterator. Both iterators must return the ids in the order of {@link ExternalSorter#compare}.
+	 */
+	static void forEachMissingId(Iterator<String> ids, Iterator<String> otherIds, Consumer<String> action) {
+		String otherId = otherIds.hasNext() ? otherIds.next() : null;
+		while (ids.hasNext()) {
+			String id = ids.next();
+			while (otherId != null && ExternalSorter.compare(otherId, id) < 0) {
+				otherId = otherIds.hasNext() ? otherIds.next() : null;
+			}
+			if (otherId == null || !otherId.equals(id)) {
+				action.accept(id);
+			}
+		}
 	}
 
 
-	private void removeItem(DownloadedMediaItem item) {
-		FileUtils.deleteQuietly(this.backupDir, Paths.get(item.getFilePath()));
-		this.photosIndex.removeItem(item);
-		System.out.println("Removed " + item.getFilePath());
+	/**
+	 * Deletes the files of the specified items, concurrently, and removes the items from the index in one batch.
+	 */
+	private void removeItems(List<DownloadedMediaItem> items) {
+		if (items.isEmpty()) {
+			return;
+		}
+		try (BackupMetrics.Timer timer = this.metrics.startPhase(BackupMetrics.PHASE_REMOVAL)) {
+			List<Path> filePaths = new ArrayList<>();
+			for (DownloadedMediaItem item : items) {
+				if (item.getFilePath() != null) {
+					filePaths.add(Paths.get(item.getFilePath()));
+				}
+			}
+			BatchFileRemover fileRemover = new BatchFileRemover(this.backupDir);
+			fileRemover.setParallelism(this.parallelism);
+			fileRemover.deleteFiles(filePaths);
+		}
+		try (BackupMetrics.Timer timer = this.metrics.startPhase(BackupMetrics.PHASE_INDEX_WRITE)) {
+			this.photosIndex.removeItems(items);
+		}
+		for (DownloadedMediaItem item : items) {
+			this.metrics.increment(BackupMetrics.ITEMS_REMOVED);
+			System.out.println("Removed " + item.getFilePath());
+		}
 	}
 
 
-	private void backupItem(MediaItem item, int itemsCount) {
+	/**
+	 * Downloads the specified item and adds it to the index. An item which cannot be downloaded
+	 * after all retries is counted as failed and skipped, it is downloaded by the next backup.
+	 */
+	private void backupItem(MediaItem item, AdaptiveThrottle downloadThrottle) {
 		try {
-			item = this.photosLibrary.getMediaItem(item.getId()); // get fresh media item to avoid expiration of the download URL
+			MediaItem refreshedItem;
+			try (BackupMetrics.Timer timer = this.metrics.startPhase(BackupMetrics.PHASE_URL_REFRESH)) {
+				refreshedItem = this.mediaItemRefresher.refresh(item); // refresh the media item if the download URL is about to expire
+			}
+			if (refreshedItem == null) {
+				// e.g. an item of a resumed listing which was deleted from the library since
+				System.out.println("Skipped item " + item.getId() + ", it is no longer in the library");
+				return;
+			}
+			item = refreshedItem;
 
 			MediaItemType itemType = GooglePhotosLibrary.getMediaItemType(item);
 			LocalDate creationDate = GooglePhotosLibrary.getCreationDate(item);
 			URL downloadUrl = GooglePhotosLibrary.getDownloadURL(item);
 
-			File destinationFile = getDestinationFile(creationDate, item.getFilename());
-			System.out.println("Downloading " + destinationFile);
-			FileUtils.downloadFile(downloadUrl, destinationFile);
-
-			DownloadedMediaItem downloadedItem = new DownloadedMediaItem(item.getId());
-			downloadedItem.setType(itemType);
-			downloadedItem.setCreationDate(creationDate);
-			downloadedItem.setFilePath(FileUtils.getRelativePath(this.backupDir, destinationFile).toString());
-			this.photosIndex.addItem(downloadedItem);
-
-		} catch (IOException ex) {
-			throw new RuntimeException("Failed to backup item " + item, ex);
+			File pendingFile = this.journal != null ? this.journal.getPendingFile(item.getId()) : null;
+			File destinationFile = pendingFile != null ? pendingFile : getDestinationFile(creationDate, item.getFilename());
+			try {
+				if (pendingFile == null) {
+					// a part file without a pending intent of this item may have been left by another item
+					FileDownloader.deleteTemporaryFiles(destinationFile);
+				}
+				if (this.journal != null) {
+					DownloadedMediaItem intent = new DownloadedMediaItem(item.getId());
+					intent.setType(itemType);
+					intent.setCreationDate(creationDate);
+					intent.setFilePath(FileUtils.getRelativePath(this.backupDir, destinationFile).toString());
+					this.journal.recordIntent(intent);
+				}
+
+				System.out.println("Downloading " + destinationFile);
+				long downloadStart = System.nanoTime();
+				String contentHash;
+				try (BackupMetrics.Timer timer = this.metrics.startPhase(BackupMetrics.PHASE_DOWNLOAD)) {
+					contentHash = downloadThrottle.call(() -> this.fileDownloader.downloadFile(downloadUrl, destinationFile));
+				}
+				this.metrics.recordDownload(item.getId(), destinationFile.length(), downloadStart);
+				linkDuplicate(destinationFile, contentHash);
+
+				DownloadedMediaItem downloadedItem = new DownloadedMediaItem(item.getId());
+				downloadedItem.setType(itemType);
+				downloadedItem.setCreationDate(creationDate);
+				downloadedItem.setFilePath(FileUtils.getRelativePath(this.backupDir, destinationFile).toString());
+				downloadedItem.setContentHash(contentHash);
+				downloadedItem.setFileSize(destinationFile.length());
+				if (this.journal != null) {
+					this.journal.recordCompletion(downloadedItem);
+				}
+				try (BackupMetrics.Timer timer = this.metrics.startPhase(BackupMetrics.PHASE_INDEX_WRITE)) {
+					this.photosIndex.addItem(downloadedItem);
+				}
+				this.metrics.increment(BackupMetrics.ITEMS_DOWNLOADED);
+
+			} finally {
+				// the name of a file which was not downloaded can be used by another item,
+				// unless its part file is left to be resumed
+				this.fileNames.release(destinationFile);
+			}
+
+		} catch (IOException | ApiException ex) {
+			this.failedItems.incrementAndGet();
+			this.metrics.increment(BackupMetrics.ITEMS_FAILED);
+			System.out.println("Failed to backup item " + item.getId() + ": " + ex.getMessage());
+
+		} finally {
+			// the item is already in the index, unless it failed
+			this.inFlightItemIds.remove(item.getId());
 		}
 	}
 
 
-	private File getDestinationFile(LocalDate creationDate, String filename) {
-		File destinationDir = new File(this.backupDir, creationDate.getYear() + File.separator + creationDate.getMonthValue());
-		File destinationFile = new File(destinationDir, filename);
-		if (destinationFile.exists()) destinationFile = FileUtils.getNextFile(destinationDir, filename);
-		return destinationFile;
+	/**
+	 * Replaces the downloaded file with a hard link to an already downloaded file with the same
+	 * content, so the same photo added to the library more than once is stored only once.
+	 * The downloaded copy is kept if the file system does not support hard links.
+	 * The library does not expose the content hashes, so the duplicate is found only after
+	 * it has been downloaded and written, this saves disk space but not the write I/O.
+	 */
+	private void linkDuplicate(File downloadedFile, String contentHash) {
+		DownloadedMediaItem duplicate = this.photosIndex.findItemByHash(contentHash);
+		if (duplicate == null || duplicate.getFilePath() == null) {
+			return;
+		}
+		File duplicateFile = new File(this.backupDir, duplicate.getFilePath());
+		if (!duplicateFile.isFile() || duplicateFile.length() != downloadedFile.length()) {
+			return;
+		}
+
+		Path linkFile = new File(downloadedFile.getParentFile(), downloadedFile.getName() + LINK_FILE_SUFFIX).toPath();
+		try {
+			Files.deleteIfExists(linkFile);
+			Files.createLink(linkFile, duplicateFile.toPath());
+			Files.move(linkFile, downloadedFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.metrics.increment(BackupMetrics.ITEMS_LINKED);
+			System.out.println("Linked " + downloadedFile + " to duplicate " + duplicate.getFilePath());
+		} catch (IOException | UnsupportedOperationException ex) {
+			linkFile.toFile().delete();
+		}
 	}
 
 
 	/**
-	 * Returns the difference between the two sets, i.e A-B.
-	 * Returns a new set with all elements in A that are not in B.
+	 * Returns a destination file which neither exists nor is reserved by another download
+	 * in progress. The file name stays reserved until the file is released.
 	 */
-	private static <T> Set<T> diff(Set<T> A, Set<T> B) {
-		Set<T> result = new HashSet<>(A);
-		result.removeAll(B);
-		return result;
+	private File getDestinationFile(LocalDate creationDate, String filename) {
+		File destinationDir = new File(this.backupDir, creationDate.getYear() + File.separator + creationDate.getMonthValue());
+		return this.fileNames.reserve(destinationDir, filename);
 	}
 }
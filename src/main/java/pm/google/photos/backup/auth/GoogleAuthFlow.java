@@ -117,7 +117,37 @@ public class GoogleAuthFlow {
 
 
 	private static OAuth2Credentials toOAuth2Credentials(Credential credential) {
-		AccessToken accessToken = new AccessToken(credential.getAccessToken(), new Date(credential.getExpirationTimeMilliseconds()));
-		return OAuth2Credentials.create(accessToken);
+		return new RefreshableCredentials(credential);
+	}
+
+
+	private static AccessToken getAccessToken(Credential credential) {
+		return new AccessToken(credential.getAccessToken(), new Date(credential.getExpirationTimeMilliseconds()));
+	}
+
+
+	/**
+	 * Credentials which refresh the access token with the refresh token of the authorized credential
+	 * when it expires, so a long-running process keeps its access. The refreshed tokens are stored
+	 * in the credentials data store.
+	 */
+	private static class RefreshableCredentials extends OAuth2Credentials {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient Credential credential;
+
+		RefreshableCredentials(Credential credential) {
+			super(getAccessToken(credential));
+			this.credential = credential;
+		}
+
+		@Override
+		public AccessToken refreshAccessToken() throws IOException {
+			if (!this.credential.refreshToken()) {
+				throw new IOException("Failed to refresh access token, the authorization must be renewed");
+			}
+			return getAccessToken(this.credential);
+		}
 	}
 }
@@ -0,0 +1,43 @@
+package pm.google.photos.backup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class BackupMetricsTest {
+
+	@TempDir
+	File tempDir;
+
+
+	@Test
+	public void startRunResetsTheRunMetricsAndKeepsTheTotals() throws IOException {
+		BackupMetrics metrics = new BackupMetrics();
+		metrics.startRun();
+		metrics.increment(BackupMetrics.ITEMS_DOWNLOADED);
+		metrics.increment(BackupMetrics.ITEMS_DOWNLOADED);
+		metrics.recordDownload("a", 1000, System.nanoTime() - 1_000_000);
+		metrics.startPhase(BackupMetrics.PHASE_DOWNLOAD).close();
+
+		metrics.startRun();
+		metrics.increment(BackupMetrics.ITEMS_DOWNLOADED);
+		assertEquals(1, metrics.getCount(BackupMetrics.ITEMS_DOWNLOADED));
+		assertEquals(0, metrics.getDownloadThroughput());
+
+		File metricsFile = new File(this.tempDir, "backup.prom");
+		metrics.writePrometheusFile(metricsFile);
+		String text = Files.readString(metricsFile.toPath());
+		assertTrue(text.contains("google_photos_backup_items_downloaded_total 3\n"), text);
+		assertTrue(text.contains("google_photos_backup_downloaded_bytes_total 1000\n"), text);
+		assertTrue(text.contains("google_photos_backup_download_throughput_bytes_per_second 0\n"), text);
+		assertFalse(text.contains("phase_duration_seconds"), text);
+	}
+}
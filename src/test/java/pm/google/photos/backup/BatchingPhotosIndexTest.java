@@ -0,0 +1,68 @@
+package pm.google.photos.backup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+
+public class BatchingPhotosIndexTest {
+
+	@Test
+	public void aFailedCommitOfAFullBatchKeepsTheItemsPending() {
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		BatchingPhotosIndex batchingIndex = new BatchingPhotosIndex(index, 2, Duration.ofHours(1));
+		AtomicBoolean failSync = new AtomicBoolean(true);
+		batchingIndex.setBeforeCommit(() -> {
+			if (failSync.get()) {
+				throw new UncheckedIOException(new IOException("sync failed"));
+			}
+		});
+
+		// the full batch fails to commit, the mutations are not rejected
+		batchingIndex.addItem(newItem("a"));
+		batchingIndex.addItem(newItem("b"));
+		batchingIndex.addItem(newItem("c"));
+		assertEquals(0, index.size());
+		assertNotNull(batchingIndex.getItem("b"));
+
+		// an explicit flush throws the failure
+		assertThrows(UncheckedIOException.class, batchingIndex::flush);
+		assertEquals(0, index.size());
+
+		failSync.set(false);
+		batchingIndex.flush();
+		assertEquals(3, index.size());
+		batchingIndex.close();
+	}
+
+
+	@Test
+	public void aFullBatchIsCommitted() {
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		BatchingPhotosIndex batchingIndex = new BatchingPhotosIndex(index, 2, Duration.ofHours(1));
+
+		batchingIndex.addItem(newItem("a"));
+		assertEquals(0, index.size());
+		batchingIndex.addItem(newItem("b"));
+		assertEquals(2, index.size());
+
+		batchingIndex.removeItem(newItem("a"));
+		batchingIndex.close();
+		assertEquals(1, index.size());
+	}
+
+
+	private static DownloadedMediaItem newItem(String id) {
+		DownloadedMediaItem item = new DownloadedMediaItem(id);
+		item.setType(MediaItemType.PHOTO);
+		item.setFilePath("photos/" + id + ".jpg");
+		return item;
+	}
+}
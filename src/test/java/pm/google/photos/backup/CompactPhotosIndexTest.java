@@ -0,0 +1,117 @@
+package pm.google.photos.backup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+
+public class CompactPhotosIndexTest {
+
+	private static final LocalDate FIRST_DATE = LocalDate.of(2020, 1, 1);
+
+
+	@Test
+	public void findItemsReturnsTheItemsInTheDateRange() {
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		index.addItem(newItem("a", MediaItemType.PHOTO, LocalDate.of(2024, 5, 1)));
+		index.addItem(newItem("b", MediaItemType.VIDEO, LocalDate.of(2024, 5, 2)));
+		index.addItem(newItem("c", MediaItemType.PHOTO, LocalDate.of(2024, 5, 3)));
+		index.addItem(newItem("d", MediaItemType.PHOTO, null));
+
+		assertEquals(List.of("a", "c"), ids(index.findItems(MediaItemType.PHOTO, LocalDate.of(2024, 5, 1), LocalDate.of(2024, 5, 3))));
+		assertEquals(List.of("b", "c"), ids(index.findItems(null, LocalDate.of(2024, 5, 2), null)));
+		// the items of a date range are returned by date, the items without a date first
+		assertEquals(List.of("d", "a", "b"), ids(index.findItems(null, null, LocalDate.of(2024, 5, 2))));
+		assertEquals(List.of("a", "b", "c", "d"), ids(index.findItems(null, null, null)));
+		assertEquals(List.of(), ids(index.findItems(null, LocalDate.of(2024, 5, 3), LocalDate.of(2024, 5, 1))));
+	}
+
+
+	@Test
+	public void findItemsSkipsRemovedAndReplacedItems() {
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		index.addItem(newItem("a", MediaItemType.PHOTO, LocalDate.of(2024, 5, 1)));
+		index.addItem(newItem("b", MediaItemType.PHOTO, LocalDate.of(2024, 5, 1)));
+		index.removeItem(newItem("a", null, null));
+		// the item is moved to another date and type
+		index.addItem(newItem("b", MediaItemType.VIDEO, LocalDate.of(2024, 6, 1)));
+
+		assertEquals(List.of(), ids(index.findItems(null, LocalDate.of(2024, 5, 1), LocalDate.of(2024, 5, 31))));
+		assertEquals(List.of("b"), ids(index.findItems(MediaItemType.VIDEO, LocalDate.of(2024, 6, 1), LocalDate.of(2024, 6, 1))));
+	}
+
+
+	@Test
+	public void findItemsMatchesAScanAfterManyChanges() {
+		Random random = new Random(7);
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		Map<String, DownloadedMediaItem> expectedItems = new HashMap<>();
+		for (int i = 0; i < 20_000; i++) {
+			String id = "item-" + random.nextInt(5000);
+			if (random.nextInt(3) == 0) {
+				index.removeItem(newItem(id, null, null));
+				expectedItems.remove(id);
+			} else {
+				MediaItemType type = random.nextBoolean() ? MediaItemType.PHOTO : MediaItemType.VIDEO;
+				LocalDate date = random.nextInt(50) == 0 ? null : FIRST_DATE.plusDays(random.nextInt(1500));
+				DownloadedMediaItem item = newItem(id, type, date);
+				index.addItem(item);
+				expectedItems.put(id, item);
+			}
+		}
+
+		for (int i = 0; i < 200; i++) {
+			MediaItemType type = List.of(MediaItemType.PHOTO, MediaItemType.VIDEO).get(random.nextInt(2));
+			LocalDate startDate = random.nextInt(5) == 0 ? null : FIRST_DATE.plusDays(random.nextInt(1500));
+			LocalDate endDate = random.nextInt(5) == 0 ? null : FIRST_DATE.plusDays(random.nextInt(1500));
+			MediaItemType queryType = random.nextBoolean() ? type : null;
+
+			List<String> expected = new ArrayList<>();
+			for (DownloadedMediaItem item : expectedItems.values()) {
+				if (matches(item, queryType, startDate, endDate)) {
+					expected.add(item.getId());
+				}
+			}
+			expected.sort(Comparator.naturalOrder());
+			List<String> actual = ids(index.findItems(queryType, startDate, endDate));
+			actual.sort(Comparator.naturalOrder());
+			assertEquals(expected, actual);
+		}
+	}
+
+
+	private static boolean matches(DownloadedMediaItem item, MediaItemType type, LocalDate startDate, LocalDate endDate) {
+		if (type != null && item.getType() != type) {
+			return false;
+		}
+		LocalDate date = item.getCreationDate();
+		if (date == null) {
+			return startDate == null;
+		}
+		return (startDate == null || !date.isBefore(startDate)) && (endDate == null || !date.isAfter(endDate));
+	}
+
+
+	private static List<String> ids(List<DownloadedMediaItem> items) {
+		List<String> ids = new ArrayList<>();
+		items.forEach(item -> ids.add(item.getId()));
+		return ids;
+	}
+
+
+	private static DownloadedMediaItem newItem(String id, MediaItemType type, LocalDate creationDate) {
+		DownloadedMediaItem item = new DownloadedMediaItem(id);
+		item.setType(type);
+		item.setCreationDate(creationDate);
+		item.setFilePath("photos/" + id + ".jpg");
+		return item;
+	}
+}
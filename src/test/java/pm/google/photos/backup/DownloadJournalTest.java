@@ -0,0 +1,188 @@
+package pm.google.photos.backup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class DownloadJournalTest {
+
+	@TempDir
+	File tempDir;
+
+
+	@Test
+	public void replayAdoptsCompletedDownloads() throws IOException {
+		DownloadedMediaItem item = newItem("a");
+		writeFile(item, "content of a");
+		DownloadedMediaItem completedItem = completed(item, "content of a");
+		leaveJournal(journal -> {
+			journal.recordIntent(item);
+			journal.recordCompletion(completedItem);
+		});
+
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		try (DownloadJournal journal = newJournal()) {
+			journal.replay(index);
+
+			DownloadedMediaItem adoptedItem = index.getItem("a");
+			assertEquals(item.getFilePath(), adoptedItem.getFilePath());
+			assertEquals(completedItem.getFileSize(), adoptedItem.getFileSize());
+			assertEquals(completedItem.getContentHash(), adoptedItem.getContentHash());
+			assertTrue(journal.getPendingFiles().isEmpty());
+		}
+	}
+
+
+	@Test
+	public void replayAdoptsAndHashesTheCompleteFileOfAnIntent() throws IOException {
+		DownloadedMediaItem item = newItem("b");
+		writeFile(item, "content of b");
+		leaveJournal(journal -> journal.recordIntent(item));
+
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		try (DownloadJournal journal = newJournal()) {
+			journal.replay(index);
+
+			DownloadedMediaItem adoptedItem = index.getItem("b");
+			assertEquals(item.getFilePath(), adoptedItem.getFilePath());
+			assertEquals(completed(item, "content of b").getContentHash(), adoptedItem.getContentHash());
+			assertEquals(12, adoptedItem.getFileSize());
+			assertTrue(journal.getPendingFiles().isEmpty());
+		}
+	}
+
+
+	@Test
+	public void replayKeepsTheIntentOfAnInterruptedDownload() throws IOException {
+		DownloadedMediaItem item = newItem("c");
+		File destinationFile = new File(this.tempDir, item.getFilePath());
+		writePartFile(destinationFile, "part of c");
+		leaveJournal(journal -> journal.recordIntent(item));
+
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		try (DownloadJournal journal = newJournal()) {
+			journal.replay(index);
+
+			assertNull(index.getItem("c"));
+			assertEquals(destinationFile, journal.getPendingFile("c"));
+		}
+
+		// the rewritten journal keeps the intent for the next run
+		try (DownloadJournal journal = newJournal()) {
+			journal.replay(index);
+
+			assertNull(index.getItem("c"));
+			assertEquals(List.of(destinationFile), journal.getPendingFiles());
+		}
+	}
+
+
+	@Test
+	public void replayDropsTheIntentsAndCompletionsWithoutFiles() throws IOException {
+		DownloadedMediaItem failedItem = newItem("d");
+		DownloadedMediaItem deletedItem = newItem("e");
+		DownloadedMediaItem truncatedItem = newItem("f");
+		writeFile(truncatedItem, "content");
+		leaveJournal(journal -> {
+			journal.recordIntent(failedItem);
+			journal.recordCompletion(completed(deletedItem, "content of e"));
+			journal.recordCompletion(completed(truncatedItem, "content of f"));
+		});
+
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		try (DownloadJournal journal = newJournal()) {
+			journal.replay(index);
+
+			assertEquals(0, index.size());
+			assertNull(journal.getPendingFile("d"));
+			assertTrue(journal.getPendingFiles().isEmpty());
+		}
+	}
+
+
+	@Test
+	public void replayKeepsTheItemsWhichAreInTheIndex() throws IOException {
+		DownloadedMediaItem indexedItem = completed(newItem("g"), "content of g");
+		DownloadedMediaItem item = newItem("g");
+		item.setFilePath("2024/g_001.jpg");
+		writeFile(item, "other content");
+		leaveJournal(journal -> journal.recordIntent(item));
+
+		CompactPhotosIndex index = new CompactPhotosIndex();
+		index.addItem(indexedItem);
+		try (DownloadJournal journal = newJournal()) {
+			journal.replay(index);
+
+			assertEquals(1, index.size());
+			assertEquals(indexedItem.getFilePath(), index.getItem("g").getFilePath());
+			assertEquals(indexedItem.getContentHash(), index.getItem("g").getContentHash());
+			assertTrue(journal.getPendingFiles().isEmpty());
+		}
+	}
+
+
+	private DownloadJournal newJournal() {
+		return new DownloadJournal(new File(this.tempDir, "downloads.journal"), this.tempDir);
+	}
+
+
+	/**
+	 * Leaves the journal written by the specified action, as if the process died after it.
+	 */
+	private void leaveJournal(Consumer<DownloadJournal> action) throws IOException {
+		File previousFile = new File(this.tempDir, "previous.journal");
+		try (DownloadJournal journal = new DownloadJournal(previousFile, this.tempDir)) {
+			journal.replay(new CompactPhotosIndex());
+			action.accept(journal);
+			// closing rewrites the journal with the pending intents only, so the records are copied before
+			Files.copy(previousFile.toPath(), new File(this.tempDir, "downloads.journal").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+
+	private static DownloadedMediaItem newItem(String id) {
+		DownloadedMediaItem item = new DownloadedMediaItem(id);
+		item.setType(MediaItemType.PHOTO);
+		item.setCreationDate(LocalDate.of(2024, 5, 1));
+		item.setFilePath("2024/" + id + ".jpg");
+		return item;
+	}
+
+
+	private static DownloadedMediaItem completed(DownloadedMediaItem item, String content) {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		DownloadedMediaItem completedItem = new DownloadedMediaItem(item.getId());
+		completedItem.setType(item.getType());
+		completedItem.setCreationDate(item.getCreationDate());
+		completedItem.setFilePath(item.getFilePath());
+		completedItem.setFileSize(bytes.length);
+		completedItem.setContentHash(FileUtils.toHex(FileUtils.newContentDigest().digest(bytes)));
+		return completedItem;
+	}
+
+
+	private void writeFile(DownloadedMediaItem item, String content) throws IOException {
+		File file = new File(this.tempDir, item.getFilePath());
+		file.getParentFile().mkdirs();
+		Files.writeString(file.toPath(), content);
+	}
+
+
+	private static void writePartFile(File destinationFile, String content) throws IOException {
+		destinationFile.getParentFile().mkdirs();
+		Files.writeString(FileUtils.getPartFile(destinationFile).toPath(), content);
+	}
+}
@@ -0,0 +1,115 @@
+package pm.google.photos.backup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class DownloadedPhotosLogTest {
+
+	@TempDir
+	File tempDir;
+
+
+	@Test
+	public void initializeTruncatesATornRecordAtTheEnd() throws IOException {
+		long validLength = writeLog(List.of(newItem("a"), newItem("b")));
+
+		ByteBuffer record = DownloadedPhotosLog.encodeRecords((byte)1, List.of(newItem("c")));
+		try (RandomAccessFile file = new RandomAccessFile(getLogFile(), "rw")) {
+			file.seek(file.length());
+			file.write(record.array(), 0, record.limit() / 2);
+		}
+
+		DownloadedPhotosLog log = newLog();
+		log.initialize();
+		try {
+			assertEquals(2, log.findItems(null, null, null).size());
+			assertEquals(validLength, getLogFile().length());
+		} finally {
+			log.close();
+		}
+	}
+
+
+	@Test
+	public void initializeTruncatesZerosAtTheEnd() throws IOException {
+		long validLength = writeLog(List.of(newItem("a")));
+		try (RandomAccessFile file = new RandomAccessFile(getLogFile(), "rw")) {
+			file.setLength(validLength + 4096);
+		}
+
+		DownloadedPhotosLog log = newLog();
+		log.initialize();
+		try {
+			assertNotNull(log.getItem("a"));
+			assertEquals(validLength, getLogFile().length());
+		} finally {
+			log.close();
+		}
+	}
+
+
+	@Test
+	public void initializeFailsOnACorruptedRecordFollowedByValidRecords() throws IOException {
+		DownloadedPhotosLog log = newLog();
+		log.initialize();
+		log.addItem(newItem("a"));
+		long corruptedOffset = getLogFile().length();
+		log.addItem(newItem("b"));
+		log.addItem(newItem("c"));
+		log.close();
+		long length = getLogFile().length();
+
+		try (RandomAccessFile file = new RandomAccessFile(getLogFile(), "rw")) {
+			file.seek(corruptedOffset + 10);
+			file.write(file.read() ^ 0xFF);
+		}
+
+		assertThrows(RuntimeException.class, () -> newLog().initialize());
+		// the valid records after the corrupted one are kept
+		assertEquals(length, getLogFile().length());
+	}
+
+
+	private File getLogFile() {
+		return new File(this.tempDir, "index.log");
+	}
+
+
+	private DownloadedPhotosLog newLog() {
+		return DownloadedPhotosLog.create(getLogFile(), null);
+	}
+
+
+	/**
+	 * Writes a log with the specified items.
+	 * @return the length of the log
+	 */
+	private long writeLog(List<DownloadedMediaItem> items) {
+		DownloadedPhotosLog log = newLog();
+		log.initialize();
+		log.addItems(items);
+		log.close();
+		return getLogFile().length();
+	}
+
+
+	private static DownloadedMediaItem newItem(String id) {
+		DownloadedMediaItem item = new DownloadedMediaItem(id);
+		item.setType(MediaItemType.PHOTO);
+		item.setCreationDate(LocalDate.of(2024, 5, 1));
+		item.setFilePath("2024/" + id + ".jpg");
+		return item;
+	}
+}
@@ -0,0 +1,93 @@
+package pm.google.photos.backup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class ExternalSorterTest {
+
+	@TempDir
+	File spillDir;
+
+
+	@Test
+	public void sortedMergesTheSpilledRunsWithoutDuplicates() {
+		Random random = new Random(42);
+		TreeSet<String> expected = new TreeSet<>(ExternalSorter::compare);
+		try (ExternalSorter sorter = new ExternalSorter(1024, this.spillDir)) {
+			for (int i = 0; i < 5000; i++) {
+				// each id is added several times, mostly to different runs
+				String id = "item-" + random.nextInt(1000);
+				sorter.add(id);
+				expected.add(id);
+			}
+
+			assertTrue(sorter.getRunCount() > 10, "runs spilled: " + sorter.getRunCount());
+			assertEquals(new ArrayList<>(expected), toList(sorter.sorted()));
+		}
+	}
+
+
+	@Test
+	public void sortedWithoutSpilling() {
+		try (ExternalSorter sorter = new ExternalSorter(ExternalSorter.DEFAULT_MEMORY_BUDGET, this.spillDir)) {
+			sorter.add("c");
+			sorter.add("a");
+			sorter.add("b");
+			sorter.add("a");
+
+			assertEquals(0, sorter.getRunCount());
+			assertEquals(List.of("a", "b", "c"), toList(sorter.sorted()));
+		}
+	}
+
+
+	@Test
+	public void sortedOrdersByCodePoints() {
+		// U+FB01 sorts before U+1F600 by code point, but after its surrogate pair by UTF-16 char
+		String ligature = "\uFB01";
+		String emoji = "\uD83D\uDE00";
+		try (ExternalSorter sorter = new ExternalSorter(1, this.spillDir)) {
+			sorter.add(emoji);
+			sorter.add(ligature);
+			sorter.add("z");
+
+			assertEquals(List.of("z", ligature, emoji), toList(sorter.sorted()));
+		}
+		assertTrue(ExternalSorter.compare(ligature, emoji) < 0);
+		assertTrue(ExternalSorter.compare(emoji, ligature) > 0);
+		assertTrue(ExternalSorter.compare("a", "ab") < 0);
+		assertEquals(0, ExternalSorter.compare(emoji, emoji));
+	}
+
+
+	@Test
+	public void closeDeletesTheRunFiles() {
+		try (ExternalSorter sorter = new ExternalSorter(64, this.spillDir)) {
+			for (int i = 0; i < 100; i++) {
+				sorter.add("item-" + i);
+			}
+			assertTrue(sorter.getRunCount() > 0);
+			assertEquals(sorter.getRunCount(), this.spillDir.list().length);
+			sorter.sorted().next();
+		}
+		assertEquals(0, this.spillDir.list().length);
+	}
+
+
+	private static List<String> toList(Iterator<String> iterator) {
+		List<String> values = new ArrayList<>();
+		iterator.forEachRemaining(values::add);
+		return values;
+	}
+}
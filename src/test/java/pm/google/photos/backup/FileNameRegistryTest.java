@@ -0,0 +1,74 @@
+package pm.google.photos.backup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class FileNameRegistryTest {
+
+	@TempDir
+	File dir;
+
+
+	@Test
+	public void theNameOfAFailedDownloadIsReservedAgain() throws IOException {
+		new File(this.dir, "IMG.jpg").createNewFile();
+		FileNameRegistry fileNames = new FileNameRegistry();
+
+		File first = fileNames.reserve(this.dir, "IMG.jpg");
+		File second = fileNames.reserve(this.dir, "IMG.jpg");
+		assertEquals("IMG_001.jpg", first.getName());
+		assertEquals("IMG_002.jpg", second.getName());
+
+		// the first download fails, the second one completes
+		second.createNewFile();
+		fileNames.release(first);
+		fileNames.release(second);
+
+		assertEquals("IMG_001.jpg", fileNames.reserve(this.dir, "IMG.jpg").getName());
+		assertEquals("IMG_003.jpg", fileNames.reserve(this.dir, "IMG.jpg").getName());
+	}
+
+
+	@Test
+	public void theNameOfAnInterruptedDownloadStaysTaken() throws IOException {
+		new File(this.dir, "IMG.jpg").createNewFile();
+		FileNameRegistry fileNames = new FileNameRegistry();
+
+		File file = fileNames.reserve(this.dir, "IMG.jpg");
+		FileUtils.getPartFile(file).createNewFile();
+		fileNames.release(file);
+
+		assertEquals("IMG_002.jpg", fileNames.reserve(this.dir, "IMG.jpg").getName());
+	}
+
+
+	@Test
+	public void theNamesOfTheLeastRecentlyUsedIdleDirectoriesAreListedAgain() throws IOException {
+		FileNameRegistry fileNames = new FileNameRegistry();
+		File first = new File(this.dir, "0");
+		File inFlight = new File(this.dir, "in-flight");
+		first.mkdir();
+		inFlight.mkdir();
+		fileNames.release(fileNames.reserve(first, "IMG.jpg"));
+		File reserved = fileNames.reserve(inFlight, "IMG.jpg");
+		for (int i = 1; i <= FileNameRegistry.MAX_IDLE_DIRECTORIES; i++) {
+			File dir = new File(this.dir, String.valueOf(i));
+			dir.mkdir();
+			fileNames.release(fileNames.reserve(dir, "IMG.jpg"));
+		}
+
+		// the files created by another process are seen once the directory is listed again,
+		// the names of the directory with a reservation in flight are kept
+		new File(first, "IMG.jpg").createNewFile();
+		new File(inFlight, "IMG_001.jpg").createNewFile();
+		assertEquals("IMG_001.jpg", fileNames.reserve(first, "IMG.jpg").getName());
+		assertEquals("IMG_001.jpg", fileNames.reserve(inFlight, "IMG.jpg").getName());
+		assertEquals("IMG.jpg", reserved.getName());
+	}
+}
@@ -0,0 +1,220 @@
+package pm.google.photos.backup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.photos.types.proto.MediaItem;
+import com.google.photos.types.proto.MediaMetadata;
+import com.google.photos.types.proto.Photo;
+import com.google.protobuf.Timestamp;
+
+
+public class ListingCheckpointTest {
+
+	private static final String LISTING_KEY = "all 2020-01-01 2024-12-31";
+
+	private static final Instant STARTED_AT = Instant.parse("2024-06-01T10:00:00Z");
+
+	@TempDir
+	File tempDir;
+
+
+	@Test
+	public void openResumesTheRecordedPages() {
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			assertFalse(checkpoint.open(LISTING_KEY, 2));
+			checkpoint.recordPage(0, List.of(newItem("a"), newItem("b")), "token-1");
+			checkpoint.recordPage(1, List.of(newItem("c")), null);
+		}
+
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT.plusSeconds(60))) {
+			assertTrue(checkpoint.open(LISTING_KEY, 2));
+			assertFalse(checkpoint.isPartitionComplete(0));
+			assertEquals("token-1", checkpoint.getPageToken(0));
+			assertTrue(checkpoint.isPartitionComplete(1));
+			assertNull(checkpoint.getPageToken(1));
+
+			List<DownloadedMediaItem> items = resumedItems(checkpoint);
+			assertEquals(List.of("a", "b", "c"), items.stream().map(DownloadedMediaItem::getId).toList());
+			assertEquals(MediaItemType.PHOTO, items.get(0).getType());
+			assertEquals(LocalDate.of(2024, 5, 1), items.get(0).getCreationDate());
+		}
+	}
+
+
+	@Test
+	public void openListsThePageOfATornLastRecordAgain() throws IOException {
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			checkpoint.open(LISTING_KEY, 1);
+			checkpoint.recordPage(0, List.of(newItem("a")), "token-1");
+			checkpoint.recordPage(0, List.of(newItem("b")), "token-2");
+		}
+		// the page record of the second page is torn, its item record is complete
+		File checkpointFile = getCheckpointFile();
+		try (RandomAccessFile file = new RandomAccessFile(checkpointFile, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			assertTrue(checkpoint.open(LISTING_KEY, 1));
+			assertEquals("token-1", checkpoint.getPageToken(0));
+			assertEquals(List.of("a"), resumedIds(checkpoint));
+
+			checkpoint.recordPage(0, List.of(newItem("b")), "token-2");
+		}
+
+		// the page listed again is appended after the last valid record
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			assertTrue(checkpoint.open(LISTING_KEY, 1));
+			assertEquals("token-2", checkpoint.getPageToken(0));
+			assertEquals(List.of("a", "b"), resumedIds(checkpoint));
+		}
+	}
+
+
+	@Test
+	public void openStartsANewListingForAChangedKey() {
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			checkpoint.open(LISTING_KEY, 2);
+			checkpoint.recordPage(0, List.of(newItem("a")), "token-1");
+		}
+
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			assertFalse(checkpoint.open("photo 2020-01-01 2024-12-31", 2));
+			assertNull(checkpoint.getPageToken(0));
+			assertEquals(List.of(), resumedIds(checkpoint));
+		}
+
+		// the new listing has replaced the listing of the old key
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			assertFalse(checkpoint.open(LISTING_KEY, 2));
+		}
+	}
+
+
+	@Test
+	public void openStartsANewListingForAChangedPartitionCount() {
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			checkpoint.open(LISTING_KEY, 2);
+			checkpoint.recordPage(0, List.of(newItem("a")), "token-1");
+		}
+
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			assertFalse(checkpoint.open(LISTING_KEY, 3));
+			assertEquals(List.of(), resumedIds(checkpoint));
+		}
+	}
+
+
+	@Test
+	public void openStartsANewListingAfterTheFreshnessWindow() {
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			checkpoint.open(LISTING_KEY, 1);
+			checkpoint.recordPage(0, List.of(newItem("a")), "token-1");
+		}
+
+		Instant lastFreshInstant = STARTED_AT.plus(ListingCheckpoint.DEFAULT_FRESHNESS).minusMillis(1);
+		try (ListingCheckpoint checkpoint = newCheckpoint(lastFreshInstant)) {
+			assertTrue(checkpoint.open(LISTING_KEY, 1));
+		}
+
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT.plus(ListingCheckpoint.DEFAULT_FRESHNESS))) {
+			assertFalse(checkpoint.open(LISTING_KEY, 1));
+			assertNull(checkpoint.getPageToken(0));
+			assertEquals(List.of(), resumedIds(checkpoint));
+		}
+	}
+
+
+	@Test
+	public void openReusesACompleteListingOnlyOnce() {
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			checkpoint.open(LISTING_KEY, 1);
+			checkpoint.recordPage(0, List.of(newItem("a")), null);
+		}
+
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			assertTrue(checkpoint.open(LISTING_KEY, 1));
+			assertTrue(checkpoint.isPartitionComplete(0));
+			assertEquals(List.of("a"), resumedIds(checkpoint));
+
+			// e.g. the next sync of a daemon lists the library again
+			assertFalse(checkpoint.open(LISTING_KEY, 1));
+			assertFalse(checkpoint.isPartitionComplete(0));
+			assertEquals(List.of(), resumedIds(checkpoint));
+		}
+	}
+
+
+	@Test
+	public void openResumesAnIncompleteListingOfTheSameProcess() {
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			checkpoint.open(LISTING_KEY, 1);
+			checkpoint.recordPage(0, List.of(newItem("a")), "token-1");
+
+			assertTrue(checkpoint.open(LISTING_KEY, 1));
+			assertEquals("token-1", checkpoint.getPageToken(0));
+		}
+	}
+
+
+	@Test
+	public void deleteRemovesTheCheckpointFile() {
+		try (ListingCheckpoint checkpoint = newCheckpoint(STARTED_AT)) {
+			checkpoint.open(LISTING_KEY, 1);
+			checkpoint.recordPage(0, List.of(newItem("a")), null);
+			checkpoint.delete();
+		}
+		assertFalse(getCheckpointFile().exists());
+	}
+
+
+	private File getCheckpointFile() {
+		return new File(this.tempDir, "listing.checkpoint");
+	}
+
+
+	private ListingCheckpoint newCheckpoint(Instant now) {
+		return new ListingCheckpoint(getCheckpointFile(), Clock.fixed(now, ZoneOffset.UTC));
+	}
+
+
+	private static List<DownloadedMediaItem> resumedItems(ListingCheckpoint checkpoint) {
+		try (Stream<DownloadedMediaItem> items = checkpoint.streamResumedItems()) {
+			return items.toList();
+		}
+	}
+
+
+	private static List<String> resumedIds(ListingCheckpoint checkpoint) {
+		return resumedItems(checkpoint).stream().map(DownloadedMediaItem::getId).toList();
+	}
+
+
+	private static MediaItem newItem(String id) {
+		long creationTime = LocalDate.of(2024, 5, 1).atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+		return MediaItem.newBuilder()
+				.setId(id)
+				.setMediaMetadata(MediaMetadata.newBuilder()
+						.setCreationTime(Timestamp.newBuilder().setSeconds(creationTime).build())
+						.setPhoto(Photo.getDefaultInstance())
+						.build())
+				.build();
+	}
+}